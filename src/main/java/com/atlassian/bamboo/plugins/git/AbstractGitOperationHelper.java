@@ -1,11 +1,28 @@
 package com.atlassian.bamboo.plugins.git;
 
 import com.atlassian.bamboo.build.logger.BuildLogger;
+import com.atlassian.bamboo.repository.RepositoryException;
 import com.atlassian.bamboo.utils.SystemProperty;
+import com.atlassian.bamboo.plan.branch.VcsBranch;
+import com.atlassian.bamboo.v2.build.BuildRepositoryChanges;
 import com.atlassian.sal.api.message.I18nResolver;
+import com.google.common.collect.Sets;
 import org.apache.log4j.Logger;
+import org.apache.commons.lang.StringUtils;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 
 public abstract class AbstractGitOperationHelper implements GitOperationHelper
 {
@@ -13,6 +30,11 @@ public abstract class AbstractGitOperationHelper implements GitOperationHelper
 
     protected static final int DEFAULT_TRANSFER_TIMEOUT = new SystemProperty(false, "atlassian.bamboo.git.timeout", "GIT_TIMEOUT").getValue(10 * 60);
     protected static final int CHANGESET_LIMIT = new SystemProperty(false, "atlassian.bamboo.git.changeset.limit", "GIT_CHANGESET_LIMIT").getValue(100);
+    /**
+     * Maximum number of commits counted beyond {@link #CHANGESET_LIMIT}, the count is reported as a lower bound when
+     * reached. Not positive means all commits are counted.
+     */
+    protected static final int SKIPPED_COMMITS_COUNT_LIMIT = new SystemProperty(false, "atlassian.bamboo.git.changeset.skippedCountLimit", "GIT_CHANGESET_SKIPPED_COUNT_LIMIT").getValue(0);
 
     protected static final String[] FQREF_PREFIXES = {Constants.R_HEADS, Constants.R_REFS};
 
@@ -30,4 +52,121 @@ public abstract class AbstractGitOperationHelper implements GitOperationHelper
         this.buildLogger = buildLogger;
         this.i18nResolver = i18nResolver;
     }
+
+    @NotNull
+    @Override
+    public String getAccessKey()
+    {
+        return GitCacheDirectory.calculateAggregateSha(accessData.repositoryUrl, String.valueOf(accessData.authenticationType), accessData.username,
+                                                       accessData.password, accessData.sshKey, accessData.sshPassphrase);
+    }
+
+    @Override
+    public BuildRepositoryChanges extractCommits(final File cacheDirectory, final String lastVcsRevisionKey, final String targetRevision) throws RepositoryException
+    {
+        return extractCommits(cacheDirectory, lastVcsRevisionKey, targetRevision, null);
+    }
+
+    /**
+     * @return seed to fetch from before the first fetch into the directory (see {@link RepositorySeeds}), null if the
+     *         directory already holds objects, the fetch is shallow or there is no seed
+     */
+    @Nullable
+    protected File getSeed(@NotNull final File directory, final boolean useShallow)
+    {
+        if (useShallow || !RepositorySeeds.hasNoObjects(directory))
+        {
+            return null;
+        }
+        final File seed = RepositorySeeds.findSeed(accessData.repositoryUrl);
+        if (seed != null)
+        {
+            buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.seeding", directory, seed));
+        }
+        return seed;
+    }
+
+    /**
+     * A repository with no or some objects of the seed is still a valid target for a full fetch, so seeding failures
+     * are only reported.
+     */
+    protected void reportSeedingFailure(@NotNull final File directory, @NotNull final File seed, @NotNull final Exception e)
+    {
+        log.warn("Unable to seed " + directory + " from " + seed, e);
+        buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.seedingFailed", directory, seed, e.getMessage()));
+    }
+
+    /**
+     * @return names under which a fetch of the branch may have stored it in a local repository
+     */
+    @NotNull
+    protected static List<String> getLocalRefCandidates(@Nullable final String branch)
+    {
+        if (StringUtils.isBlank(branch))
+        {
+            return Collections.singletonList(Constants.R_HEADS + Constants.MASTER);
+        }
+        if (StringUtils.startsWithAny(branch, FQREF_PREFIXES))
+        {
+            return Collections.singletonList(branch);
+        }
+        return Arrays.asList(Constants.R_HEADS + branch, Constants.R_TAGS + branch);
+    }
+
+    /**
+     * Deletes branches of the cache repository which no longer exist in the remote repository, so that their commits
+     * can be pruned. Nothing is deleted if the remote repository advertises no branches at all.
+     *
+     * @return number of deleted branches
+     */
+    protected int deleteRemovedBranches(@NotNull final File cacheDirectory) throws RepositoryException
+    {
+        final Set<String> remoteBranches = Sets.newHashSet();
+        for (VcsBranch branch : getOpenBranches(accessData, cacheDirectory))
+        {
+            remoteBranches.add(branch.getName());
+        }
+        if (remoteBranches.isEmpty())
+        {
+            return 0;
+        }
+
+        int deleted = 0;
+        try
+        {
+            final FileRepository repository = new FileRepositoryBuilder().setWorkTree(cacheDirectory).build();
+            try
+            {
+                for (Ref ref : repository.getRefDatabase().getRefs(Constants.R_HEADS).values())
+                {
+                    final String branch = StringUtils.removeStart(ref.getName(), Constants.R_HEADS);
+                    if (remoteBranches.contains(branch) || ref.isSymbolic())
+                    {
+                        continue;
+                    }
+                    final RefUpdate refUpdate = repository.updateRef(ref.getName());
+                    refUpdate.setForceUpdate(true);
+                    final RefUpdate.Result result = refUpdate.delete();
+                    if (result == RefUpdate.Result.FORCED)
+                    {
+                        log.info("Deleted " + ref.getName() + " from " + cacheDirectory + ", the branch has been removed from " + accessData.repositoryUrl);
+                        deleted++;
+                    }
+                    else
+                    {
+                        log.debug("Unable to delete " + ref.getName() + " from " + cacheDirectory + ": " + result);
+                    }
+                }
+            }
+            finally
+            {
+                repository.close();
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RepositoryException(e.getMessage(), e);
+        }
+        return deleted;
+    }
 }
@@ -0,0 +1,171 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.google.common.collect.ImmutableMap;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.storage.file.FileBasedConfig;
+import org.eclipse.jgit.util.FS;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Blobless caches hold the commits and trees of the remote repository, but no file contents. Change detection only
+ * needs commits and trees, so large binaries are not transferred to the server until a build checks them out.
+ *
+ * A blobless cache is a git partial clone: its fetches use the {@code blob:none} filter, and git fetches missing
+ * blobs on demand from the promisor remote {@value #PROMISOR_REMOTE}. Only the promisor flag and filter are stored in
+ * the repository configuration, the URL (which may contain credentials) is passed to each command needing it through
+ * the environment (see {@link #getPromisorEnvironment}). Checkouts from a blobless cache fetch the missing blobs into
+ * the source directory.
+ *
+ * Requires native git {@value #MIN_GIT_VERSION} or later. Blobless caches live next to the full caches of the same
+ * repositories, helpers unable to fetch missing blobs keep using the full ones (see
+ * {@link GitCacheDirectory#getCacheDirectory(File, GitRepository.GitRepositoryAccessData, GitOperationHelper)}).
+ * Servers not supporting filters send all blobs, the cache then works as a full one.
+ */
+public class BloblessCache
+{
+    private static final Logger log = Logger.getLogger(BloblessCache.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    /**
+     * If true, change detection and checkouts use blobless caches when the git executable supports them.
+     */
+    static final boolean ENABLED = new SystemProperty(false, "atlassian.bamboo.git.cache.blobless", "GIT_CACHE_BLOBLESS").getValue(false);
+
+    static final String PROMISOR_REMOTE = "bamboo-cache";
+
+    static final String BLOB_FILTER = "blob:none";
+
+    /**
+     * Required for passing configuration through the environment (GIT_CONFIG_COUNT).
+     */
+    static final String MIN_GIT_VERSION = "2.31.0";
+
+    private static final Pattern VERSION_PATTERN = Pattern.compile("(\\d+)\\.(\\d+)(?:\\.(\\d+))?");
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    private BloblessCache()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * @return true if fetches into the repository skip blobs
+     */
+    public static boolean isBlobless(@NotNull final File repositoryDirectory)
+    {
+        final File config = new File(new File(repositoryDirectory, Constants.DOT_GIT), Constants.CONFIG);
+        if (!config.isFile())
+        {
+            return false;
+        }
+        final FileBasedConfig fileBasedConfig = new FileBasedConfig(config, FS.DETECTED);
+        try
+        {
+            fileBasedConfig.load();
+            return fileBasedConfig.getBoolean("remote", PROMISOR_REMOTE, "promisor", false);
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to read " + config, e);
+        }
+        catch (ConfigInvalidException e)
+        {
+            log.warn("Unable to read " + config, e);
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the source directory borrows objects from a blobless cache, so that blobs may be missing from it
+     */
+    public static boolean borrowsFromBlobless(@NotNull final File sourceDirectory)
+    {
+        final File alternates = new File(new File(new File(sourceDirectory, Constants.DOT_GIT), "objects"), "info/alternates");
+        if (!alternates.isFile())
+        {
+            return false;
+        }
+        try
+        {
+            @SuppressWarnings("unchecked")
+            final List<String> alternateObjectDirectories = FileUtils.readLines(alternates);
+            for (String alternateObjectDirectory : alternateObjectDirectories)
+            {
+                // <cache>/.git/objects
+                final File gitDirectory = new File(alternateObjectDirectory.trim()).getParentFile();
+                if (gitDirectory != null && gitDirectory.getParentFile() != null && isBlobless(gitDirectory.getParentFile()))
+                {
+                    return true;
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to read " + alternates, e);
+        }
+        return false;
+    }
+
+    /**
+     * @param versionOutput output of {@code git version}
+     * @return true if the git version supports blobless caches
+     */
+    static boolean isSupportedVersion(@Nullable final String versionOutput)
+    {
+        final int[] version = parseVersion(versionOutput);
+        final int[] minimum = parseVersion(MIN_GIT_VERSION);
+        if (version == null || minimum == null)
+        {
+            return false;
+        }
+        for (int i = 0; i < minimum.length; i++)
+        {
+            if (version[i] != minimum[i])
+            {
+                return version[i] > minimum[i];
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return environment letting git fetch missing blobs from the repository URL
+     */
+    @NotNull
+    static Map<String, String> getPromisorEnvironment(@NotNull final String repositoryUrl)
+    {
+        return ImmutableMap.of("GIT_CONFIG_COUNT", "2",
+                               "GIT_CONFIG_KEY_0", "remote." + PROMISOR_REMOTE + ".url",
+                               "GIT_CONFIG_VALUE_0", repositoryUrl,
+                               "GIT_CONFIG_KEY_1", "remote." + PROMISOR_REMOTE + ".promisor",
+                               "GIT_CONFIG_VALUE_1", "true");
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    @Nullable
+    private static int[] parseVersion(@Nullable final String version)
+    {
+        final Matcher matcher = version != null ? VERSION_PATTERN.matcher(version) : null;
+        if (matcher == null || !matcher.find())
+        {
+            return null;
+        }
+        return new int[] {Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)), matcher.group(3) != null ? Integer.parseInt(matcher.group(3)) : 0};
+    }
+}
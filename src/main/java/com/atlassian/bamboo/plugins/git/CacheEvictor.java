@@ -0,0 +1,339 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileFilter;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the total size of cache directories under a quota by removing the least recently used ones.
+ *
+ * Eviction runs in the background after fetches, at most once per {@link #EVICTION_INTERVAL_MINUTES} per cache root.
+ * Last access is the modification time of the cache's lock file (see {@link GitCacheLock}). Caches are removed with the
+ * cache lock held and only if they have not been accessed since they were measured, caches locked by this or another
+ * process are skipped. Removed caches are deleted in the background by {@link DirectoryTrash}. Evictions are logged
+ * and counted in the {@value #MBEAN_NAME} MBean.
+ */
+public class CacheEvictor
+{
+    private static final Logger log = Logger.getLogger(CacheEvictor.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    /**
+     * Total size of caches in one build directory, 0 to disable eviction.
+     */
+    static final int QUOTA_MB = new SystemProperty(false, "atlassian.bamboo.git.cache.quotaMb", "GIT_CACHE_QUOTA_MB").getValue(0);
+    static final int EVICTION_INTERVAL_MINUTES = new SystemProperty(false, "atlassian.bamboo.git.cache.evictionIntervalMinutes", "GIT_CACHE_EVICTION_INTERVAL_MINUTES").getValue(60);
+
+    static final String MBEAN_NAME = "com.atlassian.bamboo.plugins.git:type=CacheEviction";
+
+    static final FileFilter CACHE_DIRECTORIES = new FileFilter()
+    {
+        public boolean accept(final File file)
+        {
+            return file.isDirectory() && !DirectoryTrash.isTrash(file);
+        }
+    };
+
+    private static final Statistics statistics = new Statistics();
+    private static final ExecutorService executor = createExecutor();
+    private static final ConcurrentMap<String, Long> lastEvictions = Maps.newConcurrentMap();
+    private static final Set<String> queued = Sets.newSetFromMap(Maps.<String, Boolean>newConcurrentMap());
+
+    static
+    {
+        registerMBean();
+    }
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    private CacheEvictor()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * Schedules eviction of caches in the cache root, unless eviction is disabled or has run recently.
+     */
+    public static void scheduleEviction(@NotNull final File cacheRoot)
+    {
+        if (QUOTA_MB <= 0)
+        {
+            return;
+        }
+        final String key = cacheRoot.getAbsolutePath();
+        final long now = System.currentTimeMillis();
+        final Long lastEviction = lastEvictions.get(key);
+        if (lastEviction != null && now - lastEviction < TimeUnit.MINUTES.toMillis(EVICTION_INTERVAL_MINUTES) || !queued.add(key))
+        {
+            return;
+        }
+        lastEvictions.put(key, now);
+        executor.execute(new Runnable()
+        {
+            public void run()
+            {
+                queued.remove(key);
+                try
+                {
+                    evict(cacheRoot, QUOTA_MB * FileUtils.ONE_MB);
+                }
+                catch (RuntimeException e)
+                {
+                    log.warn("Unable to evict caches from " + cacheRoot, e);
+                }
+            }
+        });
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    /**
+     * Removes least recently used caches until their total size is within the quota.
+     *
+     * @return total size of remaining caches
+     */
+    static long evict(@NotNull final File cacheRoot, final long quotaBytes)
+    {
+        final List<CacheEntry> entries = Lists.newArrayList();
+        long totalSize = 0;
+        final File[] cacheDirectories = cacheRoot.listFiles(CACHE_DIRECTORIES);
+        for (File cacheDirectory : cacheDirectories != null ? cacheDirectories : new File[0])
+        {
+            final long lastAccess = GitCacheLock.getLastAccess(cacheDirectory);
+            try
+            {
+                final CacheEntry entry = new CacheEntry(cacheDirectory, lastAccess, FileUtils.sizeOfDirectory(cacheDirectory));
+                entries.add(entry);
+                totalSize += entry.size;
+            }
+            catch (IllegalArgumentException e)
+            {
+                log.debug(cacheDirectory + " removed while measuring", e); // thrown by sizeOfDirectory
+            }
+        }
+
+        statistics.lastEvictionTime.set(System.currentTimeMillis());
+        statistics.cacheCount.set(entries.size());
+        if (totalSize <= quotaBytes)
+        {
+            statistics.totalSize.set(totalSize);
+            return totalSize;
+        }
+
+        Collections.sort(entries, new Comparator<CacheEntry>()
+        {
+            public int compare(final CacheEntry o1, final CacheEntry o2)
+            {
+                return o1.lastAccess < o2.lastAccess ? -1 : (o1.lastAccess == o2.lastAccess ? 0 : 1);
+            }
+        });
+
+        final long sizeBefore = totalSize;
+        for (CacheEntry entry : entries)
+        {
+            if (totalSize <= quotaBytes)
+            {
+                break;
+            }
+            if (evict(entry))
+            {
+                totalSize -= entry.size;
+                statistics.evictedCaches.incrementAndGet();
+                statistics.evictedBytes.addAndGet(entry.size);
+                statistics.cacheCount.decrementAndGet();
+            }
+            else
+            {
+                statistics.skippedCaches.incrementAndGet();
+            }
+        }
+
+        statistics.totalSize.set(totalSize);
+        log.info("Caches in " + cacheRoot + " reduced from " + FileUtils.byteCountToDisplaySize(sizeBefore) + " to "
+                 + FileUtils.byteCountToDisplaySize(totalSize) + ", quota is " + FileUtils.byteCountToDisplaySize(quotaBytes));
+        if (totalSize > quotaBytes)
+        {
+            log.warn("Caches in " + cacheRoot + " exceed the quota, all other caches are in use");
+        }
+        return totalSize;
+    }
+
+    private static boolean evict(@NotNull final CacheEntry entry)
+    {
+        final File cacheDirectory = entry.directory;
+        if (GitCacheDirectory.isCacheLockHeld(cacheDirectory))
+        {
+            log.debug("Not evicting " + cacheDirectory + ", it is in use");
+            return false;
+        }
+        try
+        {
+            return GitCacheDirectory.getHousekeepingLock(cacheDirectory).withLock(new Callable<Boolean>()
+            {
+                public Boolean call() throws Exception
+                {
+                    if (GitCacheLock.getLastAccess(cacheDirectory) != entry.lastAccess)
+                    {
+                        log.debug("Not evicting " + cacheDirectory + ", it has just been used");
+                        return false;
+                    }
+                    CommitGraphIndex.close(cacheDirectory);
+                    DirectoryTrash.delete(cacheDirectory);
+                    GitCacheLock.deleteLockFile(cacheDirectory);
+                    log.info("Evicted " + cacheDirectory + " (" + FileUtils.byteCountToDisplaySize(entry.size) + ", last used "
+                             + TimeUnit.MILLISECONDS.toHours(System.currentTimeMillis() - entry.lastAccess) + "h ago)");
+                    return true;
+                }
+            });
+        }
+        catch (CacheLockTimeoutException e)
+        {
+            log.debug("Not evicting " + cacheDirectory + ", it is in use by another process");
+            return false;
+        }
+        catch (Exception e)
+        {
+            log.warn("Unable to evict " + cacheDirectory, e);
+            return false;
+        }
+    }
+
+    @NotNull
+    private static ExecutorService createExecutor()
+    {
+        final ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                                                                             new ThreadFactoryBuilder().setNameFormat("git-cache-eviction-%d").setDaemon(true).build());
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        return threadPoolExecutor;
+    }
+
+    private static void registerMBean()
+    {
+        try
+        {
+            final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(MBEAN_NAME);
+            try
+            {
+                mBeanServer.registerMBean(statistics, name);
+            }
+            catch (InstanceAlreadyExistsException e)
+            {
+                // registered by a previous version of the plugin
+                mBeanServer.unregisterMBean(name);
+                mBeanServer.registerMBean(statistics, name);
+            }
+        }
+        catch (Exception e)
+        {
+            log.warn("Unable to register " + MBEAN_NAME, e);
+        }
+    }
+
+    @NotNull
+    static StatisticsMXBean getStatistics()
+    {
+        return statistics;
+    }
+
+    private static class CacheEntry
+    {
+        private final File directory;
+        private final long lastAccess;
+        private final long size;
+
+        private CacheEntry(@NotNull final File directory, final long lastAccess, final long size)
+        {
+            this.directory = directory;
+            this.lastAccess = lastAccess;
+            this.size = size;
+        }
+    }
+
+    public interface StatisticsMXBean
+    {
+        long getQuotaBytes();
+
+        long getTotalSize();
+
+        long getCacheCount();
+
+        long getEvictedCaches();
+
+        long getEvictedBytes();
+
+        long getSkippedCaches();
+
+        long getLastEvictionTime();
+    }
+
+    private static class Statistics implements StatisticsMXBean
+    {
+        private final AtomicLong totalSize = new AtomicLong();
+        private final AtomicLong cacheCount = new AtomicLong();
+        private final AtomicLong evictedCaches = new AtomicLong();
+        private final AtomicLong evictedBytes = new AtomicLong();
+        private final AtomicLong skippedCaches = new AtomicLong();
+        private final AtomicLong lastEvictionTime = new AtomicLong();
+
+        public long getQuotaBytes()
+        {
+            return QUOTA_MB * FileUtils.ONE_MB;
+        }
+
+        public long getTotalSize()
+        {
+            return totalSize.get();
+        }
+
+        public long getCacheCount()
+        {
+            return cacheCount.get();
+        }
+
+        public long getEvictedCaches()
+        {
+            return evictedCaches.get();
+        }
+
+        public long getEvictedBytes()
+        {
+            return evictedBytes.get();
+        }
+
+        public long getSkippedCaches()
+        {
+            return skippedCaches.get();
+        }
+
+        public long getLastEvictionTime()
+        {
+            return lastEvictionTime.get();
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.core.RepositoryUrlObfuscator;
+import com.atlassian.bamboo.utils.Pair;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.Constants;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Lists cache directories with their disk usage and the fetch and lock statistics of this JVM, so that administrators
+ * can tell which repository a SHA-named cache directory serves and plan disk space and fetch load.
+ *
+ * Disk usage is measured when listing. The plans using a cache are the plans configured with its repositories, plus
+ * the ones seen using it by this JVM. Statistics are kept in memory since the server started, caches used only by
+ * other processes (e.g. local agents running in a separate JVM) are listed without them, except for the time of the
+ * last fetch, which is then taken from {@code FETCH_HEAD}.
+ */
+public class CacheInventory
+{
+    private static final Logger log = Logger.getLogger(CacheInventory.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    private static final ConcurrentMap<String, Usage> usages = Maps.newConcurrentMap();
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    private CacheInventory()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * Lists the cache directories in the cache roots of the given repositories, including caches no repository uses
+     * anymore.
+     *
+     * @param repositories repositories with the key of the plan they are configured in, null if not known
+     */
+    @NotNull
+    public static List<Entry> list(@NotNull final Iterable<Pair<GitRepository, String>> repositories)
+    {
+        final Map<File, Set<String>> urlsByCache = Maps.newHashMap();
+        final Map<File, Set<String>> planKeysByCache = Maps.newHashMap();
+        for (Pair<GitRepository, String> repository : repositories)
+        {
+            final String url = RepositoryUrlObfuscator.obfuscatePasswordInUrl(repository.getFirst().getSubstitutedAccessData().repositoryUrl);
+            for (File cacheDirectory : repository.getFirst().getCacheDirectories())
+            {
+                final File canonicalCache = getCanonicalFile(cacheDirectory);
+                if (!urlsByCache.containsKey(canonicalCache))
+                {
+                    urlsByCache.put(canonicalCache, Sets.<String>newTreeSet());
+                    planKeysByCache.put(canonicalCache, Sets.<String>newTreeSet());
+                }
+                urlsByCache.get(canonicalCache).add(url);
+                if (repository.getSecond() != null)
+                {
+                    planKeysByCache.get(canonicalCache).add(repository.getSecond());
+                }
+            }
+        }
+
+        final Set<File> cacheRoots = Sets.newLinkedHashSet();
+        for (File cacheDirectory : urlsByCache.keySet())
+        {
+            cacheRoots.add(cacheDirectory.getParentFile());
+        }
+        final List<Entry> entries = Lists.newArrayList();
+        for (File cacheRoot : cacheRoots)
+        {
+            final File[] cacheDirectories = cacheRoot.listFiles(CacheEvictor.CACHE_DIRECTORIES);
+            for (File cacheDirectory : cacheDirectories != null ? cacheDirectories : new File[0])
+            {
+                final Set<String> urls = urlsByCache.get(cacheDirectory);
+                final Set<String> planKeys = planKeysByCache.get(cacheDirectory);
+                entries.add(createEntry(cacheDirectory, urls != null ? urls : Collections.<String>emptySet(),
+                                        planKeys != null ? planKeys : Collections.<String>emptySet()));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Records that a plan used the cache directory.
+     */
+    static void recordUse(@NotNull final File cacheDirectory, @NotNull final String planKey, @NotNull final String repositoryUrl)
+    {
+        getUsage(cacheDirectory).recordUse(planKey, RepositoryUrlObfuscator.obfuscatePasswordInUrl(repositoryUrl));
+    }
+
+    static void recordFetch(@NotNull final File cacheDirectory, final long durationMillis, final boolean succeeded)
+    {
+        getUsage(cacheDirectory).recordFetch(durationMillis, succeeded);
+    }
+
+    static void recordLockWait(@NotNull final File cacheDirectory, final long waitMillis)
+    {
+        getUsage(cacheDirectory).recordLockWait(waitMillis);
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    @NotNull
+    static Entry createEntry(@NotNull final File cacheDirectory, @NotNull final Collection<String> configuredUrls,
+                             @NotNull final Collection<String> configuredPlanKeys)
+    {
+        final Entry entry = new Entry(cacheDirectory);
+        final Usage usage = usages.get(getCanonicalFile(cacheDirectory).getPath());
+        if (usage != null)
+        {
+            usage.copyTo(entry);
+        }
+        entry.urls.addAll(configuredUrls);
+        entry.planKeys.addAll(configuredPlanKeys);
+        entry.lastAccess = GitCacheLock.getLastAccess(cacheDirectory);
+
+        final File gitDirectory = new File(cacheDirectory, Constants.DOT_GIT);
+        if (entry.lastFetch == 0)
+        {
+            // fetched before the server started or by another process, both native git and JGit write FETCH_HEAD
+            entry.lastFetch = new File(gitDirectory, "FETCH_HEAD").lastModified();
+        }
+        final File objectsDirectory = new File(gitDirectory, "objects");
+        entry.shallow = new File(gitDirectory, "shallow").exists();
+        try
+        {
+            entry.size = FileUtils.sizeOfDirectory(cacheDirectory);
+        }
+        catch (IllegalArgumentException e)
+        {
+            log.debug(cacheDirectory + " removed while measuring", e); // thrown by sizeOfDirectory
+        }
+        final String[] packs = new File(objectsDirectory, "pack").list();
+        for (String pack : packs != null ? packs : new String[0])
+        {
+            if (pack.endsWith(".pack"))
+            {
+                entry.packCount++;
+            }
+        }
+        final File[] fanOutDirectories = objectsDirectory.listFiles();
+        for (File fanOutDirectory : fanOutDirectories != null ? fanOutDirectories : new File[0])
+        {
+            final String[] objects = fanOutDirectory.getName().length() == 2 ? fanOutDirectory.list() : null;
+            entry.looseObjectCount += objects != null ? objects.length : 0;
+        }
+        entry.refCount = countRefs(gitDirectory);
+        return entry;
+    }
+
+    private static int countRefs(@NotNull final File gitDirectory)
+    {
+        final Set<String> refNames = Sets.newHashSet();
+        try
+        {
+            refNames.addAll(WorkspaceRefs.readPackedRefs(new File(gitDirectory, WorkspaceRefs.PACKED_REFS)).keySet());
+        }
+        catch (IOException e)
+        {
+            log.debug("Unable to read packed refs of " + gitDirectory, e);
+        }
+        final File refsDirectory = new File(gitDirectory, Constants.R_REFS);
+        if (refsDirectory.isDirectory())
+        {
+            @SuppressWarnings("unchecked")
+            final Collection<File> looseRefs = FileUtils.listFiles(refsDirectory, null, true);
+            final String gitDirectoryPath = gitDirectory.getAbsolutePath();
+            for (File looseRef : looseRefs)
+            {
+                refNames.add(looseRef.getAbsolutePath().substring(gitDirectoryPath.length() + 1).replace(File.separatorChar, '/'));
+            }
+        }
+        return refNames.size();
+    }
+
+    @NotNull
+    private static Usage getUsage(@NotNull final File cacheDirectory)
+    {
+        final String key = getCanonicalFile(cacheDirectory).getPath();
+        final Usage usage = usages.get(key);
+        if (usage != null)
+        {
+            return usage;
+        }
+        usages.putIfAbsent(key, new Usage());
+        return usages.get(key);
+    }
+
+    @NotNull
+    private static File getCanonicalFile(@NotNull final File file)
+    {
+        try
+        {
+            return file.getCanonicalFile();
+        }
+        catch (IOException e)
+        {
+            return file.getAbsoluteFile();
+        }
+    }
+
+    /**
+     * Statistics of a cache directory, collected by this JVM.
+     */
+    private static class Usage
+    {
+        private final Set<String> planKeys = Sets.newTreeSet();
+        private final Set<String> urls = Sets.newTreeSet();
+        private long lastFetch;
+        private long lastFetchDuration;
+        private long fetchCount;
+        private long failedFetchCount;
+        private long lockCount;
+        private long totalLockWait;
+        private long maxLockWait;
+
+        private synchronized void recordUse(@NotNull final String planKey, @NotNull final String url)
+        {
+            planKeys.add(planKey);
+            urls.add(url);
+        }
+
+        private synchronized void recordFetch(final long durationMillis, final boolean succeeded)
+        {
+            lastFetch = System.currentTimeMillis();
+            lastFetchDuration = durationMillis;
+            fetchCount++;
+            if (!succeeded)
+            {
+                failedFetchCount++;
+            }
+        }
+
+        private synchronized void recordLockWait(final long waitMillis)
+        {
+            lockCount++;
+            totalLockWait += waitMillis;
+            maxLockWait = Math.max(maxLockWait, waitMillis);
+        }
+
+        private synchronized void copyTo(@NotNull final Entry entry)
+        {
+            entry.planKeys.addAll(planKeys);
+            entry.urls.addAll(urls);
+            entry.lastFetch = lastFetch;
+            entry.lastFetchDuration = lastFetchDuration;
+            entry.fetchCount = fetchCount;
+            entry.failedFetchCount = failedFetchCount;
+            entry.lockCount = lockCount;
+            entry.totalLockWait = totalLockWait;
+            entry.maxLockWait = maxLockWait;
+        }
+    }
+
+    /**
+     * Snapshot of a cache directory. Times are in milliseconds, 0 if unknown.
+     */
+    public static class Entry
+    {
+        private final File directory;
+        private final Set<String> urls = Sets.newTreeSet();
+        private final Set<String> planKeys = Sets.newTreeSet();
+        private boolean shallow;
+        private long size;
+        private int packCount;
+        private int looseObjectCount;
+        private int refCount;
+        private long lastAccess;
+        private long lastFetch;
+        private long lastFetchDuration;
+        private long fetchCount;
+        private long failedFetchCount;
+        private long lockCount;
+        private long totalLockWait;
+        private long maxLockWait;
+
+        private Entry(@NotNull final File directory)
+        {
+            this.directory = directory;
+        }
+
+        @NotNull
+        public File getDirectory()
+        {
+            return directory;
+        }
+
+        /**
+         * @return URLs of the repositories using the cache, with passwords obfuscated
+         */
+        @NotNull
+        public Set<String> getUrls()
+        {
+            return urls;
+        }
+
+        /**
+         * @return keys of the plans configured with the repositories using the cache, and of the plans which used it
+         *         since the server started
+         */
+        @NotNull
+        public Set<String> getPlanKeys()
+        {
+            return planKeys;
+        }
+
+        public boolean isShallow()
+        {
+            return shallow;
+        }
+
+        public long getSize()
+        {
+            return size;
+        }
+
+        public int getPackCount()
+        {
+            return packCount;
+        }
+
+        public int getLooseObjectCount()
+        {
+            return looseObjectCount;
+        }
+
+        public int getRefCount()
+        {
+            return refCount;
+        }
+
+        public long getLastAccess()
+        {
+            return lastAccess;
+        }
+
+        public long getLastFetch()
+        {
+            return lastFetch;
+        }
+
+        public long getLastFetchDuration()
+        {
+            return lastFetchDuration;
+        }
+
+        public long getFetchCount()
+        {
+            return fetchCount;
+        }
+
+        public long getFailedFetchCount()
+        {
+            return failedFetchCount;
+        }
+
+        public long getLockCount()
+        {
+            return lockCount;
+        }
+
+        public long getTotalLockWait()
+        {
+            return totalLockWait;
+        }
+
+        public long getMaxLockWait()
+        {
+            return maxLockWait;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.atlassian.bamboo.plugins.git;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Thrown when a cache directory stays locked by another process for longer than the configured wait. The cache itself
+ * is most likely fine, so it must not be removed.
+ */
+public class CacheLockTimeoutException extends RuntimeException
+{
+    public CacheLockTimeoutException(@NotNull final String message)
+    {
+        super(message);
+    }
+}
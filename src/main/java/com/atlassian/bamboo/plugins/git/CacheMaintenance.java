@@ -0,0 +1,287 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.storage.file.FileBasedConfig;
+import org.eclipse.jgit.util.FS;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Compacts cache directories in the background during off-peak hours. Caches only ever receive incremental fetches,
+ * so without maintenance they accumulate small packs, loose objects and branches deleted from the remote repository.
+ *
+ * Caches used for change detection are registered and checked every {@value #CHECK_PERIOD_MINUTES} minutes.
+ * Registrations not renewed for {@link #INTERVAL_DAYS} days are dropped, so that repositories (and their credentials)
+ * of deleted or edited plans are not kept and not used for maintenance. Between
+ * {@link #START_HOUR} and {@link #END_HOUR} (local time, the window may span midnight) caches not maintained for
+ * {@link #INTERVAL_DAYS} days are maintained under the cache lock, see {@link GitOperationHelper#maintainCache}. Caches
+ * locked by another process are skipped until the next check. Automatic gc, which would otherwise run in the middle of
+ * a build's fetch, is disabled in caches while maintenance is enabled.
+ */
+public class CacheMaintenance
+{
+    private static final Logger log = Logger.getLogger(CacheMaintenance.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final boolean MAINTENANCE_ENABLED = new SystemProperty(false, "atlassian.bamboo.git.cache.maintenance", "GIT_CACHE_MAINTENANCE").getValue(true);
+    static final int INTERVAL_DAYS = new SystemProperty(false, "atlassian.bamboo.git.cache.maintenance.intervalDays", "GIT_CACHE_MAINTENANCE_INTERVAL_DAYS").getValue(7);
+    static final int START_HOUR = new SystemProperty(false, "atlassian.bamboo.git.cache.maintenance.startHour", "GIT_CACHE_MAINTENANCE_START_HOUR").getValue(1);
+    static final int END_HOUR = new SystemProperty(false, "atlassian.bamboo.git.cache.maintenance.endHour", "GIT_CACHE_MAINTENANCE_END_HOUR").getValue(5);
+
+    static final long CHECK_PERIOD_MINUTES = 15;
+    static final String MARKER_FILE_NAME = "bamboo-maintenance";
+    static final String BORROWED_FILE_NAME = "bamboo-borrowed";
+
+    private static final ConcurrentMap<String, Registration> registrations = Maps.newConcurrentMap();
+    private static final AtomicBoolean started = new AtomicBoolean();
+    private static final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("git-cache-maintenance-%d").setDaemon(true).build());
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    private CacheMaintenance()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * Registers the cache directory of the repository for maintenance. The repository registered last is used to
+     * maintain a cache shared by several repositories.
+     */
+    public static void register(@NotNull final GitRepository repository, @NotNull final File cacheDirectory)
+    {
+        register(repository, cacheDirectory, System.currentTimeMillis());
+    }
+
+    static void register(@NotNull final GitRepository repository, @NotNull final File cacheDirectory, final long now)
+    {
+        if (!MAINTENANCE_ENABLED)
+        {
+            return;
+        }
+        registrations.put(cacheDirectory.getAbsolutePath(), new Registration(repository, now));
+        if (started.compareAndSet(false, true))
+        {
+            executor.scheduleWithFixedDelay(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        maintainDueCaches();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        log.warn("Unable to maintain caches", e);
+                    }
+                }
+            }, CHECK_PERIOD_MINUTES, CHECK_PERIOD_MINUTES, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Sets {@code gc.auto} to 0 in the cache repository, so that fetches do not start gc.
+     */
+    public static void disableAutoGc(@NotNull final File cacheDirectory)
+    {
+        if (!MAINTENANCE_ENABLED)
+        {
+            return;
+        }
+        final FileBasedConfig config = new FileBasedConfig(new File(new File(cacheDirectory, Constants.DOT_GIT), Constants.CONFIG), FS.DETECTED);
+        try
+        {
+            config.load();
+            if (config.getInt("gc", null, "auto", -1) != 0)
+            {
+                config.setInt("gc", null, "auto", 0);
+                config.save();
+            }
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to disable automatic gc in " + cacheDirectory, e);
+        }
+        catch (ConfigInvalidException e)
+        {
+            log.warn("Unable to disable automatic gc in " + cacheDirectory, e);
+        }
+    }
+
+    /**
+     * Records that a source directory borrows objects from the cache through its alternates, see {@link #isBorrowed}.
+     */
+    public static void markBorrowed(@NotNull final File cacheDirectory)
+    {
+        final File borrowedFile = getBorrowedFile(cacheDirectory);
+        if (borrowedFile.exists() || !borrowedFile.getParentFile().isDirectory())
+        {
+            return;
+        }
+        try
+        {
+            FileUtils.touch(borrowedFile);
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to mark " + cacheDirectory + " as borrowed", e);
+        }
+    }
+
+    /**
+     * Source directories borrowing objects from the cache may reference objects the cache no longer does (e.g. commits
+     * of deleted branches or of forced pushes), so maintenance never prunes unreachable objects of borrowed caches.
+     *
+     * @return true if a source directory has ever borrowed objects from the cache
+     */
+    static boolean isBorrowed(@NotNull final File cacheDirectory)
+    {
+        return getBorrowedFile(cacheDirectory).exists();
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    private static void maintainDueCaches()
+    {
+        dropStaleRegistrations(System.currentTimeMillis());
+        for (Map.Entry<String, Registration> entry : registrations.entrySet())
+        {
+            if (!isOffPeak(Calendar.getInstance().get(Calendar.HOUR_OF_DAY)))
+            {
+                return;
+            }
+            final File cacheDirectory = new File(entry.getKey());
+            if (isDue(cacheDirectory, System.currentTimeMillis()))
+            {
+                maintain(entry.getValue().repository, cacheDirectory);
+            }
+        }
+    }
+
+    /**
+     * Drops registrations of evicted caches and registrations not renewed within the interval, both are registered
+     * again when used.
+     */
+    static void dropStaleRegistrations(final long now)
+    {
+        for (Map.Entry<String, Registration> entry : registrations.entrySet())
+        {
+            if (now - entry.getValue().time >= TimeUnit.DAYS.toMillis(INTERVAL_DAYS) || !new File(entry.getKey()).isDirectory())
+            {
+                registrations.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    static boolean isRegistered(@NotNull final File cacheDirectory)
+    {
+        return registrations.containsKey(cacheDirectory.getAbsolutePath());
+    }
+
+    static boolean isOffPeak(final int hour)
+    {
+        if (START_HOUR <= END_HOUR)
+        {
+            return hour >= START_HOUR && hour < END_HOUR;
+        }
+        return hour >= START_HOUR || hour < END_HOUR;
+    }
+
+    static boolean isDue(@NotNull final File cacheDirectory, final long now)
+    {
+        final File markerFile = getMarkerFile(cacheDirectory);
+        return !markerFile.exists() || now - markerFile.lastModified() >= TimeUnit.DAYS.toMillis(INTERVAL_DAYS);
+    }
+
+    /**
+     * @return false if the cache is in use by another process or maintenance failed
+     */
+    static boolean maintain(@NotNull final GitRepository repository, @NotNull final File cacheDirectory)
+    {
+        try
+        {
+            return GitCacheDirectory.getHousekeepingLock(cacheDirectory).withLock(new Callable<Boolean>()
+            {
+                public Boolean call() throws Exception
+                {
+                    if (!cacheDirectory.isDirectory())
+                    {
+                        return false;
+                    }
+                    final long start = System.currentTimeMillis();
+                    final long sizeBefore = FileUtils.sizeOfDirectory(cacheDirectory);
+                    try
+                    {
+                        repository.maintainCache(cacheDirectory);
+                    }
+                    finally
+                    {
+                        // failing caches are retried after the interval, not on every check
+                        FileUtils.touch(getMarkerFile(cacheDirectory));
+                    }
+                    if (GitCacheDirectory.COMMIT_GRAPH_INDEX_ENABLED)
+                    {
+                        // rebuilt without the commits of deleted branches
+                        CommitGraphIndex.delete(cacheDirectory);
+                        CommitGraphIndex.updateQuietly(cacheDirectory);
+                    }
+                    log.info("Maintained " + cacheDirectory + " in " + (System.currentTimeMillis() - start) + "ms, size reduced from "
+                             + FileUtils.byteCountToDisplaySize(sizeBefore) + " to " + FileUtils.byteCountToDisplaySize(FileUtils.sizeOfDirectory(cacheDirectory)));
+                    return true;
+                }
+            });
+        }
+        catch (CacheLockTimeoutException e)
+        {
+            log.debug("Not maintaining " + cacheDirectory + ", it is in use by another process");
+            return false;
+        }
+        catch (Exception e)
+        {
+            log.warn("Unable to maintain " + cacheDirectory, e);
+            return false;
+        }
+    }
+
+    @NotNull
+    static File getMarkerFile(@NotNull final File cacheDirectory)
+    {
+        return new File(new File(cacheDirectory, Constants.DOT_GIT), MARKER_FILE_NAME);
+    }
+
+    @NotNull
+    private static File getBorrowedFile(@NotNull final File cacheDirectory)
+    {
+        return new File(new File(cacheDirectory, Constants.DOT_GIT), BORROWED_FILE_NAME);
+    }
+
+    private static class Registration
+    {
+        private final GitRepository repository;
+        private final long time;
+
+        private Registration(@NotNull final GitRepository repository, final long time)
+        {
+            this.repository = repository;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.utils.Pair;
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches pushed commits into change detection caches in the background, so that the next change detection finds them
+ * locally instead of fetching while the plan waits.
+ *
+ * Requests for the same cache directory and branch are coalesced while they wait for a thread: a push arriving while
+ * a fetch is queued is served by that fetch. Fetches of the same cache directory and branch start at most once per
+ * {@link #MIN_INTERVAL_MILLIS}, later requests are delayed, so a burst of pushes results in a bounded number of fetches.
+ * Fetches run under the cache lock like any other cache operation.
+ */
+public class CachePrefetcher
+{
+    private static final Logger log = Logger.getLogger(CachePrefetcher.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final int PREFETCH_THREADS = new SystemProperty(false, "atlassian.bamboo.git.prefetch.threads", "GIT_PREFETCH_THREADS").getValue(2);
+
+    /**
+     * Minimum time between the starts of two fetches of the same cache directory and branch.
+     */
+    static final long MIN_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(
+            new SystemProperty(false, "atlassian.bamboo.git.prefetch.minIntervalSeconds", "GIT_PREFETCH_MIN_INTERVAL_SECONDS").getValue(15));
+
+    private static final ScheduledExecutorService executor = createExecutor();
+    private static final Set<String> queued = Sets.newSetFromMap(Maps.<String, Boolean>newConcurrentMap());
+    private static final ConcurrentMap<String, Long> lastStarted = Maps.newConcurrentMap();
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    private CachePrefetcher()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * Handles a push to a remote repository: drops cached ref advertisements of the repositories using it and schedules
+     * fetches for the ones building the pushed ref.
+     *
+     * @param urls      URLs of the pushed repository, any of them may match
+     * @param ref       pushed ref, null if unknown (all repositories using the remote are fetched)
+     * @param revision  pushed revision, null if unknown or the ref has been deleted; only passed to the repositories
+     *                  building the pushed ref, as other branches do not point to it
+     * @return number of repositories using the remote and number of scheduled fetches
+     */
+    @NotNull
+    public static Pair<Integer, Integer> onPush(@NotNull final Iterable<GitRepository> repositories, @NotNull final Collection<String> urls,
+                                                @Nullable final String ref, @Nullable final String revision)
+    {
+        int matched = 0;
+        int scheduled = 0;
+        for (GitRepository repository : repositories)
+        {
+            if (!isSameRemote(repository, urls))
+            {
+                continue;
+            }
+            matched++;
+            RemoteRefsCache.invalidate(repository.getSubstitutedAccessData());
+            final boolean tracksRef = ref != null && repository.tracksRef(ref);
+            if ((ref == null || tracksRef) && schedule(repository, tracksRef ? revision : null))
+            {
+                scheduled++;
+            }
+        }
+        log.info("Push of " + ref + " to " + urls + ": " + matched + " repositories, " + scheduled + " fetches scheduled");
+        return new Pair<Integer, Integer>(matched, scheduled);
+    }
+
+    /**
+     * Schedules a fetch of the repository's branch into its cache directory.
+     *
+     * @param revision pushed revision, the fetch is skipped if it is already in the cache
+     * @return false if a fetch into the same cache directory and branch is already queued
+     */
+    static boolean schedule(@NotNull final GitRepository repository, @Nullable final String revision)
+    {
+        final GitRepository.GitRepositoryAccessData accessData = repository.getSubstitutedAccessData();
+        final String key = repository.getCacheDirectory(accessData).getAbsolutePath() + '\0' + accessData.branch;
+        if (!queued.add(key))
+        {
+            return false;
+        }
+        executor.schedule(new Runnable()
+        {
+            public void run()
+            {
+                // later pushes must trigger another fetch once this one has started
+                lastStarted.put(key, System.currentTimeMillis());
+                queued.remove(key);
+                try
+                {
+                    repository.prefetch(revision);
+                }
+                catch (Exception e)
+                {
+                    log.warn("Unable to prefetch " + revision + " of " + accessData.repositoryUrl + " branch " + accessData.branch, e);
+                }
+            }
+        }, getDelayMillis(key, System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    /**
+     * @return time to wait before fetching, so that fetches with the key start at most once per interval
+     */
+    static long getDelayMillis(@NotNull final String key, final long now)
+    {
+        final Long started = lastStarted.get(key);
+        return started != null ? Math.max(0, started + MIN_INTERVAL_MILLIS - now) : 0;
+    }
+
+    private static boolean isSameRemote(@NotNull final GitRepository repository, @NotNull final Collection<String> urls)
+    {
+        for (String url : urls)
+        {
+            if (repository.isSameRemote(url))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @NotNull
+    private static ScheduledExecutorService createExecutor()
+    {
+        return new ScheduledThreadPoolExecutor(Math.max(1, PREFETCH_THREADS),
+                                               new ThreadFactoryBuilder().setNameFormat("git-cache-prefetch-%d").setDaemon(true).build());
+    }
+}
@@ -0,0 +1,162 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.repository.IncludeExcludeAwareRepository;
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Plan's include/exclude file pattern applied while extracting changesets, so files Bamboo would filter out later are
+ * not listed, and commits touching only such files are not reported at all.
+ *
+ * Patterns are regular expressions matched against whole paths, as in change detection. For include patterns starting
+ * with a literal directory (e.g. {@code modules/core/.*}) the directory is also used to restrict the history walk
+ * itself (a JGit path filter or a {@code git log} pathspec), so commits outside of it are never diffed.
+ *
+ * A filter is created for a single change detection, it also records how many commits it has filtered out.
+ */
+public class ChangesetPathFilter
+{
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    private static final String REGEX_METACHARACTERS = "\\.[]{}()*+?^$|";
+    private static final String REGEX_QUANTIFIERS = "*+?{";
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private final Pattern pattern;
+    private final boolean include;
+    private final String directory;
+    private int filteredOutCommits;
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    ChangesetPathFilter(@NotNull final Pattern pattern, final boolean include)
+    {
+        this.pattern = pattern;
+        this.include = include;
+        this.directory = include ? getLiteralDirectory(pattern.pattern()) : null;
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * @param option one of {@link IncludeExcludeAwareRepository#FILTER_PATTERN_INCLUDE} or
+     *               {@link IncludeExcludeAwareRepository#FILTER_PATTERN_EXCLUDE}, anything else means no filtering
+     * @return filter, or null if there is nothing to filter or the pattern is invalid (it is then reported by change
+     *         detection)
+     */
+    @Nullable
+    public static ChangesetPathFilter create(@Nullable final String option, @Nullable final String regex)
+    {
+        final boolean include = IncludeExcludeAwareRepository.FILTER_PATTERN_INCLUDE.equals(option);
+        if (!include && !IncludeExcludeAwareRepository.FILTER_PATTERN_EXCLUDE.equals(option) || StringUtils.isBlank(regex))
+        {
+            return null;
+        }
+        try
+        {
+            return new ChangesetPathFilter(Pattern.compile(regex), include);
+        }
+        catch (PatternSyntaxException e)
+        {
+            return null;
+        }
+    }
+
+    public boolean isIncluded(@NotNull final String path)
+    {
+        return pattern.matcher(path).matches() == include;
+    }
+
+    /**
+     * @return directory (without trailing slash) containing all included paths, null if not known
+     */
+    @Nullable
+    public String getDirectory()
+    {
+        return directory;
+    }
+
+    public void recordFilteredOutCommits(final int commits)
+    {
+        filteredOutCommits += commits;
+    }
+
+    /**
+     * @return number of commits left out of extracted changesets because none of their files is included
+     */
+    public int getFilteredOutCommits()
+    {
+        return filteredOutCommits;
+    }
+
+    /**
+     * @return JGit filter passing subtrees within {@link #getDirectory()} and included files
+     */
+    @NotNull
+    public TreeFilter toTreeFilter()
+    {
+        final TreeFilter patternFilter = new TreeFilter()
+        {
+            @Override
+            public boolean include(final TreeWalk walker)
+            {
+                return walker.isSubtree() || isIncluded(walker.getPathString());
+            }
+
+            @Override
+            public boolean shouldBeRecursive()
+            {
+                return true;
+            }
+
+            @Override
+            public TreeFilter clone()
+            {
+                return this;
+            }
+
+            @Override
+            public String toString()
+            {
+                return (include ? "INCLUDE(" : "EXCLUDE(") + pattern.pattern() + ")";
+            }
+        };
+        return directory != null ? AndTreeFilter.create(PathFilter.create(directory), patternFilter) : patternFilter;
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    /**
+     * @return the longest directory every match of the regex must be in, null if the regex does not start with a
+     *         literal directory
+     */
+    @Nullable
+    static String getLiteralDirectory(@NotNull final String regex)
+    {
+        if (regex.indexOf('|') >= 0)
+        {
+            return null; // alternatives may match other directories
+        }
+        final String literal = StringUtils.removeStart(regex, "^");
+        int end = 0;
+        while (end < literal.length() && REGEX_METACHARACTERS.indexOf(literal.charAt(end)) < 0)
+        {
+            end++;
+        }
+        if (end < literal.length() && REGEX_QUANTIFIERS.indexOf(literal.charAt(end)) >= 0)
+        {
+            end--; // the quantifier applies to the last literal character
+        }
+        final int lastSlash = literal.lastIndexOf('/', end - 1);
+        return lastSlash > 0 ? literal.substring(0, lastSlash) : null;
+    }
+}
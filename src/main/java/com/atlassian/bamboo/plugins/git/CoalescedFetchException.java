@@ -0,0 +1,16 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.repository.RepositoryException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Reports the failure of a fetch into a cache directory that was performed by another build while this one was waiting
+ * for the cache lock. Such a failure says nothing about the state of the cache, so the cache must not be removed.
+ */
+public class CoalescedFetchException extends RepositoryException
+{
+    public CoalescedFetchException(@NotNull final String message, @NotNull final Throwable cause)
+    {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,146 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.commit.CommitFileImpl;
+import com.atlassian.bamboo.commit.CommitImpl;
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.commons.lang.StringUtils;
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Limits the number of file entries created while extracting changesets, per commit and per extraction.
+ *
+ * When a commit does not fit in the budget only its first files are listed, {@link #TRUNCATED_COMMENT_SUFFIX} is
+ * appended to its comment so that the changes page shows the list is incomplete, and the commit is flagged as
+ * truncated (see {@link #getTruncatedCommits()}). Listed entries are always real paths, and callers apply the plan's
+ * include/exclude pattern before adding files, so the files kept for a commit touching included files are included
+ * ones.
+ */
+@NotThreadSafe
+public class CommitFileListBudget
+{
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final int MAX_FILES_PER_COMMIT = new SystemProperty(false, "atlassian.bamboo.git.changeset.maxFilesPerCommit", "GIT_CHANGESET_MAX_FILES_PER_COMMIT").getValue(1000);
+    static final int MAX_FILES = new SystemProperty(false, "atlassian.bamboo.git.changeset.maxFiles", "GIT_CHANGESET_MAX_FILES").getValue(10000);
+
+    /**
+     * Appended to the comment of truncated commits, with the number of listed files.
+     */
+    static final String TRUNCATED_COMMENT_SUFFIX = "\n[Too many changed files, only the first %d are listed]";
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private final int maxFilesPerCommit;
+    private int remainingFiles;
+    private final Set<String> truncatedCommits = Sets.newLinkedHashSet();
+    private int discardedCommits;
+    private final Interner<String> paths = Interners.newStrongInterner();
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    public CommitFileListBudget()
+    {
+        this(MAX_FILES_PER_COMMIT, MAX_FILES);
+    }
+
+    CommitFileListBudget(final int maxFilesPerCommit, final int maxFiles)
+    {
+        this.maxFilesPerCommit = maxFilesPerCommit;
+        this.remainingFiles = maxFiles;
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * Starts collecting files of the next commit. Files of the previous commit must have been added to it before.
+     */
+    @NotNull
+    public CommitFiles newCommit(@NotNull final String changeSetId)
+    {
+        return new CommitFiles(changeSetId, Math.max(1, Math.min(maxFilesPerCommit, remainingFiles)));
+    }
+
+    /**
+     * @return ids of the commits whose file lists have been truncated, in the order they were added
+     */
+    @NotNull
+    public Set<String> getTruncatedCommits()
+    {
+        return truncatedCommits;
+    }
+
+    /**
+     * @return number of commits left out because all their files have been filtered out
+     */
+    public int getDiscardedCommits()
+    {
+        return discardedCommits;
+    }
+
+    // ---------------------------------------------------------------------------------------------------- Inner classes
+
+    @NotThreadSafe
+    public class CommitFiles
+    {
+        private final String changeSetId;
+        private final int capacity;
+        private final List<String> files = Lists.newArrayList();
+        private boolean truncated;
+
+        private CommitFiles(@NotNull final String changeSetId, final int capacity)
+        {
+            this.changeSetId = changeSetId;
+            this.capacity = capacity;
+        }
+
+        /**
+         * @return false if the file is not listed because the commit's budget is used up, further files will not be
+         *         listed either
+         */
+        public boolean add(@NotNull final String path)
+        {
+            if (files.size() < capacity)
+            {
+                files.add(paths.intern(path));
+                return true;
+            }
+            truncated = true;
+            return false;
+        }
+
+        public boolean isEmpty()
+        {
+            return files.isEmpty();
+        }
+
+        /**
+         * Records that the commit is not reported, as none of its files passed the path filter.
+         */
+        public void discard()
+        {
+            discardedCommits++;
+        }
+
+        public void addTo(@NotNull final CommitImpl commit)
+        {
+            for (String file : files)
+            {
+                commit.addFile(new CommitFileImpl(changeSetId, file));
+            }
+            remainingFiles -= files.size();
+            if (truncated)
+            {
+                commit.setComment(StringUtils.defaultString(commit.getComment()) + String.format(TRUNCATED_COMMENT_SUFFIX, files.size()));
+                truncatedCommits.add(changeSetId);
+            }
+        }
+    }
+}
@@ -0,0 +1,829 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.SystemUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Persistent commit graph of a cache repository: for every commit its parents, generation number and commit time.
+ *
+ * The index is a chain of layer files inside the repository's git directory, listed oldest first in the
+ * {@value #INDEX_FILE_NAME} file. Each layer holds fixed size records sorted by commit id, so it can be memory-mapped
+ * and searched without inflating any object, and refers to parents by their position in the whole chain. After each
+ * fetch the commits reachable from refs that are not indexed yet are written as a new layer; already indexed commits
+ * are never parsed again. To keep the number of layers logarithmic, top layers less than {@value #MERGE_FACTOR} times
+ * larger than the new one are merged into it, so the cost of an update is proportional to the number of new commits
+ * (amortised) rather than to the size of the history. Generation numbers (1 for root commits, 1 + max of parents
+ * otherwise) let ancestry questions stop as soon as they descend below the commit they look for.
+ *
+ * Shallow repositories are not indexed: their boundary commits would be recorded without parents, and with wrong
+ * generation numbers, which deepening the repository later would not correct. The index of a repository that becomes
+ * shallow is removed on the next update, and ignored until then.
+ *
+ * Commits are never removed from the index, which is fine as the graph of existing commits never changes. Queries
+ * about commits that are not indexed return "unknown" and callers fall back to walking the repository.
+ *
+ * Opened indexes are kept per repository directory and reused by later queries, so that only the first query after an
+ * update reads the chain and maps the layers. They are dropped when the index is written or deleted, or when the chain
+ * file changes otherwise.
+ */
+public class CommitGraphIndex
+{
+    private static final Logger log = Logger.getLogger(CommitGraphIndex.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final String INDEX_FILE_NAME = "bamboo-commit-graph";
+
+    private static final String LAYER_PREFIX = INDEX_FILE_NAME + "-";
+    private static final String LAYER_SUFFIX = ".layer";
+
+    static final int MERGE_FACTOR = 2;
+
+    private static final int MAGIC = 0x42434731; // BCG1
+    private static final int HEADER_SIZE = 12; // magic, commit count, parent count
+    private static final int RECORD_SIZE = Constants.OBJECT_ID_LENGTH + 16; // id, commit time, generation, parent count, first parent offset
+
+    private static final int TARGET = 1;
+    private static final int EXCLUDED = 2;
+
+    /**
+     * Opened indexes per canonical repository directory.
+     */
+    private static final ConcurrentMap<File, CommitGraphIndex> openedIndexes = Maps.newConcurrentMap();
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private final List<String> layerNames;
+    private final List<Layer> layers;
+    private final int commitCount;
+    private final long chainLastModified;
+    private final long chainLength;
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    private CommitGraphIndex(@NotNull final List<String> layerNames, @NotNull final List<Layer> layers, final long chainLastModified, final long chainLength)
+    {
+        this.layerNames = layerNames;
+        this.layers = layers;
+        final Layer top = layers.get(layers.size() - 1);
+        this.commitCount = top.base + top.commitCount;
+        this.chainLastModified = chainLastModified;
+        this.chainLength = chainLength;
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * @return index of the repository, null if there is none, it cannot be read or the repository is shallow
+     */
+    @Nullable
+    public static CommitGraphIndex open(@NotNull final File repositoryDirectory)
+    {
+        final File key = GitCacheDirectory.getCanonicalFile(repositoryDirectory);
+        final File indexFile = getIndexFile(repositoryDirectory);
+        if (!indexFile.isFile() || isShallow(repositoryDirectory))
+        {
+            openedIndexes.remove(key);
+            return null;
+        }
+        final CommitGraphIndex opened = openedIndexes.get(key);
+        if (opened != null && opened.chainLastModified == indexFile.lastModified() && opened.chainLength == indexFile.length())
+        {
+            return opened;
+        }
+        try
+        {
+            final CommitGraphIndex index = read(indexFile);
+            openedIndexes.put(key, index);
+            return index;
+        }
+        catch (IOException e)
+        {
+            openedIndexes.remove(key);
+            log.warn("Ignoring unreadable commit graph index " + indexFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Adds commits reachable from the repository's refs that are not indexed yet, or removes the index of a shallow
+     * repository. Must be called with the cache lock held.
+     */
+    public static void update(@NotNull final File repositoryDirectory) throws IOException
+    {
+        if (isShallow(repositoryDirectory))
+        {
+            delete(repositoryDirectory);
+            return;
+        }
+        final CommitGraphIndex existing = open(repositoryDirectory);
+        final FileRepository repository = new FileRepository(new File(repositoryDirectory, Constants.DOT_GIT));
+        try
+        {
+            final Map<ObjectId, RevCommit> newCommits = findNewCommits(repository, existing);
+            if (newCommits.isEmpty())
+            {
+                return;
+            }
+            final long start = System.currentTimeMillis();
+            write(repositoryDirectory, existing, newCommits);
+            log.debug("Added " + newCommits.size() + " commits to commit graph index of " + repositoryDirectory + " in " + (System.currentTimeMillis() - start) + "ms");
+        }
+        finally
+        {
+            repository.close();
+        }
+    }
+
+    /**
+     * Same as {@link #update} but only logs failures, as the index is an optimisation.
+     */
+    public static void updateQuietly(@NotNull final File repositoryDirectory)
+    {
+        try
+        {
+            update(repositoryDirectory);
+        }
+        catch (Exception e)
+        {
+            log.warn("Unable to update commit graph index of " + repositoryDirectory + ", removing it", e);
+            delete(repositoryDirectory);
+        }
+    }
+
+    /**
+     * Removes the index with all its layers. Must be called with the cache lock held.
+     */
+    public static void delete(@NotNull final File repositoryDirectory)
+    {
+        close(repositoryDirectory);
+        FileUtils.deleteQuietly(getIndexFile(repositoryDirectory));
+        deleteLayersExcept(repositoryDirectory, Collections.<String>emptyList());
+    }
+
+    /**
+     * Drops the opened index of a repository directory that is being removed, so that its layers are not kept mapped.
+     */
+    public static void close(@NotNull final File repositoryDirectory)
+    {
+        openedIndexes.remove(GitCacheDirectory.getCanonicalFile(repositoryDirectory));
+    }
+
+    public boolean contains(@NotNull final AnyObjectId commitId)
+    {
+        return find(commitId) >= 0;
+    }
+
+    /**
+     * @return true if ancestor is reachable from descendant (or is the same commit), null if either is not indexed
+     */
+    @Nullable
+    public Boolean isAncestor(@NotNull final AnyObjectId ancestor, @NotNull final AnyObjectId descendant)
+    {
+        final int ancestorIndex = find(ancestor);
+        final int descendantIndex = find(descendant);
+        if (ancestorIndex < 0 || descendantIndex < 0)
+        {
+            return null;
+        }
+        if (ancestorIndex == descendantIndex)
+        {
+            return true;
+        }
+
+        final int ancestorGeneration = getGeneration(ancestorIndex);
+        final BitSet seen = new BitSet(commitCount);
+        final Deque<Integer> pending = new ArrayDeque<Integer>();
+        pending.push(descendantIndex);
+        while (!pending.isEmpty())
+        {
+            final int commit = pending.pop();
+            final int parentCount = getParentCount(commit);
+            for (int i = 0; i < parentCount; i++)
+            {
+                final int parent = getParent(commit, i);
+                if (parent == ancestorIndex)
+                {
+                    return true;
+                }
+                // a commit can only reach commits with lower generation numbers
+                if (!seen.get(parent) && getGeneration(parent) > ancestorGeneration)
+                {
+                    seen.set(parent);
+                    pending.push(parent);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Counts commits reachable from target but not from excluded, like {@code git rev-list --count excluded..target}.
+     *
+     * @return the count, -1 if either commit is not indexed
+     */
+    public int countCommits(@NotNull final AnyObjectId target, @Nullable final AnyObjectId excluded)
+    {
+        final int targetIndex = find(target);
+        final int excludedIndex = excluded != null ? find(excluded) : -1;
+        if (targetIndex < 0 || excluded != null && excludedIndex < 0)
+        {
+            return -1;
+        }
+
+        // commits are visited in decreasing generation order, so all children of a commit are visited before it
+        // and its flags are final when it is taken from the queue
+        final Map<Integer, Integer> flags = Maps.newHashMap();
+        final PriorityQueue<Integer> queue = new PriorityQueue<Integer>(64, new Comparator<Integer>()
+        {
+            public int compare(final Integer o1, final Integer o2)
+            {
+                final int g1 = getGeneration(o1);
+                final int g2 = getGeneration(o2);
+                return g1 > g2 ? -1 : g1 < g2 ? 1 : 0;
+            }
+        });
+        int interesting = 0;
+
+        flags.put(targetIndex, TARGET);
+        queue.add(targetIndex);
+        interesting++;
+        if (excludedIndex >= 0)
+        {
+            if (excludedIndex == targetIndex)
+            {
+                return 0;
+            }
+            flags.put(excludedIndex, EXCLUDED);
+            queue.add(excludedIndex);
+        }
+
+        int count = 0;
+        while (interesting > 0)
+        {
+            final int commit = queue.poll();
+            final int commitFlags = flags.remove(commit);
+            final boolean isExcluded = (commitFlags & EXCLUDED) != 0;
+            if (!isExcluded)
+            {
+                interesting--;
+                count++;
+            }
+
+            final int parentCount = getParentCount(commit);
+            for (int i = 0; i < parentCount; i++)
+            {
+                final int parent = getParent(commit, i);
+                final Integer parentFlags = flags.get(parent);
+                if (parentFlags == null)
+                {
+                    flags.put(parent, isExcluded ? EXCLUDED : TARGET);
+                    queue.add(parent);
+                    if (!isExcluded)
+                    {
+                        interesting++;
+                    }
+                }
+                else if (isExcluded && (parentFlags & EXCLUDED) == 0)
+                {
+                    flags.put(parent, parentFlags | EXCLUDED);
+                    interesting--;
+                }
+            }
+        }
+        return count;
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    @NotNull
+    static File getIndexFile(@NotNull final File repositoryDirectory)
+    {
+        return new File(new File(repositoryDirectory, Constants.DOT_GIT), INDEX_FILE_NAME);
+    }
+
+    /**
+     * @return number of layers of the index, for tests
+     */
+    int getLayerCount()
+    {
+        return layers.size();
+    }
+
+    private static boolean isShallow(@NotNull final File repositoryDirectory)
+    {
+        return new File(new File(repositoryDirectory, Constants.DOT_GIT), "shallow").length() > 0;
+    }
+
+    private int find(@NotNull final AnyObjectId commitId)
+    {
+        return find(commitId, layers.size());
+    }
+
+    /**
+     * @return position of the commit in the first layerCount layers, -1 if it is not there
+     */
+    private int find(@NotNull final AnyObjectId commitId, final int layerCount)
+    {
+        final byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+        for (int i = layerCount - 1; i >= 0; i--)
+        {
+            final Layer layer = layers.get(i);
+            final int index = layer.find(commitId, id);
+            if (index >= 0)
+            {
+                return layer.base + index;
+            }
+        }
+        return -1;
+    }
+
+    @NotNull
+    private Layer getLayer(final int position)
+    {
+        for (int i = layers.size() - 1; i > 0; i--)
+        {
+            if (position >= layers.get(i).base)
+            {
+                return layers.get(i);
+            }
+        }
+        return layers.get(0);
+    }
+
+    @NotNull
+    private ObjectId getId(final int position)
+    {
+        final Layer layer = getLayer(position);
+        final byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+        layer.readId(position - layer.base, id);
+        return ObjectId.fromRaw(id);
+    }
+
+    private int getCommitTime(final int position)
+    {
+        final Layer layer = getLayer(position);
+        return layer.getField(position - layer.base, 0);
+    }
+
+    private int getGeneration(final int position)
+    {
+        final Layer layer = getLayer(position);
+        return layer.getField(position - layer.base, 1);
+    }
+
+    private int getParentCount(final int position)
+    {
+        final Layer layer = getLayer(position);
+        return layer.getField(position - layer.base, 2);
+    }
+
+    private int getParent(final int position, final int parent)
+    {
+        final Layer layer = getLayer(position);
+        return layer.getParent(position - layer.base, parent);
+    }
+
+    @NotNull
+    private static CommitGraphIndex read(@NotNull final File indexFile) throws IOException
+    {
+        // taken before reading, a chain replaced meanwhile is read again by the next query
+        final long lastModified = indexFile.lastModified();
+        final long length = indexFile.length();
+        final List<String> layerNames = Lists.newArrayList();
+        final List<Layer> layers = Lists.newArrayList();
+        int base = 0;
+        @SuppressWarnings("unchecked")
+        final List<String> lines = FileUtils.readLines(indexFile);
+        for (String line : lines)
+        {
+            final String layerName = line.trim();
+            if (layerName.isEmpty())
+            {
+                continue;
+            }
+            if (!isLayerName(layerName))
+            {
+                throw new IOException("Not a commit graph index");
+            }
+            final Layer layer = new Layer(map(new File(indexFile.getParentFile(), layerName)), base);
+            layerNames.add(layerName);
+            layers.add(layer);
+            base += layer.commitCount;
+        }
+        if (layers.isEmpty())
+        {
+            throw new IOException("Empty commit graph index");
+        }
+        return new CommitGraphIndex(layerNames, layers, lastModified, length);
+    }
+
+    private static boolean isLayerName(@NotNull final String name)
+    {
+        return name.startsWith(LAYER_PREFIX) && name.endsWith(LAYER_SUFFIX) && name.indexOf('/') < 0 && name.indexOf('\\') < 0;
+    }
+
+    @NotNull
+    private static ByteBuffer map(@NotNull final File layerFile) throws IOException
+    {
+        if (SystemUtils.IS_OS_WINDOWS)
+        {
+            // a mapped file cannot be deleted on Windows until the mapping is garbage collected, which would break
+            // removal of the cache directory
+            return ByteBuffer.wrap(FileUtils.readFileToByteArray(layerFile));
+        }
+        final RandomAccessFile file = new RandomAccessFile(layerFile, "r");
+        try
+        {
+            return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    /**
+     * Walks from all refs down to commits that are already indexed.
+     */
+    @NotNull
+    private static Map<ObjectId, RevCommit> findNewCommits(@NotNull final FileRepository repository, @Nullable final CommitGraphIndex existing) throws IOException
+    {
+        final Map<ObjectId, RevCommit> newCommits = Maps.newHashMap();
+        final RevWalk revWalk = new RevWalk(repository);
+        revWalk.setRetainBody(false);
+        try
+        {
+            final Deque<RevCommit> pending = new ArrayDeque<RevCommit>();
+            for (Ref ref : repository.getAllRefs().values())
+            {
+                if (ref.getObjectId() == null || !repository.hasObject(ref.getObjectId()))
+                {
+                    continue;
+                }
+                final RevObject object = revWalk.peel(revWalk.parseAny(ref.getObjectId()));
+                if (object instanceof RevCommit && isNew((RevCommit) object, existing, newCommits))
+                {
+                    newCommits.put(object.copy(), (RevCommit) object);
+                    pending.push((RevCommit) object);
+                }
+            }
+            while (!pending.isEmpty())
+            {
+                // fails if a parent is missing, an index without it would give wrong answers
+                final RevCommit commit = pending.pop();
+                revWalk.parseHeaders(commit);
+                for (RevCommit parent : commit.getParents())
+                {
+                    if (isNew(parent, existing, newCommits))
+                    {
+                        newCommits.put(parent.copy(), parent);
+                        pending.push(parent);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            revWalk.release();
+        }
+        return newCommits;
+    }
+
+    private static boolean isNew(@NotNull final RevCommit commit, @Nullable final CommitGraphIndex existing, @NotNull final Map<ObjectId, RevCommit> newCommits)
+    {
+        return !newCommits.containsKey(commit) && (existing == null || !existing.contains(commit));
+    }
+
+    /**
+     * Writes the new commits as a new top layer, merged with the existing top layers that are less than
+     * {@link #MERGE_FACTOR} times larger, and replaces the chain file atomically. Only the merged layers are rewritten.
+     */
+    private static void write(@NotNull final File repositoryDirectory, @Nullable final CommitGraphIndex existing,
+                              @NotNull final Map<ObjectId, RevCommit> newCommits) throws IOException
+    {
+        int keptLayers = existing != null ? existing.layers.size() : 0;
+        int layerCount = newCommits.size();
+        while (keptLayers > 0 && existing.layers.get(keptLayers - 1).commitCount < MERGE_FACTOR * layerCount)
+        {
+            keptLayers--;
+            layerCount += existing.layers.get(keptLayers).commitCount;
+        }
+        final int base = existing == null ? 0 : keptLayers < existing.layers.size() ? existing.layers.get(keptLayers).base : existing.commitCount;
+
+        final List<Record> records = Lists.newArrayListWithCapacity(layerCount);
+        if (existing != null)
+        {
+            for (int position = base; position < existing.commitCount; position++)
+            {
+                final ObjectId[] parents = new ObjectId[existing.getParentCount(position)];
+                for (int i = 0; i < parents.length; i++)
+                {
+                    parents[i] = existing.getId(existing.getParent(position, i));
+                }
+                records.add(new Record(existing.getId(position), existing.getCommitTime(position), existing.getGeneration(position), parents));
+            }
+        }
+        final Map<ObjectId, Integer> generations = computeGenerations(newCommits, existing);
+        for (RevCommit commit : newCommits.values())
+        {
+            final ObjectId[] parents = new ObjectId[commit.getParentCount()];
+            for (int i = 0; i < parents.length; i++)
+            {
+                parents[i] = commit.getParent(i).copy();
+            }
+            records.add(new Record(commit.copy(), commit.getCommitTime(), generations.get(commit), parents));
+        }
+        Collections.sort(records);
+
+        final Map<ObjectId, Integer> positions = Maps.newHashMapWithExpectedSize(records.size());
+        int parentCount = 0;
+        for (Record record : records)
+        {
+            positions.put(record.id, base + positions.size());
+            parentCount += record.parents.length;
+        }
+
+        final File gitDirectory = new File(repositoryDirectory, Constants.DOT_GIT);
+        final File layerFile = File.createTempFile(LAYER_PREFIX, LAYER_SUFFIX, gitDirectory);
+        boolean written = false;
+        try
+        {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(layerFile)));
+            try
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(records.size());
+                out.writeInt(parentCount);
+                final byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+                int firstParent = 0;
+                for (Record record : records)
+                {
+                    record.id.copyRawTo(id, 0);
+                    out.write(id);
+                    out.writeInt(record.commitTime);
+                    out.writeInt(record.generation);
+                    out.writeInt(record.parents.length);
+                    out.writeInt(firstParent);
+                    firstParent += record.parents.length;
+                }
+                for (Record record : records)
+                {
+                    for (ObjectId parent : record.parents)
+                    {
+                        final Integer position = positions.get(parent);
+                        final int keptPosition = position == null && existing != null ? existing.find(parent, keptLayers) : -1;
+                        if (position == null && keptPosition < 0)
+                        {
+                            throw new IOException("Parent " + parent.name() + " of " + record.id.name() + " is not indexed");
+                        }
+                        out.writeInt(position != null ? position : keptPosition);
+                    }
+                }
+            }
+            finally
+            {
+                IOUtils.closeQuietly(out);
+            }
+
+            final List<String> layerNames = Lists.newArrayList();
+            if (existing != null)
+            {
+                layerNames.addAll(existing.layerNames.subList(0, keptLayers));
+            }
+            layerNames.add(layerFile.getName());
+            close(repositoryDirectory);
+            writeChain(repositoryDirectory, layerNames);
+            written = true;
+            deleteLayersExcept(repositoryDirectory, layerNames);
+        }
+        finally
+        {
+            if (!written)
+            {
+                FileUtils.deleteQuietly(layerFile);
+            }
+        }
+    }
+
+    private static void writeChain(@NotNull final File repositoryDirectory, @NotNull final List<String> layerNames) throws IOException
+    {
+        final File indexFile = getIndexFile(repositoryDirectory);
+        final File tempFile = new File(indexFile.getPath() + ".tmp");
+        FileUtils.writeStringToFile(tempFile, StringUtils.join(layerNames, "\n") + "\n");
+        if (!tempFile.renameTo(indexFile))
+        {
+            FileUtils.deleteQuietly(indexFile);
+            if (!tempFile.renameTo(indexFile))
+            {
+                FileUtils.deleteQuietly(tempFile);
+                throw new IOException("Cannot replace " + indexFile);
+            }
+        }
+    }
+
+    /**
+     * Removes layers merged into others, or left by failed updates.
+     */
+    private static void deleteLayersExcept(@NotNull final File repositoryDirectory, @NotNull final List<String> layerNames)
+    {
+        final File[] layerFiles = new File(repositoryDirectory, Constants.DOT_GIT).listFiles(new FilenameFilter()
+        {
+            public boolean accept(final File dir, final String name)
+            {
+                return isLayerName(name) && !layerNames.contains(name);
+            }
+        });
+        if (layerFiles != null)
+        {
+            for (File layerFile : layerFiles)
+            {
+                FileUtils.deleteQuietly(layerFile);
+            }
+        }
+    }
+
+    /**
+     * Computes generation numbers of new commits, parents first.
+     */
+    @NotNull
+    private static Map<ObjectId, Integer> computeGenerations(@NotNull final Map<ObjectId, RevCommit> newCommits, @Nullable final CommitGraphIndex existing)
+    {
+        final Map<ObjectId, Integer> generations = Maps.newHashMap();
+        final Deque<RevCommit> pending = new ArrayDeque<RevCommit>();
+        for (RevCommit newCommit : newCommits.values())
+        {
+            pending.push(newCommit);
+            while (!pending.isEmpty())
+            {
+                final RevCommit commit = pending.peek();
+                if (generations.containsKey(commit))
+                {
+                    pending.pop();
+                    continue;
+                }
+                int generation = 0;
+                boolean parentsDone = true;
+                for (RevCommit parent : commit.getParents())
+                {
+                    final RevCommit newParent = newCommits.get(parent);
+                    if (newParent != null)
+                    {
+                        final Integer parentGeneration = generations.get(newParent);
+                        if (parentGeneration == null)
+                        {
+                            parentsDone = false;
+                            pending.push(newParent);
+                        }
+                        else
+                        {
+                            generation = Math.max(generation, parentGeneration);
+                        }
+                    }
+                    else if (existing != null)
+                    {
+                        final int position = existing.find(parent);
+                        if (position >= 0)
+                        {
+                            generation = Math.max(generation, existing.getGeneration(position));
+                        }
+                    }
+                }
+                if (parentsDone)
+                {
+                    generations.put(commit, generation + 1);
+                    pending.pop();
+                }
+            }
+        }
+        return generations;
+    }
+
+    // ---------------------------------------------------------------------------------------------------- Inner classes
+
+    /**
+     * Layer file: header, records sorted by commit id, then parent positions (in the whole chain) of all records.
+     */
+    private static final class Layer
+    {
+        private final ByteBuffer buffer;
+        private final int base;
+        private final int commitCount;
+        private final int parentsOffset;
+
+        private Layer(@NotNull final ByteBuffer buffer, final int base) throws IOException
+        {
+            this.buffer = buffer;
+            this.base = base;
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+            {
+                throw new IOException("Not a commit graph index layer");
+            }
+            commitCount = buffer.getInt(4);
+            parentsOffset = HEADER_SIZE + commitCount * RECORD_SIZE;
+            if (buffer.limit() != parentsOffset + 4 * buffer.getInt(8))
+            {
+                throw new IOException("Truncated commit graph index layer");
+            }
+        }
+
+        private int find(@NotNull final AnyObjectId commitId, @NotNull final byte[] id)
+        {
+            int low = 0;
+            int high = commitCount - 1;
+            while (low <= high)
+            {
+                final int middle = (low + high) >>> 1;
+                readId(middle, id);
+                final int cmp = commitId.compareTo(id, 0);
+                if (cmp == 0)
+                {
+                    return middle;
+                }
+                if (cmp > 0)
+                {
+                    low = middle + 1;
+                }
+                else
+                {
+                    high = middle - 1;
+                }
+            }
+            return -1;
+        }
+
+        private void readId(final int index, @NotNull final byte[] id)
+        {
+            final int offset = HEADER_SIZE + index * RECORD_SIZE;
+            for (int i = 0; i < id.length; i++)
+            {
+                id[i] = buffer.get(offset + i);
+            }
+        }
+
+        private int getField(final int index, final int field)
+        {
+            return buffer.getInt(HEADER_SIZE + index * RECORD_SIZE + Constants.OBJECT_ID_LENGTH + 4 * field);
+        }
+
+        private int getParent(final int index, final int parent)
+        {
+            return buffer.getInt(parentsOffset + 4 * (getField(index, 3) + parent));
+        }
+    }
+
+    private static final class Record implements Comparable<Record>
+    {
+        private final ObjectId id;
+        private final int commitTime;
+        private final int generation;
+        private final ObjectId[] parents;
+
+        private Record(@NotNull final ObjectId id, final int commitTime, final int generation, @NotNull final ObjectId[] parents)
+        {
+            this.id = id;
+            this.commitTime = commitTime;
+            this.generation = generation;
+            this.parents = parents;
+        }
+
+        public int compareTo(@NotNull final Record o)
+        {
+            return id.compareTo(o.id);
+        }
+    }
+}
@@ -2,65 +2,84 @@ package com.atlassian.bamboo.plugins.git;
 
 import com.atlassian.bamboo.author.AuthorImpl;
 import com.atlassian.bamboo.commit.CommitContext;
-import com.atlassian.bamboo.commit.CommitFileImpl;
 import com.atlassian.bamboo.commit.CommitImpl;
-import com.atlassian.utils.process.LineOutputHandler;
+import com.atlassian.utils.process.ProcessException;
+import com.atlassian.utils.process.Watchdog;
 import com.google.common.collect.Lists;
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
-import org.tuckey.web.filters.urlrewrite.utils.StringUtils;
+import org.jetbrains.annotations.Nullable;
 
 import javax.annotation.concurrent.NotThreadSafe;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
 
+/**
+ * Parses output of {@code git log -z} run with {@link #LOG_COMMAND_FORMAT_STRING} and optionally {@code --name-only}.
+ *
+ * Every field is a NUL terminated token: commit marker with hash, parent hashes, committer name, committer email, timestamp, message,
+ * followed by changed file names (the first one prefixed with a new line). The stream is read token by token with a
+ * single reusable buffer. Once more than maxCommitNumber commits are seen the process is cancelled, so the rest of the
+ * log is neither produced nor read; see {@link #isLimitReached()}.
+ *
+ * With a {@link ChangesetPathFilter} only included files are listed, and commits other than merges without any included
+ * file are dropped, like in {@link JGitOperationHelper#extractCommits}. Merges list no files and are always kept.
+ */
 @NotThreadSafe
-public class CommitOutputHandler extends LineOutputHandler implements GitCommandProcessor.GitOutputHandler
+public class CommitOutputHandler implements GitCommandProcessor.GitOutputHandler
 {
     private static final Logger log = Logger.getLogger(CommitOutputHandler.class);
 
     // ------------------------------------------------------------------------------------------------------- Constants
-    private static final String SALT = "[d31bfa5_BAM_";
-    private static final String HASH = SALT + "hash]";
-    private static final String COMMITER_NAME = SALT + "commiter_name]";
-    private static final String COMMITER_EMAIL = SALT + "commiter_email]";
-    private static final String TIMESTAMP = SALT + "timestamp]";
-    private static final String COMMIT_MESSAGE = SALT + "commit_message]";
-    private static final String FILE_LIST = SALT + "file_list]";
+    private static final String HASH = "[d31bfa5_BAM_hash]";
+    private static final String ENCODING = "UTF-8";
 
-    public static final String LOG_COMMAND_FORMAT_STRING = HASH+"%H%n"+COMMITER_NAME+"%cN%n"+COMMITER_EMAIL+"%ce%n"+TIMESTAMP+"%ct%n"+COMMIT_MESSAGE+"%B%n"+FILE_LIST;
+    public static final String LOG_COMMAND_FORMAT_STRING = HASH + "%H%x00%P%x00%cN%x00%ce%x00%ct%x00%B";
+
+    private static final int FIELD_PARENTS = 1;
+    private static final int FIELD_COMMITER_NAME = 2;
+    private static final int FIELD_COMMITER_EMAIL = 3;
+    private static final int FIELD_TIMESTAMP = 4;
+    private static final int FIELD_COMMIT_MESSAGE = 5;
+    private static final int FIELD_FILES = 6;
 
-    private enum CommitParserState
-    {
-        INFO,
-        COMMIT_MESSAGE,
-        FILE_LIST,
-        TOO_MANY_COMMITS
-    }
     // ------------------------------------------------------------------------------------------------- Type Properties
-    private List<CommitContext> extractedCommits = Lists.newArrayList();
-    private Set<String> shallows;
-    private CommitImpl currentCommit = null;
-    private String commiterName = null;
-    private int skippedCommitCount;
-    private int maxCommitNumber;
-    private StringBuilder commitMessage = null;
+    private final List<CommitContext> extractedCommits = Lists.newArrayList();
+    private final Set<String> shallows;
+    private final int maxCommitNumber;
+    private final CommitFileListBudget fileListBudget;
+    private final ChangesetPathFilter pathFilter;
 
-    CommitParserState parserState = CommitParserState.INFO;
+    private Watchdog watchdog;
+    private byte[] token = new byte[1024];
+
+    private CommitImpl currentCommit;
+    private CommitFileListBudget.CommitFiles currentFiles;
+    private String commiterName;
+    private boolean currentIsMerge;
+    private int field;
+    private int processedCommits;
+    private boolean limitReached;
 
-    // ---------------------------------------------------------------------------------------------------- Dependencies
     // ---------------------------------------------------------------------------------------------------- Constructors
     public CommitOutputHandler(@NotNull Set<String> shallows)
     {
-        this.shallows = shallows;
-        maxCommitNumber = Integer.MAX_VALUE;
+        this(shallows, Integer.MAX_VALUE, new CommitFileListBudget(), null);
     }
 
-    public CommitOutputHandler(@NotNull Set<String> shallows, int maxCommitNumber)
+    public CommitOutputHandler(@NotNull Set<String> shallows, int maxCommitNumber, @NotNull CommitFileListBudget fileListBudget,
+                               @Nullable ChangesetPathFilter pathFilter)
     {
         this.shallows = shallows;
         this.maxCommitNumber = maxCommitNumber;
+        this.fileListBudget = fileListBudget;
+        this.pathFilter = pathFilter;
     }
 
     // ----------------------------------------------------------------------------------------------- Interface Methods
@@ -71,103 +90,199 @@ public class CommitOutputHandler extends LineOutputHandler implements GitCommand
     }
 
     @Override
-    protected void processLine(final int lineNum, final String line)
+    public void process(final InputStream output) throws ProcessException
     {
-        if (parserState != CommitParserState.TOO_MANY_COMMITS)
+        final InputStream input = new BufferedInputStream(output);
+        try
         {
-            if (parserState != CommitParserState.COMMIT_MESSAGE && line.startsWith(HASH))
+            int length;
+            while ((length = readToken(input)) >= 0)
             {
-                if (extractedCommits.size() < maxCommitNumber)
+                if (!processToken(length))
                 {
-                    parserState = CommitParserState.INFO;
-                    currentCommit = new CommitImpl();
-                    commiterName  = null;
-                    currentCommit.setAuthor(new AuthorImpl(AuthorImpl.UNKNOWN_AUTHOR));
-                    currentCommit.setChangeSetId(getLineContent(HASH,line));
-                    extractedCommits.add(currentCommit);
-                }
-                else
-                {
-                    currentCommit = null;
-                    commiterName = null;
-                    skippedCommitCount++;
-                    parserState = CommitParserState.TOO_MANY_COMMITS;
-                }
-            }
-            if (parserState == CommitParserState.COMMIT_MESSAGE)
-            {
-                if (line.startsWith(FILE_LIST))
-                {
-                    if (currentCommit != null && commitMessage != null)
+                    limitReached = true;
+                    if (watchdog != null)
                     {
-                        currentCommit.setComment(commitMessage.toString());
-                        commitMessage = null;
+                        watchdog.cancel();
                     }
-                    parserState = CommitParserState.FILE_LIST;
-                }
-                else
-                {
-                    commitMessage.append('\n');
-                    commitMessage.append(line);
+                    break;
                 }
             }
-            else if (parserState == CommitParserState.FILE_LIST && currentCommit != null && !StringUtils.isBlank(line) && !shallows.contains(currentCommit.getChangeSetId()))
+            addCurrentFiles();
+        }
+        catch (IOException e)
+        {
+            throw new ProcessException(e);
+        }
+        finally
+        {
+            try
             {
-                currentCommit.addFile(new CommitFileImpl(currentCommit.getChangeSetId(), line.trim()));
+                input.close();
             }
-            else if (parserState == CommitParserState.INFO)
+            catch (IOException e)
             {
-                if (line.startsWith(COMMITER_NAME))
-                {
-                    if (currentCommit != null)
-                    {
-                        commiterName = getLineContent(COMMITER_NAME, line);
-                    }
-                }
-                else if (line.startsWith(COMMITER_EMAIL))
+                log.debug("Cannot close git log output", e);
+            }
+        }
+    }
+
+    @Override
+    public void complete() throws ProcessException
+    {
+    }
+
+    @Override
+    public void setWatchdog(final Watchdog watchdog)
+    {
+        this.watchdog = watchdog;
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    /**
+     * Reads bytes up to the next NUL (or end of stream) into the token buffer.
+     *
+     * @return length of the token, -1 at the end of stream
+     */
+    private int readToken(@NotNull final InputStream input) throws IOException
+    {
+        int length = 0;
+        int b;
+        while ((b = input.read()) > 0)
+        {
+            if (length == token.length)
+            {
+                final byte[] larger = new byte[token.length * 2];
+                System.arraycopy(token, 0, larger, 0, length);
+                token = larger;
+            }
+            token[length++] = (byte) b;
+        }
+        return b < 0 && length == 0 ? -1 : length;
+    }
+
+    /**
+     * @return false if the token starts a commit beyond the limit
+     */
+    private boolean processToken(final int length) throws UnsupportedEncodingException
+    {
+        if (startsWithHash(length))
+        {
+            addCurrentFiles();
+            if (extractedCommits.size() >= maxCommitNumber)
+            {
+                return false;
+            }
+            currentCommit = new CommitImpl();
+            currentCommit.setAuthor(new AuthorImpl(AuthorImpl.UNKNOWN_AUTHOR));
+            currentCommit.setChangeSetId(getString(HASH.length(), length).trim());
+            currentFiles = shallows.contains(currentCommit.getChangeSetId()) ? null : fileListBudget.newCommit(currentCommit.getChangeSetId());
+            currentIsMerge = false;
+            commiterName = null;
+            extractedCommits.add(currentCommit);
+            processedCommits++;
+            field = FIELD_PARENTS;
+            return true;
+        }
+        if (currentCommit == null)
+        {
+            return true;
+        }
+
+        switch (field)
+        {
+            case FIELD_PARENTS:
+                currentIsMerge = StringUtils.split(getString(0, length)).length > 1;
+                break;
+            case FIELD_COMMITER_NAME:
+                commiterName = getString(0, length).trim();
+                break;
+            case FIELD_COMMITER_EMAIL:
+                if (!StringUtils.isBlank(commiterName))
                 {
-                    if (currentCommit != null && !StringUtils.isBlank(commiterName))
-                    {
-                        String email = getLineContent(COMMITER_EMAIL, line);
-                        currentCommit.setAuthor(new AuthorImpl(String.format("%s <%s>", commiterName, email), null, email));
-                    }
+                    final String email = getString(0, length).trim();
+                    currentCommit.setAuthor(new AuthorImpl(String.format("%s <%s>", commiterName, email), null, email));
                 }
-                else if (line.startsWith(TIMESTAMP))
+                break;
+            case FIELD_TIMESTAMP:
+                currentCommit.setDate(new Date(Long.parseLong(getString(0, length).trim()) * 1000));
+                break;
+            case FIELD_COMMIT_MESSAGE:
+                currentCommit.setComment(getString(0, length));
+                break;
+            default:
+                if (currentFiles != null)
                 {
-                    if (currentCommit != null)
+                    final String file = getString(0, length).trim();
+                    if (!file.isEmpty() && (pathFilter == null || pathFilter.isIncluded(file)))
                     {
-                        String timestampString = getLineContent(TIMESTAMP, line);
-                        currentCommit.setDate(new Date(Long.parseLong(timestampString)*1000));
+                        currentFiles.add(file);
                     }
                 }
-                else if (line.startsWith(COMMIT_MESSAGE))
-                {
-                    commitMessage = new StringBuilder(getLineContent(COMMIT_MESSAGE, line));
-                    parserState = CommitParserState.COMMIT_MESSAGE;
-                }
-            }
         }
-        else if (line.startsWith(HASH)) //too many commits
+        field = Math.min(field + 1, FIELD_FILES);
+        return true;
+    }
+
+    private boolean startsWithHash(final int length)
+    {
+        if (length < HASH.length())
         {
-            skippedCommitCount++;
+            return false;
         }
+        for (int i = 0; i < HASH.length(); i++)
+        {
+            if (token[i] != HASH.charAt(i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @NotNull
+    private String getString(final int offset, final int length) throws UnsupportedEncodingException
+    {
+        return new String(token, offset, length - offset, ENCODING);
     }
 
-    private String getLineContent(final String keyword, final String line)
+    private void addCurrentFiles()
     {
-        return line.substring(keyword.length()).trim();
+        if (currentFiles != null)
+        {
+            if (pathFilter != null && !currentIsMerge && currentFiles.isEmpty())
+            {
+                extractedCommits.remove(extractedCommits.size() - 1);
+                currentFiles.discard();
+            }
+            else
+            {
+                currentFiles.addTo(currentCommit);
+            }
+            currentFiles = null;
+        }
     }
 
-    // -------------------------------------------------------------------------------------------------- Action Methods
     // -------------------------------------------------------------------------------------------------- Public Methods
     public List<CommitContext> getExtractedCommits()
     {
         return extractedCommits;
     }
 
-    public int getSkippedCommitCount()
+    /**
+     * @return number of commits read, including the ones dropped by the path filter
+     */
+    public int getProcessedCommits()
+    {
+        return processedCommits;
+    }
+
+    /**
+     * @return true if the output contained more than maxCommitNumber commits and reading has been stopped
+     */
+    public boolean isLimitReached()
     {
-        return skippedCommitCount;
+        return limitReached;
     }
-    // -------------------------------------------------------------------------------------- Basic Accessors / Mutators
 }
@@ -7,7 +7,6 @@ import com.atlassian.bamboo.v2.build.repository.RepositoryV2;
 import com.atlassian.bamboo.ww2.actions.PlanActionSupport;
 import com.atlassian.bamboo.ww2.aware.permissions.PlanEditSecurityAware;
 import com.atlassian.util.concurrent.Supplier;
-import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
 
 import java.io.File;
@@ -44,35 +43,46 @@ public class DeleteGitCacheDirectoryAction extends PlanActionSupport implements
             }
 
             final GitRepository gitRepository = (GitRepository) repository;
-            final File cacheDirectoryFile = gitRepository.getCacheDirectory();
-            success = success && SUCCESS.equals(GitCacheDirectory.getCacheLock(cacheDirectoryFile).withLock(new Supplier<String>()
+            final File cacheDirectory = gitRepository.getCacheDirectory();
+            success = success && deleteCacheDirectory(buildKey, cacheDirectory);
+            final File bloblessCacheDirectory = GitCacheDirectory.getBloblessCacheDirectory(cacheDirectory);
+            if (bloblessCacheDirectory.exists())
             {
-                public String get()
+                success = success && deleteCacheDirectory(buildKey, bloblessCacheDirectory);
+            }
+        }
+        return (success ? SUCCESS : ERROR);
+    }
+
+    private boolean deleteCacheDirectory(final String buildKey, final File cacheDirectoryFile)
+    {
+        return SUCCESS.equals(GitCacheDirectory.getCacheLock(cacheDirectoryFile).withLock(new Supplier<String>()
+        {
+            public String get()
+            {
+                if (cacheDirectoryFile.exists())
                 {
-                    if (cacheDirectoryFile.exists())
+                    log.info(getText("repository.git.messages.cache.cleaning", Arrays.asList(buildKey, cacheDirectoryFile.getAbsolutePath())));
+                    try
                     {
-                        log.info(getText("repository.git.messages.cache.cleaning", Arrays.asList(buildKey, cacheDirectoryFile.getAbsolutePath())));
-                        try
-                        {
-                            FileUtils.forceDelete(cacheDirectoryFile);
-                        }
-                        catch (IOException e)
-                        {
-                            String message = getText("repository.git.messages.cache.cleanFailed", Arrays.asList(buildKey));
-                            log.error(message, e);
-                            addActionError(message);
-                            return ERROR;
-                        }
+                        CommitGraphIndex.close(cacheDirectoryFile);
+                        DirectoryTrash.delete(cacheDirectoryFile);
                     }
-                    else
+                    catch (IOException e)
                     {
-                        String message = getText("repository.git.messages.cache.notExist", Arrays.asList(buildKey, cacheDirectoryFile.getAbsolutePath()));
-                        log.info(message);
+                        String message = getText("repository.git.messages.cache.cleanFailed", Arrays.asList(buildKey));
+                        log.error(message, e);
+                        addActionError(message);
+                        return ERROR;
                     }
-                    return SUCCESS;
                 }
-            }));
-        }
-        return (success ? SUCCESS : ERROR);
+                else
+                {
+                    String message = getText("repository.git.messages.cache.notExist", Arrays.asList(buildKey, cacheDirectoryFile.getAbsolutePath()));
+                    log.info(message);
+                }
+                return SUCCESS;
+            }
+        }));
     }
 }
@@ -0,0 +1,237 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Removes large directories without blocking: the directory is renamed into a trash directory, which is emptied in
+ * the background at a limited rate of deleted files, so that builds using the same disk are not starved of I/O.
+ * Callers only hold cache locks for the rename.
+ *
+ * Trash directories are named {@value #TRASH_DIRECTORY_NAME}. Caches are trashed next to them in the cache root, source
+ * directories in the build directory root, so that no trash ends up in a plan's working directory. Whatever is left in
+ * a trash after a restart is deleted when the trash is first used by the new process (see {@link #emptyLeftovers}).
+ */
+public class DirectoryTrash
+{
+    private static final Logger log = Logger.getLogger(DirectoryTrash.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    /**
+     * Files deleted per second by the background thread, not positive means unlimited.
+     */
+    static final int DELETED_FILES_PER_SECOND = new SystemProperty(false, "atlassian.bamboo.git.trash.deletedFilesPerSecond", "GIT_TRASH_DELETED_FILES_PER_SECOND").getValue(2000);
+
+    static final String TRASH_DIRECTORY_NAME = ".git-trash";
+
+    private static final AtomicLong sequence = new AtomicLong();
+    private static final ExecutorService executor = createExecutor();
+    private static final Set<String> queued = Sets.newSetFromMap(Maps.<String, Boolean>newConcurrentMap());
+    private static final Set<String> checked = Sets.newSetFromMap(Maps.<String, Boolean>newConcurrentMap());
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    private DirectoryTrash()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * Moves the directory to the trash next to it and schedules its deletion, see {@link #delete(File, File)}.
+     */
+    public static void delete(@NotNull final File directory) throws IOException
+    {
+        delete(directory, directory.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Moves the directory to the trash in the root directory and schedules its deletion. Deletes the directory in the
+     * calling thread if it cannot be renamed, e.g. when it contains files opened on Windows or the root is on another
+     * file system.
+     */
+    public static void delete(@NotNull final File directory, @NotNull final File root) throws IOException
+    {
+        if (!directory.exists())
+        {
+            return;
+        }
+        final File trash = new File(root, TRASH_DIRECTORY_NAME);
+        final File trashedDirectory = new File(trash, directory.getName() + "-" + System.currentTimeMillis() + "-" + sequence.incrementAndGet());
+        if ((trash.isDirectory() || trash.mkdirs()) && directory.renameTo(trashedDirectory))
+        {
+            log.debug("Moved " + directory + " to " + trashedDirectory);
+            emptyTrash(trash);
+        }
+        else
+        {
+            log.info("Unable to move " + directory + " to " + trash + ", deleting it in place");
+            FileUtils.forceDelete(directory);
+        }
+    }
+
+    /**
+     * @return true if the file is a trash directory, which must not be mistaken for a cache or source directory
+     */
+    public static boolean isTrash(@NotNull final File file)
+    {
+        return TRASH_DIRECTORY_NAME.equals(file.getName());
+    }
+
+    /**
+     * Schedules deletion of everything in the trash directory, unless it is empty or already scheduled.
+     */
+    static void emptyTrash(@NotNull final File trash)
+    {
+        final String[] trashedFiles = trash.list();
+        if (trashedFiles == null || trashedFiles.length == 0 || !queued.add(trash.getAbsolutePath()))
+        {
+            return;
+        }
+        executor.execute(new Runnable()
+        {
+            public void run()
+            {
+                // directories trashed from now on need another run
+                queued.remove(trash.getAbsolutePath());
+                final long start = System.currentTimeMillis();
+                final long deleted = deleteContents(trash, new Throttle(DELETED_FILES_PER_SECOND));
+                log.info("Deleted " + deleted + " files from " + trash + " in " + (System.currentTimeMillis() - start) + "ms");
+            }
+        });
+    }
+
+    /**
+     * Schedules deletion of whatever a previous process left in the trash of the root directory. Only the first call
+     * for each root does anything, so that it can be made before every use of the root.
+     */
+    public static void emptyLeftovers(@NotNull final File root)
+    {
+        final File trash = new File(root, TRASH_DIRECTORY_NAME);
+        if (checked.add(trash.getAbsolutePath()))
+        {
+            emptyTrash(trash);
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    @NotNull
+    static File getTrashDirectory(@NotNull final File directory)
+    {
+        return new File(directory.getAbsoluteFile().getParentFile(), TRASH_DIRECTORY_NAME);
+    }
+
+    /**
+     * @return number of deleted files
+     */
+    static long deleteContents(@NotNull final File trash, @NotNull final Throttle throttle)
+    {
+        long deleted = 0;
+        final File[] trashedFiles = trash.listFiles();
+        for (File trashedFile : trashedFiles != null ? trashedFiles : new File[0])
+        {
+            try
+            {
+                deleted += delete(trashedFile, throttle);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                log.info("Interrupted while emptying " + trash);
+                break;
+            }
+        }
+        return deleted;
+    }
+
+    private static long delete(@NotNull final File file, @NotNull final Throttle throttle) throws InterruptedException
+    {
+        long deleted = 0;
+        if (file.isDirectory() && !isSymlink(file))
+        {
+            final File[] children = file.listFiles();
+            for (File child : children != null ? children : new File[0])
+            {
+                deleted += delete(child, throttle);
+            }
+        }
+        if (file.delete())
+        {
+            throttle.onDeleted();
+            deleted++;
+        }
+        else if (file.exists())
+        {
+            log.warn("Unable to delete " + file);
+        }
+        return deleted;
+    }
+
+    /**
+     * Links are deleted, never followed: a source directory may link to files outside of it.
+     */
+    private static boolean isSymlink(@NotNull final File file)
+    {
+        try
+        {
+            final File parent = file.getParentFile().getCanonicalFile();
+            final File inCanonicalParent = new File(parent, file.getName());
+            return !inCanonicalParent.getCanonicalFile().equals(inCanonicalParent.getAbsoluteFile());
+        }
+        catch (IOException e)
+        {
+            return true;
+        }
+    }
+
+    @NotNull
+    private static ExecutorService createExecutor()
+    {
+        final ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                                                                             new ThreadFactoryBuilder().setNameFormat("git-trash-%d").setDaemon(true).build());
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        return threadPoolExecutor;
+    }
+
+    static class Throttle
+    {
+        private final int filesPerSecond;
+        private final long start = System.nanoTime();
+        private long files;
+
+        Throttle(final int filesPerSecond)
+        {
+            this.filesPerSecond = filesPerSecond;
+        }
+
+        void onDeleted() throws InterruptedException
+        {
+            files++;
+            if (filesPerSecond <= 0 || files % Math.max(1, filesPerSecond / 10) != 0)
+            {
+                return;
+            }
+            final long aheadMillis = files * 1000 / filesPerSecond - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (aheadMillis > 0)
+            {
+                Thread.sleep(aheadMillis);
+            }
+        }
+    }
+}
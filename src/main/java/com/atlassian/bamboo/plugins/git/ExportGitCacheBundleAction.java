@@ -0,0 +1,74 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.plan.Plan;
+import com.atlassian.bamboo.plan.PlanHelper;
+import com.atlassian.bamboo.repository.RepositoryDefinition;
+import com.atlassian.bamboo.v2.build.repository.RepositoryV2;
+import com.atlassian.bamboo.ww2.actions.PlanActionSupport;
+import com.atlassian.bamboo.ww2.aware.permissions.PlanEditSecurityAware;
+import com.atlassian.util.concurrent.Supplier;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Exports the cache directories of a plan's repositories as bundles for seeding new caches, see {@link RepositorySeeds}.
+ */
+public class ExportGitCacheBundleAction extends PlanActionSupport implements PlanEditSecurityAware
+{
+    private static final Logger log = Logger.getLogger(ExportGitCacheBundleAction.class);
+
+    @Override
+    public String doExecute() throws Exception
+    {
+        final String buildKey = getBuildKey();
+        Plan plan = planManager.getPlanByKey(buildKey);
+        if (plan == null)
+        {
+            String message = getText("repository.git.messages.cache.exportFailedNoPlan", Arrays.asList(buildKey));
+            log.error(message);
+            addActionError(message);
+            return ERROR;
+        }
+
+        boolean success = true;
+        for (RepositoryDefinition repositoryDefinition : PlanHelper.getRepositoryDefinitions(plan))
+        {
+            RepositoryV2 repository = repositoryDefinition.getRepository();
+            if (!(repository instanceof GitRepository))
+            {
+                continue;
+            }
+
+            final GitRepository gitRepository = (GitRepository) repository;
+            final File cacheDirectoryFile = gitRepository.getCacheDirectory();
+            if (!cacheDirectoryFile.exists())
+            {
+                log.info(getText("repository.git.messages.cache.notExist", Arrays.asList(buildKey, cacheDirectoryFile.getAbsolutePath())));
+                continue;
+            }
+            success = success && SUCCESS.equals(GitCacheDirectory.getSharedCacheLock(cacheDirectoryFile).withLock(new Supplier<String>()
+            {
+                public String get()
+                {
+                    try
+                    {
+                        final File bundle = RepositorySeeds.exportBundle(cacheDirectoryFile, gitRepository.getSubstitutedAccessData().repositoryUrl);
+                        log.info(getText("repository.git.messages.cache.exported", Arrays.asList(buildKey, bundle.getAbsolutePath())));
+                        return SUCCESS;
+                    }
+                    catch (IOException e)
+                    {
+                        String message = getText("repository.git.messages.cache.exportFailed", Arrays.asList(buildKey, e.getMessage()));
+                        log.error(message, e);
+                        addActionError(message);
+                        return ERROR;
+                    }
+                }
+            }));
+        }
+        return (success ? SUCCESS : ERROR);
+    }
+}
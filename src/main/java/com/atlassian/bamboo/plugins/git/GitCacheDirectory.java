@@ -1,16 +1,31 @@
 package com.atlassian.bamboo.plugins.git;
 
-import com.atlassian.util.concurrent.Function;
-import com.atlassian.util.concurrent.ManagedLock;
-import com.atlassian.util.concurrent.ManagedLocks;
+import com.atlassian.bamboo.repository.RepositoryException;
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang.CharEncoding;
 import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.storage.file.FileRepository;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Class used to handle git cache directory operations.
@@ -20,7 +35,70 @@ public class GitCacheDirectory
 
     static final String GIT_REPOSITORY_CACHE_DIRECTORY = "_git-repositories-cache";
 
-    static final Function<File, ManagedLock> cacheLockFactory = ManagedLocks.weakManagedLockFactory();
+    static final String BLOBLESS_CACHE_SUFFIX = "-blobless";
+
+    static final boolean COMMIT_GRAPH_INDEX_ENABLED = new SystemProperty(false, "atlassian.bamboo.git.cache.commitGraphIndex", "GIT_CACHE_COMMIT_GRAPH_INDEX").getValue(true);
+
+    /**
+     * For servers where the user name selects a different repository under the same path. Caches of paths starting
+     * with {@code ~} are separated by user regardless of this property, see
+     * {@link UriUtils#getHomeDirectoryUser(String, String, boolean)}.
+     */
+    static final boolean SEPARATE_CACHES_BY_USERNAME = new SystemProperty(false, "atlassian.bamboo.git.cache.separateByUsername", "GIT_CACHE_SEPARATE_BY_USERNAME").getValue(false);
+
+    /**
+     * For servers resolving relative SCP-like paths ({@code user@host:repo.git}) in the home directory of the user
+     * logging in. Off by default, as forges resolve them like absolute paths and their SCP-like URLs have to share
+     * caches with the HTTPS and SSH URLs of the same repositories.
+     */
+    static final boolean SEPARATE_RELATIVE_SCP_CACHES = new SystemProperty(false, "atlassian.bamboo.git.cache.separateRelativeScpPaths", "GIT_CACHE_SEPARATE_RELATIVE_SCP_PATHS").getValue(false);
+
+    /**
+     * If true, shallow clones of all branches of a repository share one cache holding the fetched branch tips, instead
+     * of one cache per branch.
+     */
+    static final boolean SHARED_SHALLOW_CACHE = new SystemProperty(false, "atlassian.bamboo.git.cache.sharedShallow", "GIT_CACHE_SHARED_SHALLOW").getValue(true);
+
+    /**
+     * Stands for the branch in the key of the shared shallow cache, cannot be a branch name.
+     */
+    private static final String ALL_BRANCHES = "*";
+
+    /**
+     * If true, fetches into a full cache bring in all branches recently used by plans sharing the cache in a single
+     * fetch, instead of one fetch per branch and plan.
+     */
+    static final boolean BATCHED_FETCH = new SystemProperty(false, "atlassian.bamboo.git.cache.batchedFetch", "GIT_CACHE_BATCHED_FETCH").getValue(true);
+
+    /**
+     * Most other branches added to a batched fetch, the most recently used ones are preferred.
+     */
+    static final int BATCHED_FETCH_MAX_BRANCHES = new SystemProperty(false, "atlassian.bamboo.git.cache.batchedFetchMaxBranches", "GIT_CACHE_BATCHED_FETCH_MAX_BRANCHES").getValue(100);
+
+    /**
+     * Branches not used by any plan for this long are no longer added to batched fetches.
+     */
+    static final long BATCHED_FETCH_BRANCH_EXPIRY_MILLIS = TimeUnit.HOURS.toMillis(
+            new SystemProperty(false, "atlassian.bamboo.git.cache.batchedFetchBranchExpiryHours", "GIT_CACHE_BATCHED_FETCH_BRANCH_EXPIRY_HOURS").getValue(24));
+
+    // weak values, held by GitCacheLock while locked; own locks rather than ManagedLocks for tryLock
+    private static final ConcurrentMap<File, ReadWriteLock> cacheLocks = new MapMaker().weakValues().makeMap();
+
+    /**
+     * Last failed fetch per cache directory, branch and credentials, cleared by the next successful one or after
+     * {@link #FAILED_FETCH_EXPIRY_NANOS}. Plans using other credentials with the same cache fetch on their own.
+     */
+    private static final ConcurrentMap<String, FailedFetch> failedFetches = Maps.newConcurrentMap();
+
+    /**
+     * Failed fetches are only reused by callers that waited for the cache lock, callers waiting longer fetch again.
+     */
+    static final long FAILED_FETCH_EXPIRY_NANOS = TimeUnit.HOURS.toNanos(1);
+
+    /**
+     * Time of last use of each branch per cache directory, see {@link #registerBranch(File, String)}.
+     */
+    private static final ConcurrentMap<String, ConcurrentMap<String, Long>> activeBranches = Maps.newConcurrentMap();
 
     private static final Logger log = Logger.getLogger(GitCacheDirectory.class);
 
@@ -28,16 +106,56 @@ public class GitCacheDirectory
     {
     }
 
+    /**
+     * Caches are shared by all plans using the same remote repository, regardless of the protocol and credentials they
+     * use (see {@link UriUtils#getCanonicalUrl(String)}). Fetches always use the plan's own URL and credentials. Paths
+     * starting with {@code ~} (and relative SCP-like paths if {@link #SEPARATE_RELATIVE_SCP_CACHES}) are relative to
+     * the home directory of the user logging in, their caches are separated by user.
+     * Shallow clones use a separate cache, shared by all branches unless {@link #SHARED_SHALLOW_CACHE} is disabled.
+     */
     @NotNull
     static File getCacheDirectory(@NotNull final File workingDirectory, @NotNull final GitRepository.GitRepositoryAccessData repositoryData)
     {
+        final String repositoryId = UriUtils.getCanonicalUrl(repositoryData.repositoryUrl);
+        final String homeDirectoryUser = UriUtils.getHomeDirectoryUser(repositoryData.repositoryUrl, repositoryData.username, SEPARATE_RELATIVE_SCP_CACHES);
+        // "~" keeps caches of home directories apart from caches of absolute paths, even if the user is unknown
+        final String username = homeDirectoryUser != null ? "~" + homeDirectoryUser : SEPARATE_CACHES_BY_USERNAME ? repositoryData.username : null;
         String repositorySha = repositoryData.useShallowClones ?
-                calculateAggregateSha(repositoryData.repositoryUrl, repositoryData.username, repositoryData.branch) :
-                calculateAggregateSha(repositoryData.repositoryUrl, repositoryData.username);
+                calculateAggregateSha(repositoryId, username, SHARED_SHALLOW_CACHE ? ALL_BRANCHES : repositoryData.branch) :
+                calculateAggregateSha(repositoryId, username);
 
         File cacheDirectory = new File(workingDirectory, GIT_REPOSITORY_CACHE_DIRECTORY);
         return new File(cacheDirectory, repositorySha);
     }
+
+    /**
+     * Blobless caches (see {@link BloblessCache}) are kept apart from the full caches of the same repositories, so that
+     * helpers unable to fetch missing blobs (JGit, old git executables) keep using full caches while the others use
+     * blobless ones. Neither kind of cache is ever converted into the other.
+     *
+     * @return the blobless cache directory if {@link BloblessCache#ENABLED} and the helper can maintain it, the full or
+     *         shallow cache directory otherwise
+     */
+    @NotNull
+    static File getCacheDirectory(@NotNull final File workingDirectory, @NotNull final GitRepository.GitRepositoryAccessData repositoryData,
+                                  @NotNull final GitOperationHelper helper)
+    {
+        final File cacheDirectory = getCacheDirectory(workingDirectory, repositoryData);
+        if (BloblessCache.ENABLED && !repositoryData.useShallowClones && helper.supportsBlobFilter(workingDirectory))
+        {
+            return getBloblessCacheDirectory(cacheDirectory);
+        }
+        return cacheDirectory;
+    }
+
+    /**
+     * @return blobless counterpart of the full cache directory
+     */
+    @NotNull
+    static File getBloblessCacheDirectory(@NotNull final File cacheDirectory)
+    {
+        return new File(cacheDirectory.getParentFile(), cacheDirectory.getName() + BLOBLESS_CACHE_SUFFIX);
+    }
     
     static String calculateAggregateSha(String... params)
     {
@@ -61,8 +179,359 @@ public class GitCacheDirectory
         return DigestUtils.shaHex(baos.toByteArray());
     }
 
-    public static ManagedLock getCacheLock(@NotNull File cache)
+    /**
+     * @return lock excluding other threads and processes from the cache directory, to be held while changing it
+     */
+    @NotNull
+    public static GitCacheLock getCacheLock(@NotNull File cache)
+    {
+        final File canonicalCache = getCanonicalFile(cache);
+        return new GitCacheLock(canonicalCache, getJvmLocks(canonicalCache), false, TimeUnit.MINUTES.toMillis(GitCacheLock.PROCESS_LOCK_TIMEOUT_MINUTES), true);
+    }
+
+    /**
+     * @return lock excluding only {@link #getCacheLock exclusive} holders, to be held while reading the cache directory
+     *         (objects, refs, shallow file). Must not be upgraded by taking the exclusive lock while held.
+     */
+    @NotNull
+    public static GitCacheLock getSharedCacheLock(@NotNull File cache)
+    {
+        final File canonicalCache = getCanonicalFile(cache);
+        return new GitCacheLock(canonicalCache, getJvmLocks(canonicalCache), true, TimeUnit.MINUTES.toMillis(GitCacheLock.PROCESS_LOCK_TIMEOUT_MINUTES), true);
+    }
+
+    /**
+     * @return exclusive lock for housekeeping: does not wait for other processes (throws {@link CacheLockTimeoutException}
+     *         instead) and does not count as access to the cache
+     */
+    @NotNull
+    static GitCacheLock getHousekeepingLock(@NotNull File cache)
+    {
+        final File canonicalCache = getCanonicalFile(cache);
+        return new GitCacheLock(canonicalCache, getJvmLocks(canonicalCache), false, 0, false);
+    }
+
+    @NotNull
+    private static ReadWriteLock getJvmLocks(@NotNull File canonicalCache)
+    {
+        final ReadWriteLock newLocks = new ReentrantReadWriteLock();
+        final ReadWriteLock locks = cacheLocks.putIfAbsent(canonicalCache, newLocks);
+        return locks != null ? locks : newLocks;
+    }
+
+    /**
+     * @return true if a thread of this JVM holds a lock on the cache directory
+     */
+    static boolean isCacheLockHeld(@NotNull File cache)
+    {
+        return GitCacheLock.isHeldByThisProcess(getCanonicalFile(cache));
+    }
+
+    /**
+     * Differently spelled paths of the same directory must share the in-JVM lock, otherwise threads would compete for
+     * the process lock.
+     */
+    @NotNull
+    static File getCanonicalFile(@NotNull final File file)
+    {
+        try
+        {
+            return file.getCanonicalFile();
+        }
+        catch (IOException e)
+        {
+            return file.getAbsoluteFile();
+        }
+    }
+
+    /**
+     * Fetches the branch into the cache directory and remembers the outcome for builds queued on the same cache lock.
+     * New commits are added to the cache's {@link CommitGraphIndex}, and the cache quota is enforced afterwards (see
+     * {@link CacheEvictor}). Automatic gc is disabled in the cache, it is compacted by {@link CacheMaintenance} instead.
+     * Fetch durations are recorded in the {@link CacheInventory}. Unless shallow, other branches active in the cache
+     * are fetched in the same fetch (see {@link #BATCHED_FETCH}) and blobs are skipped if enabled (see
+     * {@link BloblessCache}). Must be called with the cache lock held.
+     */
+    static void fetch(@NotNull final GitOperationHelper helper, @NotNull final File cacheDirectory, @Nullable final String branch, final boolean useShallow) throws RepositoryException
+    {
+        fetch(helper, cacheDirectory, branch, useShallow ? FetchDepth.SHALLOW : FetchDepth.FULL);
+    }
+
+    private static void fetch(@NotNull final GitOperationHelper helper, @NotNull final File cacheDirectory, @Nullable final String branch, @NotNull final FetchDepth depth) throws RepositoryException
+    {
+        final String key = getFetchKey(helper, cacheDirectory, branch);
+        if (depth == FetchDepth.FULL)
+        {
+            prepareBlobFilter(helper, cacheDirectory);
+        }
+        final long start = System.currentTimeMillis();
+        try
+        {
+            final Collection<String> otherBranches = depth == FetchDepth.FULL && BATCHED_FETCH ? getOtherActiveBranches(cacheDirectory, branch) : Collections.<String>emptyList();
+            if (depth == FetchDepth.KEEP)
+            {
+                helper.fetchKeepingDepth(cacheDirectory);
+            }
+            else if (otherBranches.isEmpty())
+            {
+                helper.fetch(cacheDirectory, depth == FetchDepth.SHALLOW);
+            }
+            else
+            {
+                try
+                {
+                    helper.fetch(cacheDirectory, otherBranches);
+                }
+                catch (RepositoryException e)
+                {
+                    // e.g. a branch the plan's credentials cannot read, do not let it break the plan's own fetch
+                    log.warn("Fetching " + branch + " with " + otherBranches.size() + " other branches into " + cacheDirectory + " failed, fetching it alone", e);
+                    helper.fetch(cacheDirectory, false);
+                }
+            }
+            CacheInventory.recordFetch(cacheDirectory, System.currentTimeMillis() - start, true);
+            failedFetches.remove(key);
+            CacheMaintenance.disableAutoGc(cacheDirectory);
+            if (COMMIT_GRAPH_INDEX_ENABLED)
+            {
+                CommitGraphIndex.updateQuietly(cacheDirectory);
+            }
+            CacheEvictor.scheduleEviction(cacheDirectory.getParentFile());
+            DirectoryTrash.emptyTrash(DirectoryTrash.getTrashDirectory(cacheDirectory));
+        }
+        catch (RepositoryException e)
+        {
+            CacheInventory.recordFetch(cacheDirectory, System.currentTimeMillis() - start, false);
+            failedFetches.put(key, new FailedFetch(e));
+            throw e;
+        }
+    }
+
+    /**
+     * Same as {@link #fetch}, but if a fetch of the same branch with the same credentials failed while the caller was
+     * waiting for the cache lock, that outcome is reused instead of contacting the remote again. Successful fetches are
+     * reused by checking if the wanted revision is present before calling this method.
+     *
+     * @param waitingSince {@link System#nanoTime()} at which the caller started waiting for the cache lock
+     */
+    static void fetchUnlessFailedWhileWaiting(@NotNull final GitOperationHelper helper, @NotNull final File cacheDirectory, @Nullable final String branch,
+                                              final boolean useShallow, final long waitingSince) throws RepositoryException
+    {
+        fetchUnlessFailedWhileWaiting(helper, cacheDirectory, branch, useShallow ? FetchDepth.SHALLOW : FetchDepth.FULL, waitingSince);
+    }
+
+    private static void fetchUnlessFailedWhileWaiting(@NotNull final GitOperationHelper helper, @NotNull final File cacheDirectory, @Nullable final String branch,
+                                                      @NotNull final FetchDepth depth, final long waitingSince) throws RepositoryException
+    {
+        dropExpiredFailedFetches(System.nanoTime());
+        final FailedFetch failedFetch = failedFetches.get(getFetchKey(helper, cacheDirectory, branch));
+        if (failedFetch != null && failedFetch.finished - waitingSince > 0)
+        {
+            final long secondsAgo = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - failedFetch.finished);
+            log.info("Not fetching " + branch + " into " + cacheDirectory + ", concurrent fetch failed " + secondsAgo + "s ago");
+            throw new CoalescedFetchException("Concurrent fetch into " + cacheDirectory + " failed " + secondsAgo + "s ago: "
+                                              + failedFetch.exception.getMessage(), failedFetch.exception);
+        }
+        fetch(helper, cacheDirectory, branch, depth);
+    }
+
+    /**
+     * Drops failed fetches of branches and credentials that have not been fetched successfully since.
+     */
+    static void dropExpiredFailedFetches(final long now)
+    {
+        for (Map.Entry<String, FailedFetch> entry : failedFetches.entrySet())
+        {
+            if (now - entry.getValue().finished >= FAILED_FETCH_EXPIRY_NANOS)
+            {
+                failedFetches.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Fetches the branch into the shared shallow cache. A branch new to the cache is fetched at depth 1, so that the
+     * cache gains the branch tip without its history. Branches already in the cache, or whose revision is, are fetched
+     * without depth, as a depth 1 fetch would mark the fetched tip shallow and cut the history other branches have been
+     * deepened to. If the revision is not among the fetched commits (e.g. the branch moved on or an older revision is
+     * rebuilt), only this branch is deepened by fetching its full history (native git only, JGit does not deepen
+     * shallow repositories). Must be called with the cache lock held.
+     *
+     * @param waitingSince see {@link #fetchUnlessFailedWhileWaiting}
+     */
+    static void fetchIntoSharedShallowCache(@NotNull final GitOperationHelper helper, @NotNull final File cacheDirectory, @Nullable final String branch,
+                                            @NotNull final String revision, final long waitingSince) throws RepositoryException
+    {
+        final boolean known = new File(cacheDirectory, Constants.DOT_GIT).isDirectory()
+                              && (hasBranch(cacheDirectory, branch) || hasRevision(helper, cacheDirectory, revision));
+        fetchUnlessFailedWhileWaiting(helper, cacheDirectory, branch, known ? FetchDepth.KEEP : FetchDepth.SHALLOW, waitingSince);
+        if (!hasRevision(helper, cacheDirectory, revision))
+        {
+            log.info("Deepening " + branch + " in " + cacheDirectory + ", " + revision + " is not at its tip");
+            fetch(helper, cacheDirectory, branch, false);
+        }
+    }
+
+    private static boolean hasBranch(@NotNull final File cacheDirectory, @Nullable final String branch)
+    {
+        try
+        {
+            final FileRepository repository = new FileRepository(new File(cacheDirectory, Constants.DOT_GIT));
+            try
+            {
+                for (String refName : AbstractGitOperationHelper.getLocalRefCandidates(branch))
+                {
+                    final Ref ref = repository.getRef(refName);
+                    if (ref != null && ref.getName().equals(refName))
+                    {
+                        return true;
+                    }
+                }
+            }
+            finally
+            {
+                repository.close();
+            }
+        }
+        catch (IOException e)
+        {
+            log.debug("Cannot read refs of " + cacheDirectory, e);
+        }
+        return false;
+    }
+
+    /**
+     * Unlike the helper's check, never creates the cache directory, so that it may be called with the shared cache lock
+     * held.
+     *
+     * @return true if the cache directory exists and contains the revision
+     */
+    static boolean containsRevision(@NotNull final GitOperationHelper helper, @NotNull final File cacheDirectory, @NotNull final String revision)
+    {
+        return new File(cacheDirectory, Constants.DOT_GIT).isDirectory() && hasRevision(helper, cacheDirectory, revision);
+    }
+
+    private static boolean hasRevision(@NotNull final GitOperationHelper helper, @NotNull final File cacheDirectory, @NotNull final String revision)
+    {
+        try
+        {
+            return helper.checkRevisionExistsInCacheRepository(cacheDirectory, revision);
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+        catch (RepositoryException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Enables the blob filter of a new blobless cache directory (see
+     * {@link #getCacheDirectory(File, GitRepository.GitRepositoryAccessData, GitOperationHelper)}) before its first
+     * fetch. Must be called with the cache lock held.
+     */
+    static void prepareBlobFilter(@NotNull final GitOperationHelper helper, @NotNull final File cacheDirectory) throws RepositoryException
+    {
+        if (!cacheDirectory.getName().endsWith(BLOBLESS_CACHE_SUFFIX) || BloblessCache.isBlobless(cacheDirectory))
+        {
+            return;
+        }
+        if (!helper.enableBlobFilter(cacheDirectory))
+        {
+            log.warn(cacheDirectory + " is meant to be blobless, but " + helper.getClass().getSimpleName() + " cannot maintain blobless caches, fetching all blobs");
+        }
+    }
+
+    /**
+     * Records that a plan uses the branch with the cache directory, so that it is included in batched fetches.
+     */
+    static void registerBranch(@NotNull final File cacheDirectory, @Nullable final String branch)
+    {
+        if (branch == null)
+        {
+            return;
+        }
+        final String key = getCanonicalFile(cacheDirectory).getPath();
+        ConcurrentMap<String, Long> branches = activeBranches.get(key);
+        if (branches == null)
+        {
+            activeBranches.putIfAbsent(key, Maps.<String, Long>newConcurrentMap());
+            branches = activeBranches.get(key);
+        }
+        branches.put(branch, System.currentTimeMillis());
+    }
+
+    /**
+     * @return branches used with the cache directory recently, most recently used first, at most {@link #BATCHED_FETCH_MAX_BRANCHES}
+     */
+    @NotNull
+    static List<String> getOtherActiveBranches(@NotNull final File cacheDirectory, @Nullable final String branch)
+    {
+        final ConcurrentMap<String, Long> branches = activeBranches.get(getCanonicalFile(cacheDirectory).getPath());
+        if (branches == null)
+        {
+            return Collections.emptyList();
+        }
+        final long expired = System.currentTimeMillis() - BATCHED_FETCH_BRANCH_EXPIRY_MILLIS;
+        final List<Map.Entry<String, Long>> recentBranches = Lists.newArrayList();
+        for (Map.Entry<String, Long> entry : branches.entrySet())
+        {
+            if (entry.getValue() < expired)
+            {
+                branches.remove(entry.getKey(), entry.getValue());
+            }
+            else if (!entry.getKey().equals(branch))
+            {
+                recentBranches.add(Maps.immutableEntry(entry.getKey(), entry.getValue()));
+            }
+        }
+        Collections.sort(recentBranches, new Comparator<Map.Entry<String, Long>>()
+        {
+            public int compare(final Map.Entry<String, Long> o1, final Map.Entry<String, Long> o2)
+            {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+        final List<String> otherBranches = Lists.newArrayList();
+        for (Map.Entry<String, Long> entry : recentBranches.subList(0, Math.min(recentBranches.size(), Math.max(0, BATCHED_FETCH_MAX_BRANCHES))))
+        {
+            otherBranches.add(entry.getKey());
+        }
+        return otherBranches;
+    }
+
+    @NotNull
+    private static String getFetchKey(@NotNull final GitOperationHelper helper, @NotNull final File cacheDirectory, @Nullable final String branch)
+    {
+        return cacheDirectory.getAbsolutePath() + '\0' + branch + '\0' + helper.getAccessKey();
+    }
+
+    private enum FetchDepth
+    {
+        /**
+         * Depth 1.
+         */
+        SHALLOW,
+        /**
+         * Without depth, shallow boundaries of the cache are kept.
+         */
+        KEEP,
+        /**
+         * Full history, a shallow cache is deepened.
+         */
+        FULL
+    }
+
+    private static class FailedFetch
     {
-        return cacheLockFactory.get(cache);
+        private final RepositoryException exception;
+        private final long finished = System.nanoTime();
+
+        private FailedFetch(@NotNull final RepositoryException exception)
+        {
+            this.exception = exception;
+        }
     }
 }
@@ -0,0 +1,505 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.atlassian.util.concurrent.Supplier;
+import com.google.common.collect.Maps;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.CharEncoding;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
+/**
+ * Lock on a cache directory shared by all processes using the same build directory (e.g. several local agents).
+ *
+ * Operations changing the cache (fetches, removal) take the exclusive lock, operations only reading it (checkouts,
+ * changeset extraction) take the shared one, so they run concurrently with each other but never with a fetch.
+ *
+ * The in-JVM lock is taken first, then an OS lock on {@code <cache directory>.lock} next to the cache directory, so the
+ * lock file survives removal of the cache directory. OS locks are released by the OS when a process dies, so there are
+ * no stale locks to clean up. The lock file also records the last holder, which is logged by processes waiting for it.
+ * Waiting for another process is bounded by {@link #PROCESS_LOCK_TIMEOUT_MINUTES}. Locks without timeout (housekeeping)
+ * wait neither for other processes nor for other threads.
+ *
+ * Lock files of removed caches are deleted by their exclusive holder (see {@link #deleteLockFile}), after marking them
+ * as deleted, so that processes which opened the file before and get its lock afterwards lock the new file instead.
+ *
+ * The modification time of the lock file is the last access time of the cache, used by {@link CacheEvictor}. Time
+ * spent waiting for the lock is recorded in the {@link CacheInventory}.
+ */
+public class GitCacheLock
+{
+    private static final Logger log = Logger.getLogger(GitCacheLock.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final boolean PROCESS_LOCK_ENABLED = new SystemProperty(false, "atlassian.bamboo.git.cache.processLock", "GIT_CACHE_PROCESS_LOCK").getValue(true);
+    static final int PROCESS_LOCK_TIMEOUT_MINUTES = new SystemProperty(false, "atlassian.bamboo.git.cache.processLockTimeoutMinutes", "GIT_CACHE_PROCESS_LOCK_TIMEOUT_MINUTES").getValue(60);
+
+    static final String LOCK_FILE_SUFFIX = ".lock";
+
+    private static final long POLL_INTERVAL_MILLIS = 200;
+    private static final long REPORT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final int MAX_HOLDER_LENGTH = 1024;
+    private static final String DELETED_HOLDER = "deleted";
+
+    /**
+     * The locked byte lies far beyond the holder description, so the description stays readable on platforms with
+     * mandatory locks.
+     */
+    private static final long LOCK_POSITION = Long.MAX_VALUE - 1;
+
+    private static final String PROCESS_NAME = ManagementFactory.getRuntimeMXBean().getName();
+
+    /**
+     * OS lock state of this process, by lock file. A JVM can hold only one OS lock on a file, so it is shared by all
+     * threads holding the lock.
+     */
+    private static final ConcurrentMap<String, ProcessLock> processLocks = Maps.newConcurrentMap();
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+
+    private final File cacheDirectory;
+    private final ReadWriteLock jvmLocks;
+    private final boolean shared;
+    private final long timeoutMillis;
+    private final boolean recordAccess;
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    /**
+     * @param jvmLocks in-JVM locks of the cache directory, the read lock is taken if shared and the write lock otherwise
+     * @param timeoutMillis bound on waiting for other processes, 0 not to wait for other threads either
+     * @param recordAccess false for housekeeping, which must not make the cache look recently used
+     */
+    GitCacheLock(@NotNull final File cacheDirectory, @NotNull final ReadWriteLock jvmLocks, final boolean shared, final long timeoutMillis,
+                 final boolean recordAccess)
+    {
+        this.cacheDirectory = cacheDirectory;
+        this.jvmLocks = jvmLocks;
+        this.shared = shared;
+        this.timeoutMillis = timeoutMillis;
+        this.recordAccess = recordAccess;
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    public <R> R withLock(@NotNull final Callable<R> callable) throws Exception
+    {
+        final long waitingSince = System.currentTimeMillis();
+        final Lock jvmLock = lockJvm();
+        try
+        {
+            final ProcessLock processLock = lock(waitingSince);
+            try
+            {
+                return callable.call();
+            }
+            finally
+            {
+                unlockProcesses(processLock);
+            }
+        }
+        finally
+        {
+            jvmLock.unlock();
+        }
+    }
+
+    /**
+     * @throws CacheLockTimeoutException if another process holds the lock for too long
+     */
+    public <R> R withLock(@NotNull final Supplier<R> supplier)
+    {
+        final long waitingSince = System.currentTimeMillis();
+        final Lock jvmLock = lockJvm();
+        try
+        {
+            final ProcessLock processLock = lock(waitingSince);
+            try
+            {
+                return supplier.get();
+            }
+            finally
+            {
+                unlockProcesses(processLock);
+            }
+        }
+        finally
+        {
+            jvmLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the lock file of a removed cache directory. Must be called with the exclusive lock held, the lock is still
+     * released normally.
+     */
+    static void deleteLockFile(@NotNull final File cacheDirectory)
+    {
+        final File lockFile = getLockFile(cacheDirectory);
+        final ProcessLock processLock = processLocks.get(lockFile.getAbsolutePath());
+        if (processLock != null)
+        {
+            processLock.markDeleted();
+        }
+        if (!lockFile.delete() && lockFile.exists())
+        {
+            log.debug("Unable to delete " + lockFile + ", it is deleted with the next removal of the cache");
+        }
+    }
+
+    @NotNull
+    static File getLockFile(@NotNull final File cacheDirectory)
+    {
+        return new File(cacheDirectory.getParentFile(), cacheDirectory.getName() + LOCK_FILE_SUFFIX);
+    }
+
+    /**
+     * @return time of the last locking of the cache by an operation using it, 0 if unknown
+     */
+    static long getLastAccess(@NotNull final File cacheDirectory)
+    {
+        final long lastAccess = getLockFile(cacheDirectory).lastModified();
+        return lastAccess != 0 ? lastAccess : cacheDirectory.lastModified();
+    }
+
+    /**
+     * @return true if a thread of this JVM holds the process lock of the cache directory
+     */
+    static boolean isHeldByThisProcess(@NotNull final File cacheDirectory)
+    {
+        final ProcessLock processLock = processLocks.get(getLockFile(cacheDirectory).getAbsolutePath());
+        return processLock != null && processLock.holdCount > 0;
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    @NotNull
+    private Lock lockJvm()
+    {
+        final Lock jvmLock = shared ? jvmLocks.readLock() : jvmLocks.writeLock();
+        if (timeoutMillis > 0)
+        {
+            jvmLock.lock();
+        }
+        else if (!jvmLock.tryLock())
+        {
+            throw new CacheLockTimeoutException(cacheDirectory + " is locked by another thread");
+        }
+        return jvmLock;
+    }
+
+    /**
+     * @param waitingSince time at which the caller started waiting for the in-JVM lock
+     */
+    @Nullable
+    private ProcessLock lock(final long waitingSince)
+    {
+        final File lockFile = getLockFile(cacheDirectory);
+        final boolean lockFileExisted = lockFile.exists();
+        final ProcessLock processLock = lockProcesses();
+        if (recordAccess)
+        {
+            recordAccess(lockFile);
+            CacheInventory.recordLockWait(cacheDirectory, System.currentTimeMillis() - waitingSince);
+        }
+        else if (!lockFileExisted && lockFile.exists())
+        {
+            lockFile.setLastModified(cacheDirectory.lastModified()); // keep last access of caches created without lock files
+        }
+        return processLock;
+    }
+
+    @Nullable
+    private ProcessLock lockProcesses()
+    {
+        if (!PROCESS_LOCK_ENABLED)
+        {
+            return null;
+        }
+
+        final File lockFile = getLockFile(cacheDirectory);
+        final String key = lockFile.getAbsolutePath();
+        processLocks.putIfAbsent(key, new ProcessLock(lockFile));
+        final ProcessLock processLock = processLocks.get(key);
+        try
+        {
+            return processLock.lock(shared, timeoutMillis) ? processLock : null;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new CacheLockTimeoutException("Interrupted while waiting for the lock on " + cacheDirectory);
+        }
+    }
+
+    private void recordAccess(@NotNull final File lockFile)
+    {
+        if (!lockFile.setLastModified(System.currentTimeMillis()))
+        {
+            try
+            {
+                FileUtils.touch(lockFile);
+            }
+            catch (IOException e)
+            {
+                log.debug("Unable to record access to " + cacheDirectory, e);
+            }
+        }
+    }
+
+    private static void unlockProcesses(@Nullable final ProcessLock processLock)
+    {
+        if (processLock != null)
+        {
+            processLock.unlock();
+        }
+    }
+
+    @Nullable
+    private static FileLock tryLock(@NotNull final FileChannel channel, final boolean shared) throws IOException
+    {
+        try
+        {
+            return channel.tryLock(LOCK_POSITION, 1, shared);
+        }
+        catch (OverlappingFileLockException e)
+        {
+            return null; // held by this JVM through a differently spelled path
+        }
+    }
+
+    private static void writeHolder(@NotNull final FileChannel channel, final long since, final boolean shared) throws IOException
+    {
+        writeHolder(channel, since + " " + PROCESS_NAME + " " + Thread.currentThread().getName() + (shared ? " (shared)" : ""));
+    }
+
+    private static void writeHolder(@NotNull final FileChannel channel, @NotNull final String holder) throws IOException
+    {
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap(holder.getBytes(CharEncoding.UTF_8)), 0);
+    }
+
+    /**
+     * @return true if the lock file has been deleted since the channel was opened, see {@link #deleteLockFile}
+     */
+    private static boolean isDeleted(@NotNull final FileChannel channel) throws IOException
+    {
+        final ByteBuffer buffer = ByteBuffer.allocate(DELETED_HOLDER.length() + 1);
+        final int length = Math.max(0, channel.read(buffer, 0));
+        return DELETED_HOLDER.equals(new String(buffer.array(), 0, length, CharEncoding.UTF_8));
+    }
+
+    /**
+     * @return description of the process holding the lock and for how long, as recorded in the lock file
+     */
+    @NotNull
+    static String describeHolder(@NotNull final FileChannel channel)
+    {
+        try
+        {
+            final ByteBuffer buffer = ByteBuffer.allocate(MAX_HOLDER_LENGTH);
+            final int length = Math.max(0, channel.read(buffer, 0));
+            final String holder = new String(buffer.array(), 0, length, CharEncoding.UTF_8);
+            final int separator = holder.indexOf(' ');
+            if (separator > 0)
+            {
+                final long since = Long.parseLong(holder.substring(0, separator));
+                return "held by " + holder.substring(separator + 1) + " for " + TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - since) + "s";
+            }
+        }
+        catch (IOException e)
+        {
+            log.debug("Unable to read lock holder", e);
+        }
+        catch (NumberFormatException e)
+        {
+            log.debug("Unable to parse lock holder", e);
+        }
+        return "held by an unknown process";
+    }
+
+    private static void closeQuietly(@Nullable final RandomAccessFile file)
+    {
+        if (file != null)
+        {
+            try
+            {
+                file.close();
+            }
+            catch (IOException e)
+            {
+                log.debug("Unable to close lock file", e);
+            }
+        }
+    }
+
+    /**
+     * OS lock on a lock file held by threads of this JVM. The in-JVM lock guarantees that it is either held by one
+     * thread exclusively (possibly reentered) or by any number of threads in shared mode.
+     */
+    private static class ProcessLock
+    {
+        private final File lockFile;
+        private RandomAccessFile file;
+        private FileLock fileLock;
+        private boolean shared;
+        private Thread exclusiveOwner;
+        private volatile int holdCount;
+        private long since;
+
+        private ProcessLock(@NotNull final File lockFile)
+        {
+            this.lockFile = lockFile;
+        }
+
+        /**
+         * @return false if the lock file cannot be locked, other processes are not excluded then
+         */
+        private synchronized boolean lock(final boolean lockShared, final long timeoutMillis) throws InterruptedException
+        {
+            if (holdCount > 0)
+            {
+                if (shared ? !lockShared : exclusiveOwner != Thread.currentThread())
+                {
+                    throw new IllegalStateException("Cannot lock " + lockFile + (lockShared ? " shared" : " exclusively") + ", already locked by " + exclusiveOwner);
+                }
+                holdCount++;
+                return true;
+            }
+
+            RandomAccessFile newFile = null;
+            try
+            {
+                lockFile.getParentFile().mkdirs();
+                newFile = new RandomAccessFile(lockFile, "rw");
+                fileLock = waitForLock(newFile.getChannel(), lockShared, timeoutMillis);
+                while (isDeleted(newFile.getChannel()))
+                {
+                    // deleted while waiting, other processes lock the new file
+                    releaseFileLock();
+                    closeQuietly(newFile);
+                    newFile = null;
+                    newFile = new RandomAccessFile(lockFile, "rw");
+                    fileLock = waitForLock(newFile.getChannel(), lockShared, timeoutMillis);
+                }
+                since = System.currentTimeMillis();
+                final long lastAccess = lockFile.lastModified();
+                writeHolder(newFile.getChannel(), since, lockShared);
+                if (lastAccess != 0)
+                {
+                    lockFile.setLastModified(lastAccess); // only users of the cache count as access
+                }
+                shared = lockShared;
+                exclusiveOwner = lockShared ? null : Thread.currentThread();
+                holdCount = 1;
+                file = newFile;
+                newFile = null;
+                return true;
+            }
+            catch (IOException e)
+            {
+                // the cache can still be used safely by this process, so do not fail the build
+                log.warn("Unable to lock " + lockFile + ", other processes are not excluded from the cache", e);
+                releaseFileLock();
+                return false;
+            }
+            finally
+            {
+                closeQuietly(newFile);
+            }
+        }
+
+        private synchronized void unlock()
+        {
+            if (--holdCount > 0)
+            {
+                return;
+            }
+            final long heldMillis = System.currentTimeMillis() - since;
+            if (heldMillis >= REPORT_INTERVAL_MILLIS)
+            {
+                log.info("Released " + lockFile + " held for " + TimeUnit.MILLISECONDS.toSeconds(heldMillis) + "s");
+            }
+            releaseFileLock();
+            closeQuietly(file);
+            file = null;
+            exclusiveOwner = null;
+        }
+
+        private synchronized void markDeleted()
+        {
+            if (file == null)
+            {
+                return;
+            }
+            try
+            {
+                writeHolder(file.getChannel(), DELETED_HOLDER);
+            }
+            catch (IOException e)
+            {
+                log.warn("Unable to mark " + lockFile + " as deleted", e);
+            }
+        }
+
+        private void releaseFileLock()
+        {
+            if (fileLock != null)
+            {
+                try
+                {
+                    fileLock.release();
+                }
+                catch (IOException e)
+                {
+                    log.warn("Unable to release " + lockFile, e);
+                }
+                fileLock = null;
+            }
+        }
+
+        @NotNull
+        private FileLock waitForLock(@NotNull final FileChannel channel, final boolean shared, final long timeoutMillis) throws IOException, InterruptedException
+        {
+            final long start = System.currentTimeMillis();
+            long lastReport = start;
+            FileLock newLock;
+            while ((newLock = tryLock(channel, shared)) == null)
+            {
+                final long now = System.currentTimeMillis();
+                if (now - start >= timeoutMillis)
+                {
+                    throw new CacheLockTimeoutException("Timed out after " + TimeUnit.MILLISECONDS.toSeconds(now - start) + "s waiting for "
+                                                        + lockFile + ", " + describeHolder(channel));
+                }
+                if (now - lastReport >= REPORT_INTERVAL_MILLIS)
+                {
+                    log.info("Waiting " + TimeUnit.MILLISECONDS.toSeconds(now - start) + "s for " + lockFile + ", " + describeHolder(channel));
+                    lastReport = now;
+                }
+                Thread.sleep(POLL_INTERVAL_MILLIS);
+            }
+            if (lastReport != start)
+            {
+                log.info("Locked " + lockFile + " after waiting " + TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - start) + "s");
+            }
+            return newLock;
+        }
+    }
+}
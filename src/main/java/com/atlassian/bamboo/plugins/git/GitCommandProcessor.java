@@ -18,20 +18,25 @@ import com.google.common.base.CharMatcher;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.SystemUtils;
 import org.apache.log4j.Logger;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -43,6 +48,11 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
     // ------------------------------------------------------------------------------------------------------- Constants
 
     static final Pattern gitVersionPattern = Pattern.compile("^git version (.*)");
+    /**
+     * Whether blobless caches are supported, per git executable.
+     */
+    private static final ConcurrentMap<String, Boolean> blobFilterSupport = Maps.newConcurrentMap();
+
     private static final String SSH_OPTIONS = "-o StrictHostKeyChecking=no -o BatchMode=yes -o UserKnownHostsFile=/dev/null";
     private static final String SSH_WIN =
             "@ssh " + SSH_OPTIONS + " %*\r\n";
@@ -134,6 +144,44 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
         }
     }
 
+    /**
+     * @return true if the git executable can maintain blobless caches, see {@link BloblessCache}
+     */
+    public boolean supportsBlobFilter(@NotNull final File workingDirectory)
+    {
+        final String executable = StringUtils.defaultString(gitExecutable, "git");
+        Boolean supported = blobFilterSupport.get(executable);
+        if (supported == null)
+        {
+            final GitStringOutputHandler outputHandler = new GitStringOutputHandler();
+            try
+            {
+                runCommand(createCommandBuilder("version"), workingDirectory, outputHandler);
+                supported = BloblessCache.isSupportedVersion(outputHandler.getOutput());
+            }
+            catch (RepositoryException e)
+            {
+                log.warn("Unable to determine version of " + executable, e);
+                return false;
+            }
+            if (!supported)
+            {
+                log.info(executable + " does not support blobless caches, " + BloblessCache.MIN_GIT_VERSION + " or later is required: " + outputHandler.getOutput().trim());
+            }
+            blobFilterSupport.put(executable, supported);
+        }
+        return supported;
+    }
+
+    /**
+     * Makes subsequent fetches into the repository skip blobs, see {@link BloblessCache}.
+     */
+    public void runEnableBlobFilterCommand(@NotNull final File workingDirectory) throws RepositoryException
+    {
+        runCommand(createCommandBuilder("config", "remote." + BloblessCache.PROMISOR_REMOTE + ".promisor", "true"), workingDirectory);
+        runCommand(createCommandBuilder("config", "remote." + BloblessCache.PROMISOR_REMOTE + ".partialclonefilter", BloblessCache.BLOB_FILTER), workingDirectory);
+    }
+
     /**
      * Creates .git repository in a given directory.
      *
@@ -158,13 +206,36 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
 
     public void runFetchCommand(@NotNull final File workingDirectory, @NotNull final GitRepository.GitRepositoryAccessData accessData, String refSpec, boolean useShallow) throws RepositoryException
     {
-        GitCommandBuilder commandBuilder = createCommandBuilder("fetch", accessData.repositoryUrl, refSpec, "--update-head-ok");
+        runFetchCommand(workingDirectory, accessData, Collections.singletonList(refSpec), useShallow, !useShallow);
+    }
+
+    /**
+     * Fetches all ref specs in a single fetch, negotiating with the remote repository once.
+     *
+     * @param deepen if true and the repository is shallow, the full history of the ref specs is fetched; otherwise the
+     *               shallow boundaries of the repository are kept
+     */
+    public void runFetchCommand(@NotNull final File workingDirectory, @NotNull final GitRepository.GitRepositoryAccessData accessData, @NotNull Collection<String> refSpecs,
+                                boolean useShallow, boolean deepen) throws RepositoryException
+    {
+        final boolean blobless = BloblessCache.isBlobless(workingDirectory);
+        GitCommandBuilder commandBuilder = createCommandBuilder("fetch", blobless ? BloblessCache.PROMISOR_REMOTE : accessData.repositoryUrl);
+        if (blobless)
+        {
+            // the filter is configured for the promisor remote, its URL is never stored
+            commandBuilder.env(BloblessCache.getPromisorEnvironment(accessData.repositoryUrl));
+        }
+        for (String refSpec : refSpecs)
+        {
+            commandBuilder.append(refSpec);
+        }
+        commandBuilder.append("--update-head-ok");
         if (useShallow)
         {
             commandBuilder.shallowClone();
         }
         File shallowFile = new File(new File(workingDirectory, ".git"), "shallow");
-        if (!useShallow && shallowFile.exists())
+        if (deepen && shallowFile.exists())
         {
             //directory has shallows: we need to make it deep
             commandBuilder.append("--depth=99999999");
@@ -177,6 +248,15 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
         runCommand(commandBuilder, workingDirectory, new LoggingOutputHandler(buildLogger));
     }
 
+    /**
+     * Fetches all branches and tags from a local bundle or repository, see {@link RepositorySeeds}.
+     */
+    public void runSeedFetchCommand(@NotNull final File workingDirectory, @NotNull final File seed) throws RepositoryException
+    {
+        GitCommandBuilder commandBuilder = createCommandBuilder("fetch", seed.getAbsolutePath(), "+refs/heads/*:refs/heads/*", "+refs/tags/*:refs/tags/*", "--update-head-ok");
+        runCommand(commandBuilder, workingDirectory, new LoggingOutputHandler(buildLogger));
+    }
+
     public void runCloneCommand(@NotNull final File workingDirectory, @NotNull final String repositoryUrl, boolean useShallowClone, boolean verboseLogs) throws RepositoryException
     {
         GitCommandBuilder commandBuilder = createCommandBuilder("clone", repositoryUrl);
@@ -194,6 +274,14 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
     }
 
     public void runCheckoutCommand(@NotNull final File workingDirectory, String revision) throws RepositoryException
+    {
+        runCheckoutCommand(workingDirectory, revision, null);
+    }
+
+    /**
+     * @param promisorUrl if not null, blobs missing from the repository are fetched from this URL, see {@link BloblessCache}
+     */
+    public void runCheckoutCommand(@NotNull final File workingDirectory, String revision, @Nullable String promisorUrl) throws RepositoryException
     {
         /**
          * this call to git log checks if requested revision is considered as HEAD of resolved branch. If so, instead of calling explicit revision,
@@ -206,12 +294,21 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
         {
            destination = possibleBranch;
         }
-        runCheckoutCommandForBranchOrRevision(workingDirectory, destination);
+        runCheckoutCommandForBranchOrRevision(workingDirectory, destination, promisorUrl);
     }
 
     public void runCheckoutCommandForBranchOrRevision(@NotNull final File workingDirectory, String destination) throws RepositoryException
+    {
+        runCheckoutCommandForBranchOrRevision(workingDirectory, destination, null);
+    }
+
+    public void runCheckoutCommandForBranchOrRevision(@NotNull final File workingDirectory, String destination, @Nullable String promisorUrl) throws RepositoryException
     {
         GitCommandBuilder commandBuilder = createCommandBuilder("checkout", "-f", destination);
+        if (promisorUrl != null)
+        {
+            commandBuilder.env(BloblessCache.getPromisorEnvironment(promisorUrl));
+        }
         runCommand(commandBuilder, workingDirectory, new LoggingOutputHandler(buildLogger));
     }
 
@@ -222,6 +319,23 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
         runCommand(commandBuilder, workingDirectory, new LoggingOutputHandler(buildLogger));
     }
 
+    /**
+     * Packs refs and objects, writing reachability bitmaps and the commit-graph file (ignored by git versions not
+     * supporting them), and prunes unreachable objects older than git's default expiry.
+     *
+     * @param keepUnreachable if true, unreachable objects are never pruned: workspaces borrowing the repository's
+     *                        objects through their alternates may still reference them, however old they are
+     */
+    public void runGcCommand(@NotNull final File workingDirectory, final boolean keepUnreachable) throws RepositoryException
+    {
+        GitCommandBuilder commandBuilder = createCommandBuilder("-c", "repack.writeBitmaps=true", "-c", "gc.writeCommitGraph=true", "gc", "--quiet");
+        if (keepUnreachable)
+        {
+            commandBuilder.append("--prune=never");
+        }
+        runCommand(commandBuilder, workingDirectory, new LoggingOutputHandler(buildLogger));
+    }
+
     @NotNull
     public String getRevisionHash(@NotNull final File workingDirectory, @NotNull String revision) throws RepositoryException
     {
@@ -232,6 +346,69 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
         return outputHandler.getOutput().trim();
     }
 
+    public boolean hasCommit(@NotNull final File workingDirectory, @NotNull final String revision)
+    {
+        GitCommandBuilder commandBuilder = createCommandBuilder("cat-file", "-e", revision + "^{commit}");
+        try
+        {
+            runCommand(commandBuilder, workingDirectory, new GitStringOutputHandler());
+            return true;
+        }
+        catch (RepositoryException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * @return commit the local ref points to, null if the ref does not exist
+     */
+    @Nullable
+    public String getLocalRefRevision(@NotNull final File workingDirectory, @NotNull final String refName)
+    {
+        GitCommandBuilder commandBuilder = createCommandBuilder("rev-parse", "--verify", "-q", refName + "^{commit}");
+        final GitStringOutputHandler outputHandler = new GitStringOutputHandler();
+        try
+        {
+            runCommand(commandBuilder, workingDirectory, outputHandler);
+        }
+        catch (RepositoryException e)
+        {
+            return null;
+        }
+        return StringUtils.trimToNull(outputHandler.getOutput());
+    }
+
+    /**
+     * Answers from the commit graph index if both commits are indexed, otherwise lists at most one commit reachable from
+     * ancestor but not from descendant, which only walks the commits between them.
+     */
+    public boolean isAncestor(@NotNull final File workingDirectory, @NotNull final String ancestor, @NotNull final String descendant) throws RepositoryException
+    {
+        final CommitGraphIndex index = ObjectId.isId(ancestor) && ObjectId.isId(descendant) ? CommitGraphIndex.open(workingDirectory) : null;
+        if (index != null)
+        {
+            final Boolean indexed = index.isAncestor(ObjectId.fromString(ancestor), ObjectId.fromString(descendant));
+            if (indexed != null)
+            {
+                return indexed;
+            }
+        }
+        GitCommandBuilder commandBuilder = createCommandBuilder("rev-list", "-1", ancestor, "^" + descendant);
+        final GitStringOutputHandler outputHandler = new GitStringOutputHandler();
+        runCommand(commandBuilder, workingDirectory, outputHandler);
+        return StringUtils.isBlank(outputHandler.getOutput());
+    }
+
+    /**
+     * Moves the ref only if it still points to oldRevision.
+     */
+    public void runUpdateRefCommand(@NotNull final File workingDirectory, @NotNull final String refName, @NotNull final String newRevision, @NotNull final String oldRevision) throws RepositoryException
+    {
+        GitCommandBuilder commandBuilder = createCommandBuilder("update-ref", refName, newRevision, oldRevision);
+        runCommand(commandBuilder, workingDirectory, new LoggingOutputHandler(buildLogger));
+    }
+
     // -------------------------------------------------------------------------------------------------- Helper Methods
 
     public String getPossibleBranchNameForCheckout(File workingDirectory, String revision) throws RepositoryException
@@ -258,38 +435,26 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
         return "";
     }
 
-    @Nullable
-    public String getRemoteBranchLatestCommitHash(File workingDirectory, GitRepository.GitRepositoryAccessData accessData, String branchRef) throws RepositoryException
-    {
-        LineOutputHandlerImpl goh = new LineOutputHandlerImpl();
-        GitCommandBuilder commandBuilder = createCommandBuilder("ls-remote", accessData.repositoryUrl, branchRef);
-        runCommand(commandBuilder, workingDirectory, goh);
-        for (String ref : goh.getLines())
-        {
-            if (ref.contains(branchRef))
-            {
-                return ref.substring(0, ref.indexOf(branchRef)).trim();
-            }
-
-        }
-        return null;
-    }
-
-    public Set<String> getRemoteRefs(File workingDirectory, GitRepository.GitRepositoryAccessData accessData) throws RepositoryException
+    /**
+     * @return map of refs advertised by the remote repository to the object ids they point to, peeled tags are skipped
+     */
+    @NotNull
+    public Map<String, String> getRemoteRefs(File workingDirectory, GitRepository.GitRepositoryAccessData accessData) throws RepositoryException
     {
         LineOutputHandlerImpl goh = new LineOutputHandlerImpl();
         GitCommandBuilder commandBuilder = createCommandBuilder("ls-remote", accessData.repositoryUrl);
         runCommand(commandBuilder, workingDirectory, goh);
-        Set<String> result = Sets.newHashSet();
-        for (String ref : goh.getLines())
+        Map<String, String> result = Maps.newHashMap();
+        for (String line : goh.getLines())
         {
-            if (ref.contains("^{}"))
+            if (line.contains("^{}"))
             {
                 continue;
             }
-            if (ref.contains("refs"))
+            final int separator = StringUtils.indexOfAny(line, " \t");
+            if (separator > 0)
             {
-                result.add(ref.substring(ref.indexOf("refs")));
+                result.put(line.substring(separator).trim(), line.substring(0, separator));
             }
         }
         return result;
@@ -316,13 +481,22 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
 
     public int runCommand(@NotNull final GitCommandBuilder commandBuilder, @NotNull final File workingDirectory,
                           @NotNull final GitOutputHandler outputHandler) throws RepositoryException
+    {
+        return runCommand(commandBuilder, workingDirectory, outputHandler, outputHandler);
+    }
+
+    /**
+     * Runs the command with separate handlers for standard and error output, for handlers that parse the output.
+     */
+    public int runCommand(@NotNull final GitCommandBuilder commandBuilder, @NotNull final File workingDirectory,
+                          @NotNull final GitOutputHandler outputHandler, @NotNull final GitOutputHandler errorHandler) throws RepositoryException
     {
         //noinspection ResultOfMethodCallIgnored
         workingDirectory.mkdirs();
 
         PluggableProcessHandler handler = new PluggableProcessHandler();
         handler.setOutputHandler(outputHandler);
-        handler.setErrorHandler(outputHandler);
+        handler.setErrorHandler(errorHandler);
 
         final List<String> commandArgs = commandBuilder.build();
         if (maxVerboseOutput || log.isDebugEnabled())
@@ -357,7 +531,7 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
                     "command " + RepositoryUrlObfuscator.obfuscatePasswordsInUrls(commandArgs) + " failed with code " + handler.getExitCode() + "." +
                     " Working directory was ["+ workingDirectory + "].", proxyException != null ? proxyException : handler.getException(),
                     outputHandler.getStdout(),
-                    proxyErrorMessage != null ? "SSH Proxy error: " + proxyErrorMessage : outputHandler.getStdout());
+                    proxyErrorMessage != null ? "SSH Proxy error: " + proxyErrorMessage : errorHandler.getStdout());
         }
 
         return handler.getExitCode();
@@ -376,8 +550,8 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
     public CommitContext extractCommit(final File directory, final String targetRevision) throws  RepositoryException
     {
         final CommitOutputHandler coh = new CommitOutputHandler(Collections.<String>emptySet());
-        GitCommandBuilder commandBuilder = createCommandBuilder("log", "-1", "--format=" + CommitOutputHandler.LOG_COMMAND_FORMAT_STRING, targetRevision);
-        runCommand(commandBuilder, directory, coh);
+        GitCommandBuilder commandBuilder = createCommandBuilder("log", "-1", "-z", "--format=" + CommitOutputHandler.LOG_COMMAND_FORMAT_STRING, targetRevision);
+        runCommand(commandBuilder, directory, coh, new GitStringOutputHandler());
         List<CommitContext> commits = coh.getExtractedCommits();
 
         if (commits.isEmpty())
@@ -387,13 +561,77 @@ class GitCommandProcessor implements Serializable, ProxyErrorReceiver
         return commits.get(0);
     }
 
-    public Pair<List<CommitContext>, Integer> runLogCommand(final File cacheDirectory, final String lastVcsRevisionKey, final String targetRevision, @NotNull final Set<String> shallows, final int maxCommits) throws RepositoryException
+    public Pair<List<CommitContext>, Integer> runLogCommand(final File cacheDirectory, final String lastVcsRevisionKey, final String targetRevision, @NotNull final Set<String> shallows, final int maxCommits,
+                                                            @NotNull final CommitFileListBudget fileListBudget, @Nullable final ChangesetPathFilter pathFilter) throws RepositoryException
     {
-        GitCommandBuilder commandBuilder = createCommandBuilder("log", "-p", "--name-only", "--format=" + CommitOutputHandler.LOG_COMMAND_FORMAT_STRING, lastVcsRevisionKey + ".." + targetRevision);
+        final String revisionRange = lastVcsRevisionKey + ".." + targetRevision;
+        final String pathspec = pathFilter != null ? pathFilter.getDirectory() : null;
+        GitCommandBuilder commandBuilder = createCommandBuilder("log", "-z", "--name-only", "--format=" + CommitOutputHandler.LOG_COMMAND_FORMAT_STRING, revisionRange);
+        if (BloblessCache.isBlobless(cacheDirectory))
+        {
+            // detecting renames by content would need the blobs
+            commandBuilder.append("--no-renames");
+        }
+        if (pathspec != null)
+        {
+            // only the directory is diffed; all commits are still listed (no history simplification, which would hide
+            // merges) and the ones without files are dropped by the output handler, as JGit does
+            commandBuilder.append("--full-history").append("--sparse").append("--").append(pathspec);
+        }
         log.info("from revision: [" + lastVcsRevisionKey + "]; to revision: [" + targetRevision + "]");
-        final CommitOutputHandler coh = new CommitOutputHandler(shallows, maxCommits);
-        runCommand(commandBuilder, cacheDirectory, coh);
-        return new Pair<List<CommitContext>, Integer>(coh.getExtractedCommits(), coh.getSkippedCommitCount());
+        final CommitOutputHandler coh = new CommitOutputHandler(shallows, maxCommits, fileListBudget, pathFilter);
+        try
+        {
+            runCommand(commandBuilder, cacheDirectory, coh, new GitStringOutputHandler());
+        }
+        catch (GitCommandException e)
+        {
+            // git log is killed once enough commits have been read
+            if (!coh.isLimitReached())
+            {
+                throw e;
+            }
+        }
+
+        final List<CommitContext> commits = coh.getExtractedCommits();
+        final int skippedCommits = coh.isLimitReached() ? countCommits(cacheDirectory, lastVcsRevisionKey, targetRevision) - coh.getProcessedCommits() : 0;
+        return new Pair<List<CommitContext>, Integer>(commits, skippedCommits);
+    }
+
+    /**
+     * Counts commits reachable from targetRevision but not from lastVcsRevisionKey, using the commit graph index if both
+     * are indexed.
+     */
+    private int countCommits(@NotNull final File workingDirectory, @NotNull final String lastVcsRevisionKey, @NotNull final String targetRevision) throws RepositoryException
+    {
+        final CommitGraphIndex index = ObjectId.isId(lastVcsRevisionKey) && ObjectId.isId(targetRevision) ? CommitGraphIndex.open(workingDirectory) : null;
+        if (index != null)
+        {
+            final int count = index.countCommits(ObjectId.fromString(targetRevision), ObjectId.fromString(lastVcsRevisionKey));
+            if (count >= 0)
+            {
+                return count;
+            }
+        }
+        return getCommitCount(workingDirectory, lastVcsRevisionKey + ".." + targetRevision);
+    }
+
+    /**
+     * Counts commits in the range without producing their contents.
+     */
+    public int getCommitCount(@NotNull final File workingDirectory, @NotNull final String revisionRange) throws RepositoryException
+    {
+        GitCommandBuilder commandBuilder = createCommandBuilder("rev-list", "--count", revisionRange);
+        final GitStringOutputHandler outputHandler = new GitStringOutputHandler();
+        runCommand(commandBuilder, workingDirectory, outputHandler);
+        try
+        {
+            return Integer.parseInt(outputHandler.getOutput().trim());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new RepositoryException("Cannot count commits in " + revisionRange + ": " + outputHandler.getOutput(), e);
+        }
     }
 
     interface GitOutputHandler extends OutputHandler
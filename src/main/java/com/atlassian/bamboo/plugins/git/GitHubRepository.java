@@ -314,6 +314,12 @@ public class GitHubRepository extends AbstractStandaloneRepository implements Cu
         return verboseLogs;
     }
 
+    @NotNull
+    public GitRepository getGitRepository()
+    {
+        return gitRepository;
+    }
+
     @NotNull
     @Deprecated
     public List<VcsBranch> getOpenBranches() throws RepositoryException
@@ -9,6 +9,7 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 
 public interface GitOperationHelper
@@ -28,6 +29,48 @@ public interface GitOperationHelper
 
     void fetch(@NotNull File sourceDirectory, boolean useShallow) throws RepositoryException;
 
+    /**
+     * Fetches the branch of this helper together with other branches of the same repository in a single fetch, so
+     * that the remote repository is contacted once. Never shallow. Branches which no longer exist remotely are skipped.
+     */
+    void fetch(@NotNull File sourceDirectory, @NotNull Collection<String> otherBranches) throws RepositoryException;
+
+    /**
+     * Fetches the branch of this helper into a shallow repository without changing its depth: only commits missing
+     * from the repository are transferred, and the history other branches have been deepened to is left intact.
+     */
+    void fetchKeepingDepth(@NotNull File sourceDirectory) throws RepositoryException;
+
+    /**
+     * @param workingDirectory existing directory to run commands in
+     * @return true if this helper can maintain blobless caches, see {@link BloblessCache}
+     */
+    boolean supportsBlobFilter(@NotNull File workingDirectory);
+
+    /**
+     * Makes fetches into the cache directory skip blobs, see {@link BloblessCache}. Does nothing if the cache is
+     * already blobless.
+     *
+     * @return false if this helper cannot maintain blobless caches
+     */
+    boolean enableBlobFilter(@NotNull File cacheDirectory) throws RepositoryException;
+
+    /**
+     * @return digest of the repository URL and credentials used by this helper, plans sharing a cache with different
+     *         credentials have different keys
+     */
+    @NotNull
+    String getAccessKey();
+
+    /**
+     * Checks whether a previous fetch (possibly by another plan sharing the directory) already brought targetRevision
+     * into the repository and, if so, moves the local branch ref forward to it so that the upstream fetch can be skipped.
+     *
+     * @param requireFullHistory if true, a shallow repository is never considered up to date
+     * @return true if no fetch is needed to work with targetRevision
+     */
+    boolean updateRefIfRevisionPresent(@NotNull File repositoryDirectory, @NotNull String targetRevision, boolean requireFullHistory) throws RepositoryException;
+
     @NotNull
     String getCurrentRevision(@NotNull File sourceDirectory) throws RepositoryException;
 
@@ -48,4 +91,16 @@ public interface GitOperationHelper
     boolean merge(@NotNull File workspaceDir, @NotNull String targetRevision, @NotNull String committerName, @NotNull String committerEmail) throws RepositoryException;
 
     BuildRepositoryChanges extractCommits(File cacheDirectory, String lastVcsRevisionKey, String targetRevision) throws RepositoryException;
+
+    /**
+     * Same as {@link #extractCommits(File, String, String)}, but lists only files passing the filter and omits commits
+     * whose changed files are all filtered out.
+     */
+    BuildRepositoryChanges extractCommits(File cacheDirectory, String lastVcsRevisionKey, String targetRevision, @Nullable ChangesetPathFilter pathFilter) throws RepositoryException;
+
+    /**
+     * Compacts the cache repository: deletes branches removed from the remote repository, packs refs and objects and
+     * prunes unreachable objects where supported. Must be called with the cache lock held.
+     */
+    void maintainCache(@NotNull File cacheDirectory) throws RepositoryException;
 }
@@ -108,6 +108,12 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
 
     static final int DEFAULT_COMMAND_TIMEOUT_IN_MINUTES = 180;
 
+    /**
+     * Fetches into the cache followed by checkouts from it, repeated while the checked out revision keeps disappearing
+     * from the cache between the two.
+     */
+    private static final int CHECKOUT_FROM_CACHE_ATTEMPTS = 3;
+
     // ------------------------------------------------------------------------------------------------- Type Properties
 
     private static final Logger log = Logger.getLogger(GitRepository.class);
@@ -202,8 +208,9 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
     {
         try
         {
+            emptyTrashLeftovers();
             final BuildLogger buildLogger = buildLoggerManager.getBuildLogger(PlanKeys.getPlanKey(planKey));
-            final GitRepositoryAccessData substitutedAccessData = getSubstitutedAccessData();
+            final GitRepositoryAccessData substitutedAccessData = getChangeDetectionAccessData();
             final GitOperationHelper helper = GitOperationHelperFactory.createGitOperationHelper(this, substitutedAccessData, sshProxyService, buildLogger, i18nResolver);
 
             final String targetRevision = helper.obtainLatestRevision();
@@ -213,18 +220,25 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
                 return new BuildRepositoryChangesImpl(targetRevision);
             }
 
-            final File cacheDirectory = getCacheDirectory();
+            final File cacheDirectory = getCacheDirectory(helper, substitutedAccessData);
+            CacheMaintenance.register(this, cacheDirectory);
+            CacheInventory.recordUse(cacheDirectory, planKey, substitutedAccessData.repositoryUrl);
+            GitCacheDirectory.registerBranch(cacheDirectory, substitutedAccessData.branch);
             if (lastVcsRevisionKey == null)
             {
                 buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.ccRepositoryNeverChecked", targetRevision));
                 try
                 {
+                    final long waitingSince = System.nanoTime();
                     GitCacheDirectory.getCacheLock(cacheDirectory).withLock(new Callable<Void>()
                     {
                         public Void call() throws RepositoryException
                         {
-                            boolean doShallowFetch = USE_SHALLOW_CLONES && substitutedAccessData.useShallowClones && !cacheDirectory.isDirectory();
-                            helper.fetch(cacheDirectory, doShallowFetch);
+                            if (!helper.updateRefIfRevisionPresent(cacheDirectory, targetRevision, false))
+                            {
+                                boolean doShallowFetch = USE_SHALLOW_CLONES && substitutedAccessData.useShallowClones && !cacheDirectory.isDirectory();
+                                GitCacheDirectory.fetchUnlessFailedWhileWaiting(helper, cacheDirectory, substitutedAccessData.branch, doShallowFetch, waitingSince);
+                            }
                             return null;
                         }
                     });
@@ -236,26 +250,54 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
                 return new BuildRepositoryChangesImpl(targetRevision);
             }
 
-            final BuildRepositoryChanges buildChanges = GitCacheDirectory.getCacheLock(cacheDirectory).withLock(new Supplier<BuildRepositoryChanges>()
+            final ChangesetPathFilter pathFilter = ChangesetPathFilter.create(getFilterFilePatternOption(), getFilterFilePatternRegex());
+            final long waitingSince = System.nanoTime();
+            BuildRepositoryChanges buildChanges;
+            try
             {
-                public BuildRepositoryChanges get()
+                GitCacheDirectory.getCacheLock(cacheDirectory).withLock(new Callable<Void>()
                 {
-                    try
+                    public Void call() throws RepositoryException
                     {
-                        helper.fetch(cacheDirectory, false);
-                        return helper.extractCommits(cacheDirectory, lastVcsRevisionKey, targetRevision);
+                        if (!helper.updateRefIfRevisionPresent(cacheDirectory, targetRevision, true))
+                        {
+                            GitCacheDirectory.fetchUnlessFailedWhileWaiting(helper, cacheDirectory, substitutedAccessData.branch, false, waitingSince);
+                        }
+                        return null;
                     }
-                    catch (Exception e) // not just RepositoryException - see HandlingSwitchingRepositoriesToUnrelatedOnesTest.testCollectChangesWithUnrelatedPreviousRevision
+                });
+                buildChanges = GitCacheDirectory.getSharedCacheLock(cacheDirectory).withLock(new Callable<BuildRepositoryChanges>()
+                {
+                    public BuildRepositoryChanges call() throws RepositoryException
+                    {
+                        return helper.extractCommits(cacheDirectory, lastVcsRevisionKey, targetRevision, pathFilter);
+                    }
+                });
+            }
+            catch (CacheLockTimeoutException e)
+            {
+                throw e;
+            }
+            catch (final Exception e) // not just RepositoryException - see HandlingSwitchingRepositoriesToUnrelatedOnesTest.testCollectChangesWithUnrelatedPreviousRevision
+            {
+                buildChanges = GitCacheDirectory.getCacheLock(cacheDirectory).withLock(new Supplier<BuildRepositoryChanges>()
+                {
+                    public BuildRepositoryChanges get()
                     {
                         try
                         {
-                            rethrowOrRemoveDirectory(e, buildLogger, cacheDirectory, "repository.git.messages.ccRecover.failedToCollectChangesets");
-                            buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.ccRecover.cleanedCacheDirectory", cacheDirectory));
-                            helper.fetch(cacheDirectory, false);
-                            buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.ccRecover.fetchedRemoteRepository", cacheDirectory));
-                            BuildRepositoryChanges extractedChanges = helper.extractCommits(cacheDirectory, lastVcsRevisionKey, targetRevision);
-                            buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.ccRecover.completed"));
-                            return extractedChanges;
+                            return recoverDirectory(e, buildLogger, cacheDirectory, "repository.git.messages.ccRecover.failedToCollectChangesets",
+                                                    "repository.git.messages.ccRecover.cleanedCacheDirectory", new Callable<BuildRepositoryChanges>()
+                            {
+                                public BuildRepositoryChanges call() throws Exception
+                                {
+                                    GitCacheDirectory.fetch(helper, cacheDirectory, substitutedAccessData.branch, false);
+                                    buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.ccRecover.fetchedRemoteRepository", cacheDirectory));
+                                    BuildRepositoryChanges extractedChanges = helper.extractCommits(cacheDirectory, lastVcsRevisionKey, targetRevision, pathFilter);
+                                    buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.ccRecover.completed"));
+                                    return extractedChanges;
+                                }
+                            });
                         }
                         catch (Exception e2)
                         {
@@ -263,13 +305,18 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
                             return null;
                         }
                     }
-                }
-            });
+                });
+            }
 
             if (buildChanges != null && !buildChanges.getChanges().isEmpty())
             {
                 return buildChanges;
             }
+            else if (buildChanges != null && pathFilter != null && pathFilter.getFilteredOutCommits() > 0)
+            {
+                // all new commits touch only files excluded by the plan
+                return new BuildRepositoryChangesImpl(targetRevision);
+            }
             else
             {
                 return new BuildRepositoryChangesImpl(targetRevision, Collections.singletonList((CommitContext) CommitContextImpl.builder()
@@ -298,6 +345,7 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
     {
         try
         {
+            emptyTrashLeftovers();
             final GitRepositoryAccessData substitutedAccessData = getSubstitutedAccessData();
             final BuildLogger buildLogger = buildLoggerManager.getBuildLogger(buildContext.getPlanResultKey());
             final GitOperationHelper helper = GitOperationHelperFactory.createGitOperationHelper(this, substitutedAccessData, sshProxyService, buildLogger, i18nResolver);
@@ -310,39 +358,91 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
 
             if (isOnLocalAgent())
             {
-                final File cacheDirectory = getCacheDirectory(substitutedAccessData);
-                return GitCacheDirectory.getCacheLock(cacheDirectory).withLock(new Callable<String>()
+                final File cacheDirectory = getCacheDirectory(helper, substitutedAccessData);
+                CacheInventory.recordUse(cacheDirectory, buildContext.getPlanKey(), substitutedAccessData.repositoryUrl);
+                final long waitingSince = System.nanoTime();
+                final Callable<Void> fetchIntoCache = new Callable<Void>()
                 {
-                    public String call() throws Exception
+                    public Void call() throws Exception
                     {
                         try
                         {
-                            helper.fetch(cacheDirectory, doShallowFetch && !cacheDirectory.isDirectory());
+                            if (!helper.updateRefIfRevisionPresent(cacheDirectory, targetRevision, false))
+                            {
+                                if (doShallowFetch && GitCacheDirectory.SHARED_SHALLOW_CACHE)
+                                {
+                                    GitCacheDirectory.fetchIntoSharedShallowCache(helper, cacheDirectory, substitutedAccessData.branch, targetRevision, waitingSince);
+                                }
+                                else
+                                {
+                                    GitCacheDirectory.fetchUnlessFailedWhileWaiting(helper, cacheDirectory, substitutedAccessData.branch,
+                                                                                    doShallowFetch && !cacheDirectory.isDirectory(), waitingSince);
+                                }
+                            }
                             helper.checkRevisionExistsInCacheRepository(cacheDirectory, targetRevision);
                         }
                         catch (Exception e)
                         {
-                            rethrowOrRemoveDirectory(e, buildLogger, cacheDirectory, "repository.git.messages.rsRecover.failedToFetchCache");
-                            buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.rsRecover.cleanedCacheDirectory", cacheDirectory));
-                            helper.fetch(cacheDirectory, false);
-                            buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.rsRecover.fetchingCacheCompleted", cacheDirectory));
+                            recoverDirectory(e, buildLogger, cacheDirectory, "repository.git.messages.rsRecover.failedToFetchCache",
+                                             "repository.git.messages.rsRecover.cleanedCacheDirectory", new Callable<Void>()
+                            {
+                                public Void call() throws Exception
+                                {
+                                    GitCacheDirectory.fetch(helper, cacheDirectory, substitutedAccessData.branch, false);
+                                    helper.checkRevisionExistsInCacheRepository(cacheDirectory, targetRevision);
+                                    buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.rsRecover.fetchingCacheCompleted", cacheDirectory));
+                                    return null;
+                                }
+                            });
+                        }
+                        return null;
+                    }
+                };
+                final Callable<String> checkoutFromCache = new Callable<String>()
+                {
+                    public String call() throws Exception
+                    {
+                        if (!GitCacheDirectory.containsRevision(helper, cacheDirectory, targetRevision))
+                        {
+                            return null;
                         }
-
                         try
                         {
                             return helper.checkout(cacheDirectory, sourceDirectory, targetRevision, previousRevision);
                         }
                         catch (Exception e)
                         {
-                            rethrowOrRemoveDirectory(e, buildLogger, sourceDirectory, "repository.git.messages.rsRecover.failedToCheckout");
-                            buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.rsRecover.cleanedSourceDirectory", sourceDirectory));
-                            String returnRevision = helper.checkout(cacheDirectory, sourceDirectory, targetRevision, null);
-                            buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.rsRecover.checkoutCompleted"));
-                            return returnRevision;
+                            return recoverDirectory(e, buildLogger, sourceDirectory, "repository.git.messages.rsRecover.failedToCheckout",
+                                                    "repository.git.messages.rsRecover.cleanedSourceDirectory", new Callable<String>()
+                            {
+                                public String call() throws Exception
+                                {
+                                    String returnRevision = helper.checkout(cacheDirectory, sourceDirectory, targetRevision, null);
+                                    buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.rsRecover.checkoutCompleted"));
+                                    return returnRevision;
+                                }
+                            });
                         }
                     }
-                });
+                };
 
+                // the checkout only reads objects and refs of the cache, so checkouts of the same repository run in
+                // parallel; the fetch lock is released first, so the cache may be evicted, repaired or trashed in
+                // between, and is then fetched again
+                for (int attempt = 1; ; attempt++)
+                {
+                    GitCacheDirectory.getCacheLock(cacheDirectory).withLock(fetchIntoCache);
+                    final String revision = GitCacheDirectory.getSharedCacheLock(cacheDirectory).withLock(checkoutFromCache);
+                    if (revision != null)
+                    {
+                        return revision;
+                    }
+                    if (attempt >= CHECKOUT_FROM_CACHE_ATTEMPTS)
+                    {
+                        throw new RepositoryException(i18nResolver.getText("repository.git.messages.cacheChangedBeforeCheckout", cacheDirectory, targetRevision));
+                    }
+                    log.info(targetRevision + " has been removed from " + cacheDirectory + " before the checkout, fetching it again");
+                }
             }
             else //isOnRemoteAgent
             {
@@ -353,13 +453,18 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
                 }
                 catch (Exception e)
                 {
-                    rethrowOrRemoveDirectory(e, buildLogger, sourceDirectory, "repository.git.messages.rsRecover.failedToCheckout");
-                    buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.rsRecover.cleanedSourceDirectory", sourceDirectory));
-                    helper.fetch(sourceDirectory, false);
-                    buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.rsRecover.fetchingCompleted", sourceDirectory));
-                    String returnRevision = helper.checkout(null, sourceDirectory, targetRevision, null);
-                    buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.rsRecover.checkoutCompleted"));
-                    return returnRevision;
+                    return recoverDirectory(e, buildLogger, sourceDirectory, "repository.git.messages.rsRecover.failedToCheckout",
+                                            "repository.git.messages.rsRecover.cleanedSourceDirectory", new Callable<String>()
+                    {
+                        public String call() throws Exception
+                        {
+                            helper.fetch(sourceDirectory, false);
+                            buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.rsRecover.fetchingCompleted", sourceDirectory));
+                            String returnRevision = helper.checkout(null, sourceDirectory, targetRevision, null);
+                            buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.rsRecover.checkoutCompleted"));
+                            return returnRevision;
+                        }
+                    });
                 }
             }
         }
@@ -454,12 +559,13 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
         final boolean doShallowFetch = false; //USE_SHALLOW_CLONES && substitutedAccessData.useShallowClones;
         substitutedAccessData.useShallowClones = doShallowFetch;
 
-        final File cacheDirectory = getCacheDirectory(substitutedAccessData);
+        final File cacheDirectory = getCacheDirectory(connector, substitutedAccessData);
 
         try
         {
             if (isOnLocalAgent())
             {
+                final long waitingSince = System.nanoTime();
                 GitCacheDirectory.getCacheLock(cacheDirectory).withLock(new Callable<Void>()
                 {
                     @Override
@@ -467,15 +573,25 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
                     {
                         try
                         {
-                            connector.fetch(cacheDirectory, doShallowFetch);
+                            if (!connector.updateRefIfRevisionPresent(cacheDirectory, targetRevision, true))
+                            {
+                                GitCacheDirectory.fetchUnlessFailedWhileWaiting(connector, cacheDirectory, substitutedAccessData.branch, doShallowFetch, waitingSince);
+                            }
                             connector.checkRevisionExistsInCacheRepository(cacheDirectory, targetRevision);
                         }
                         catch (Exception e)
                         {
-                            rethrowOrRemoveDirectory(e, buildLogger, cacheDirectory, "repository.git.messages.rsRecover.failedToFetchCache");
-                            buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.rsRecover.cleanedCacheDirectory", cacheDirectory));
-                            connector.fetch(cacheDirectory, false);
-                            buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.rsRecover.fetchingCacheCompleted", cacheDirectory));
+                            recoverDirectory(e, buildLogger, cacheDirectory, "repository.git.messages.rsRecover.failedToFetchCache",
+                                             "repository.git.messages.rsRecover.cleanedCacheDirectory", new Callable<Void>()
+                            {
+                                public Void call() throws Exception
+                                {
+                                    GitCacheDirectory.fetch(connector, cacheDirectory, substitutedAccessData.branch, false);
+                                    connector.checkRevisionExistsInCacheRepository(cacheDirectory, targetRevision);
+                                    buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.rsRecover.fetchingCacheCompleted", cacheDirectory));
+                                    return null;
+                                }
+                            });
                         }
                         return null;
                     }
@@ -490,9 +606,15 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
                 }
                 catch (Exception e)
                 {
-                    rethrowOrRemoveDirectory(e, buildLogger, workspaceDir, "repository.git.messages.rsRecover.failedToFetchWorkingDir");
-                    buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.rsRecover.cleanedSourceDirectory", workspaceDir));
-                    connector.fetch(workspaceDir, false);
+                    recoverDirectory(e, buildLogger, workspaceDir, "repository.git.messages.rsRecover.failedToFetchWorkingDir",
+                                     "repository.git.messages.rsRecover.cleanedSourceDirectory", new Callable<Void>()
+                    {
+                        public Void call() throws Exception
+                        {
+                            connector.fetch(workspaceDir, false);
+                            return null;
+                        }
+                    });
                 }
             }
         }
@@ -521,13 +643,14 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
     {
 
         final BuildLogger buildLogger = new NullBuildLogger();
-        final GitRepositoryAccessData substitutedAccessData = getSubstitutedAccessData();
+        final GitRepositoryAccessData substitutedAccessData = getChangeDetectionAccessData();
         final GitOperationHelper helper = GitOperationHelperFactory.createGitOperationHelper(this, substitutedAccessData, sshProxyService, buildLogger, i18nResolver);
 
         final String targetRevision = helper.obtainLatestRevision();
 
-        final File cacheDirectory = getCacheDirectory();
+        final File cacheDirectory = getCacheDirectory(helper, substitutedAccessData);
         log.debug("Fetching remote repository");
+        final long waitingSince = System.nanoTime();
         Result<RepositoryException, CommitContext> result = GitCacheDirectory.getCacheLock(cacheDirectory).withLock(new Supplier<Result<RepositoryException, CommitContext>>()
         {
             public Result<RepositoryException, CommitContext> get()
@@ -535,8 +658,11 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
                 boolean doShallowFetch = USE_SHALLOW_CLONES && substitutedAccessData.useShallowClones && !cacheDirectory.isDirectory();
                 try
                 {
-                    helper.fetch(cacheDirectory, doShallowFetch);
-                    return Result.result(helper.getCommit(cacheDirectory, targetRevision));
+                    if (!helper.updateRefIfRevisionPresent(cacheDirectory, targetRevision, false))
+                    {
+                        GitCacheDirectory.fetchUnlessFailedWhileWaiting(helper, cacheDirectory, substitutedAccessData.branch, doShallowFetch, waitingSince);
+                    }
+                    return null;
                 }
                 catch (RepositoryException e)
                 {
@@ -544,6 +670,23 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
                 }
             }
         });
+        if (result == null)
+        {
+            result = GitCacheDirectory.getSharedCacheLock(cacheDirectory).withLock(new Supplier<Result<RepositoryException, CommitContext>>()
+            {
+                public Result<RepositoryException, CommitContext> get()
+                {
+                    try
+                    {
+                        return Result.result(helper.getCommit(cacheDirectory, targetRevision));
+                    }
+                    catch (RepositoryException e)
+                    {
+                        return Result.exception(e);
+                    }
+                }
+            });
+        }
         return result.getResultThrowException();
     }
 
@@ -778,24 +921,93 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
         return substituted;
     }
 
-    private void rethrowOrRemoveDirectory(final Exception originalException, final BuildLogger buildLogger, final File directory, final String key) throws Exception
+    /**
+     * Recovers from a failure in the directory: repairs it (see {@link RepositoryRepair}) and retries. If nothing could
+     * be repaired or the retry fails again, the directory is removed and the retry repeated from scratch.
+     *
+     * @param key       message reporting the failure
+     * @param cleanedKey message reporting the removal of the directory
+     */
+    private <T> T recoverDirectory(final Exception originalException, final BuildLogger buildLogger, final File directory, final String key,
+                                   final String cleanedKey, final Callable<T> retry) throws Exception
+    {
+        rethrowIfNotRecoverable(originalException);
+        buildLogger.addBuildLogEntry(i18nResolver.getText(key, directory));
+
+        int repaired = 0;
+        try
+        {
+            repaired = RepositoryRepair.repair(directory);
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to repair " + directory, e);
+        }
+        if (repaired > 0)
+        {
+            buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.recover.repaired", directory, repaired));
+            try
+            {
+                final T result = retry.call();
+                log.info("Recovered " + directory + " by repairing it");
+                return result;
+            }
+            catch (Exception e)
+            {
+                rethrowIfNotRecoverable(e);
+                buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.recover.repairFailed", directory));
+                log.warn("Repairing " + directory + " did not help", e);
+            }
+        }
+
+        removeDirectory(directory);
+        buildLogger.addBuildLogEntry(i18nResolver.getText(cleanedKey, directory));
+        final T result = retry.call();
+        log.info("Recovered " + directory + " by removing it");
+        return result;
+    }
+
+    /**
+     * Transport failures and lock timeouts are not caused by the directory, removing it would not help.
+     */
+    private static void rethrowIfNotRecoverable(final Exception originalException) throws Exception
     {
         Throwable e = originalException;
         do
         {
-            if (e instanceof TransportException)
+            if (e instanceof TransportException || e instanceof CoalescedFetchException || e instanceof CacheLockTimeoutException)
             {
                 throw originalException;
             }
             e = e.getCause();
         } while (e!=null);
+    }
 
-        buildLogger.addBuildLogEntry(i18nResolver.getText(key, directory));
-        log.warn("Deleting directory " + directory, e);
+    /**
+     * Deletes source directories and caches left in the trash by a previous run, see {@link DirectoryTrash}.
+     */
+    private void emptyTrashLeftovers()
+    {
+        final File baseDirectory = buildDirectoryManager.getBaseBuildWorkingDirectory();
+        DirectoryTrash.emptyLeftovers(baseDirectory);
+        DirectoryTrash.emptyLeftovers(new File(baseDirectory, GitCacheDirectory.GIT_REPOSITORY_CACHE_DIRECTORY));
+    }
+
+    private void removeDirectory(final File directory)
+    {
+        log.warn("Deleting directory " + directory);
 
         // This section does not really work on Windows (files open by antivirus software or leaked by jgit - and it does leak handles - will remain on the harddrive),
         // so it should be entered if we know that the cache has to be blown away
-        FileUtils.deleteQuietly(directory);
+        try
+        {
+            // a source directory may be a subdirectory of the plan's working directory, trash it in the build directory root
+            DirectoryTrash.delete(directory, buildDirectoryManager.getBaseBuildWorkingDirectory());
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to delete " + directory, e);
+        }
 
         final String[] filesInDirectory = directory.list();
         if (filesInDirectory !=null)
@@ -846,9 +1058,100 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
         return getAuthTypeName(getAuthType());
     }
 
+    /**
+     * @return cache directory used for change detection
+     */
     public File getCacheDirectory()
     {
-        return getCacheDirectory(getSubstitutedAccessData());
+        return getCacheDirectory(getChangeDetectionAccessData());
+    }
+
+    /**
+     * @return cache directories used for change detection and checkouts, including the blobless counterpart of the
+     *         change detection cache, whether they exist or not
+     */
+    @NotNull
+    Set<File> getCacheDirectories()
+    {
+        final GitRepositoryAccessData checkoutAccessData = getSubstitutedAccessData();
+        checkoutAccessData.useShallowClones = USE_SHALLOW_CLONES && checkoutAccessData.useShallowClones;
+        final File cacheDirectory = getCacheDirectory();
+        return Sets.newLinkedHashSet(Arrays.asList(cacheDirectory, GitCacheDirectory.getBloblessCacheDirectory(cacheDirectory), getCacheDirectory(checkoutAccessData)));
+    }
+
+    /**
+     * Change detection needs the full history of the branch. If shallow clones share a cache (see
+     * {@link GitCacheDirectory#SHARED_SHALLOW_CACHE}), it therefore uses the full cache of the repository: the shared
+     * cache always holds shallow branches and would have to be fetched into on every change detection.
+     */
+    GitRepositoryAccessData getChangeDetectionAccessData()
+    {
+        final GitRepositoryAccessData substitutedAccessData = getSubstitutedAccessData();
+        if (GitCacheDirectory.SHARED_SHALLOW_CACHE)
+        {
+            substitutedAccessData.useShallowClones = false;
+        }
+        return substitutedAccessData;
+    }
+
+    /**
+     * Fetches the branch into the change detection cache, unless the cache does not exist yet or already contains the
+     * revision. Used to prefetch pushed commits, see {@link CachePrefetcher}.
+     */
+    void prefetch(@Nullable final String revision) throws RepositoryException
+    {
+        final GitRepositoryAccessData substitutedAccessData = getChangeDetectionAccessData();
+        final GitOperationHelper helper = GitOperationHelperFactory.createGitOperationHelper(this, substitutedAccessData, sshProxyService, new NullBuildLogger(), i18nResolver);
+        final File cacheDirectory = getCacheDirectory(helper, substitutedAccessData);
+        if (!cacheDirectory.isDirectory())
+        {
+            return;
+        }
+        try
+        {
+            GitCacheDirectory.getCacheLock(cacheDirectory).withLock(new Callable<Void>()
+            {
+                public Void call() throws RepositoryException
+                {
+                    if (revision == null || !helper.updateRefIfRevisionPresent(cacheDirectory, revision, true))
+                    {
+                        GitCacheDirectory.fetch(helper, cacheDirectory, substitutedAccessData.branch, false);
+                    }
+                    return null;
+                }
+            });
+        }
+        catch (Exception e)
+        {
+            throw new RepositoryException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Compacts the cache directory, see {@link CacheMaintenance}. Must be called with the cache lock held.
+     */
+    void maintainCache(@NotNull final File cacheDirectory) throws RepositoryException
+    {
+        final GitRepositoryAccessData substitutedAccessData = getSubstitutedAccessData();
+        final GitOperationHelper helper = GitOperationHelperFactory.createGitOperationHelper(this, substitutedAccessData, sshProxyService, new NullBuildLogger(), i18nResolver);
+        helper.maintainCache(cacheDirectory);
+    }
+
+    /**
+     * @return true if the URL denotes the remote repository this repository uses, regardless of protocol and credentials
+     *         (the same identity as the one caches are shared by, see {@link UriUtils#getCanonicalUrl(String)})
+     */
+    boolean isSameRemote(@NotNull final String url)
+    {
+        return UriUtils.getCanonicalUrl(getSubstitutedAccessData().repositoryUrl).equals(UriUtils.getCanonicalUrl(url));
+    }
+
+    /**
+     * @return true if the fully qualified ref is the branch or tag this repository builds
+     */
+    boolean tracksRef(@NotNull final String ref)
+    {
+        return AbstractGitOperationHelper.getLocalRefCandidates(getSubstitutedAccessData().branch).contains(ref);
     }
 
     public File getCacheDirectory(GitRepositoryAccessData accessData)
@@ -856,6 +1159,15 @@ public class GitRepository extends AbstractStandaloneRepository implements Maven
         return GitCacheDirectory.getCacheDirectory(buildDirectoryManager.getBaseBuildWorkingDirectory(), accessData);
     }
 
+    /**
+     * @return cache directory the helper works with, blobless if enabled and supported by the helper
+     */
+    @NotNull
+    File getCacheDirectory(@NotNull final GitOperationHelper helper, @NotNull final GitRepositoryAccessData accessData)
+    {
+        return GitCacheDirectory.getCacheDirectory(buildDirectoryManager.getBaseBuildWorkingDirectory(), accessData, helper);
+    }
+
     public void setI18nResolver(I18nResolver i18nResolver)
     {
         this.i18nResolver = i18nResolver;
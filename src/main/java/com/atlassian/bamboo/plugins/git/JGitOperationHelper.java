@@ -6,7 +6,6 @@ import com.atlassian.bamboo.build.CommandLogEntry;
 import com.atlassian.bamboo.build.logger.BuildLogger;
 import com.atlassian.bamboo.commit.Commit;
 import com.atlassian.bamboo.commit.CommitContext;
-import com.atlassian.bamboo.commit.CommitFileImpl;
 import com.atlassian.bamboo.commit.CommitImpl;
 import com.atlassian.bamboo.plan.branch.VcsBranch;
 import com.atlassian.bamboo.plan.branch.VcsBranchImpl;
@@ -18,11 +17,12 @@ import com.atlassian.bamboo.v2.build.BuildRepositoryChanges;
 import com.atlassian.bamboo.v2.build.BuildRepositoryChangesImpl;
 import com.atlassian.sal.api.message.I18nResolver;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
-import org.eclipse.jgit.diff.DiffEntry;
 import org.eclipse.jgit.dircache.DirCache;
 import org.eclipse.jgit.dircache.DirCacheCheckout;
 import org.eclipse.jgit.errors.MissingObjectException;
@@ -50,6 +50,8 @@ import org.eclipse.jgit.transport.TransportHttp;
 import org.eclipse.jgit.transport.URIish;
 import org.eclipse.jgit.treewalk.EmptyTreeIterator;
 import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -61,6 +63,8 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class JGitOperationHelper extends AbstractGitOperationHelper
@@ -69,6 +73,15 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
     private static final Logger log = Logger.getLogger(JGitOperationHelper.class);
     // ------------------------------------------------------------------------------------------------------- Constants
     // ------------------------------------------------------------------------------------------------- Type Properties
+
+    /**
+     * Ref advertisement shared by the operations of this helper. A helper serves a single change detection or checkout,
+     * so resolving, fetching and checking out the branch read the refs once instead of opening a connection each.
+     * JGit's fetch always opens its own connection, so only the advertisement (not the connection itself) is reused.
+     */
+    @Nullable
+    private RemoteRefsCache.Snapshot sessionRefs;
+
     // ---------------------------------------------------------------------------------------------------- Dependencies
     // ---------------------------------------------------------------------------------------------------- Constructors
 
@@ -140,16 +153,9 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
             String branchRefSpec;
             try
             {
-                branchRefSpec = withTransport(localRepository, accessData, new WithTransportCallback<Exception, String>()
-                {
-                    @Nullable
-                    @Override
-                    public String doWithTransport(@NotNull Transport transport) throws Exception
-                    {
-                        return getRefSpecForName(transport, accessData.branch);
-                    }
-                });
-            } catch (Exception e)
+                branchRefSpec = getRefSpecForName(null, accessData.branch);
+            }
+            catch (RepositoryException e)
             {
                 throw new RepositoryException("Unable to resolve branch name", e);
             }
@@ -222,7 +228,7 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
                     @Override
                     public Void doWithFetchConnection(@NotNull Transport transport, @NotNull FetchConnection connection) throws IOException
                     {
-                        final String resolvedBranch = resolveRefSpec(accessData.branch, connection).getName();
+                        final String resolvedBranch = resolveRefSpec(accessData.branch, new RemoteRefsCache.Snapshot(getRevisionsByRefName(connection)));
 
                         RefSpec refSpec = new RefSpec()
                                 .setForceUpdate(true)
@@ -231,6 +237,8 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
 
                         PushResult pushResult = transport.push(new BuildLoggerProgressMonitor(buildLogger), transport.findRemoteRefUpdatesFor(Arrays.asList(refSpec)));
                         buildLogger.addBuildLogEntry("Git: " + pushResult.getMessages());
+                        RemoteRefsCache.invalidate(accessData);
+                        sessionRefs = null;
 
                         return null;
                     }
@@ -285,17 +293,48 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
     @Override
     public void fetch(@NotNull final File sourceDirectory, boolean useShallow) throws RepositoryException
     {
-        fetch(sourceDirectory, accessData.branch, useShallow);
+        fetch(sourceDirectory, accessData.branch, useShallow, Collections.<String>emptyList());
+    }
+
+    @Override
+    public void fetch(@NotNull final File sourceDirectory, @NotNull final Collection<String> otherBranches) throws RepositoryException
+    {
+        fetch(sourceDirectory, accessData.branch, false, otherBranches);
+    }
+
+    @Override
+    public void fetchKeepingDepth(@NotNull final File sourceDirectory) throws RepositoryException
+    {
+        // JGit never deepens shallow repositories
+        fetch(sourceDirectory, accessData.branch, false, Collections.<String>emptyList());
+    }
+
+    @Override
+    public boolean supportsBlobFilter(@NotNull final File workingDirectory)
+    {
+        // JGit can neither filter fetches nor fetch missing blobs
+        return false;
+    }
+
+    @Override
+    public boolean enableBlobFilter(@NotNull final File cacheDirectory)
+    {
+        return false;
     }
 
-    private void fetch(@NotNull final File sourceDirectory, final String branch, final boolean useShallow) throws RepositoryException
+    private void fetch(@NotNull final File sourceDirectory, final String branch, final boolean useShallow, @NotNull final Collection<String> otherBranches) throws RepositoryException
     {
         final AtomicReference<String> branchDescription = new AtomicReference<String>("(unresolved) " + branch);
         try
         {
+            final File seed = getSeed(sourceDirectory, useShallow);
             final FileRepository localRepository = createLocalRepository(sourceDirectory, null);
             try
             {
+                if (seed != null)
+                {
+                    fetchSeed(localRepository, seed);
+                }
                 withTransport(localRepository, accessData, new WithTransportCallback<Exception, Void>()
                 {
                     @Override
@@ -306,16 +345,34 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
 
                         buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.fetchingBranch", resolvedBranch, accessData.repositoryUrl)
                                                      + (useShallow ? " " + i18nResolver.getText("repository.git.messages.doingShallowFetch") : ""));
-                        RefSpec refSpec = new RefSpec()
-                                .setForceUpdate(true)
-                                .setSource(resolvedBranch)
-                                .setDestination(resolvedBranch);
+                        final Set<String> resolvedBranches = Sets.newLinkedHashSet(Collections.singleton(resolvedBranch));
+                        for (String otherBranch : otherBranches)
+                        {
+                            // branches removed from the remote repository are skipped
+                            final String resolvedOtherBranch = resolveRefSpec(otherBranch, getRemoteRefs(transport));
+                            if (resolvedOtherBranch != null)
+                            {
+                                resolvedBranches.add(resolvedOtherBranch);
+                            }
+                        }
+                        if (resolvedBranches.size() > 1)
+                        {
+                            buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.fetchingOtherBranches", resolvedBranches.size() - 1));
+                        }
+                        final List<RefSpec> refSpecs = Lists.newArrayList();
+                        for (String fetchedBranch : resolvedBranches)
+                        {
+                            refSpecs.add(new RefSpec()
+                                    .setForceUpdate(true)
+                                    .setSource(fetchedBranch)
+                                    .setDestination(fetchedBranch));
+                        }
 
                         try
                         {
                             transport.setTagOpt(TagOpt.AUTO_FOLLOW);
 
-                            FetchResult fetchResult = transport.fetch(new BuildLoggerProgressMonitor(buildLogger), Arrays.asList(refSpec), useShallow ? 1 : 0);
+                            FetchResult fetchResult = transport.fetch(new BuildLoggerProgressMonitor(buildLogger), refSpecs, useShallow ? 1 : 0);
                             buildLogger.addBuildLogEntry("Git: " + fetchResult.getMessages());
                         }
                         catch (IOException e)
@@ -349,6 +406,129 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
         }
     }
 
+    private void fetchSeed(@NotNull final FileRepository localRepository, @NotNull final File seed)
+    {
+        try
+        {
+            final Transport transport = Transport.open(localRepository, new URIish(seed.getAbsolutePath()));
+            try
+            {
+                transport.setTagOpt(TagOpt.NO_TAGS);
+                transport.fetch(new BuildLoggerProgressMonitor(buildLogger), Arrays.asList(new RefSpec("+refs/heads/*:refs/heads/*"), new RefSpec("+refs/tags/*:refs/tags/*")));
+            }
+            finally
+            {
+                transport.close();
+            }
+        }
+        catch (Exception e)
+        {
+            reportSeedingFailure(localRepository.getWorkTree(), seed, e);
+        }
+    }
+
+    /**
+     * JGit cannot repack, so only removed branches are deleted here. Their objects are pruned by native git if it is
+     * ever used on the cache.
+     */
+    @Override
+    public void maintainCache(@NotNull final File cacheDirectory) throws RepositoryException
+    {
+        deleteRemovedBranches(cacheDirectory);
+        log.debug("Not repacking " + cacheDirectory + ", native git is not used");
+    }
+
+    @Override
+    public boolean updateRefIfRevisionPresent(@NotNull final File repositoryDirectory, @NotNull final String targetRevision, final boolean requireFullHistory) throws RepositoryException
+    {
+        final File gitDirectory = new File(repositoryDirectory, Constants.DOT_GIT);
+        if (!gitDirectory.isDirectory())
+        {
+            return false;
+        }
+        FileRepository localRepository = null;
+        try
+        {
+            localRepository = new FileRepository(gitDirectory);
+            if (requireFullHistory && !localRepository.getShallows().isEmpty())
+            {
+                return false;
+            }
+            final ObjectId targetId = localRepository.resolve(targetRevision);
+            if (targetId == null || !localRepository.hasObject(targetId))
+            {
+                return false;
+            }
+
+            final CommitGraphIndex index = CommitGraphIndex.open(repositoryDirectory);
+            final RevWalk revWalk = new RevWalk(localRepository);
+            try
+            {
+                final RevCommit targetCommit = revWalk.parseCommit(targetId);
+                for (String refName : getLocalRefCandidates(accessData.branch))
+                {
+                    final Ref ref = localRepository.getRef(refName);
+                    if (ref == null || !ref.getName().equals(refName))
+                    {
+                        continue;
+                    }
+                    final RevCommit refCommit = revWalk.parseCommit(ref.getObjectId());
+                    if (!isAncestor(index, revWalk, targetCommit, refCommit))
+                    {
+                        // tags never move and diverged branches (forced pushes) are left to the fetch
+                        if (!refName.startsWith(Constants.R_HEADS) || !isAncestor(index, revWalk, refCommit, targetCommit))
+                        {
+                            return false;
+                        }
+                        final RefUpdate refUpdate = localRepository.updateRef(refName);
+                        refUpdate.setNewObjectId(targetCommit);
+                        if (refUpdate.update(revWalk) != RefUpdate.Result.FAST_FORWARD)
+                        {
+                            return false;
+                        }
+                        localRepository.updateRef(Constants.HEAD).link(refName);
+                    }
+                    buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.revisionAlreadyFetched", targetRevision, refName, repositoryDirectory));
+                    return true;
+                }
+                return false;
+            }
+            finally
+            {
+                revWalk.release();
+            }
+        }
+        catch (IOException e)
+        {
+            log.debug("Cannot check if " + targetRevision + " is present in " + repositoryDirectory + ", fetching", e);
+            return false;
+        }
+        finally
+        {
+            if (localRepository != null)
+            {
+                localRepository.close();
+            }
+        }
+    }
+
+    /**
+     * Answers from the commit graph index if both commits are indexed, otherwise walks only the commits between the two,
+     * so the cost does not depend on the size of the history.
+     */
+    private static boolean isAncestor(@Nullable final CommitGraphIndex index, @NotNull final RevWalk revWalk, @NotNull final RevCommit ancestor, @NotNull final RevCommit descendant) throws IOException
+    {
+        final Boolean indexed = index != null ? index.isAncestor(ancestor, descendant) : null;
+        if (indexed != null)
+        {
+            return indexed;
+        }
+        revWalk.reset();
+        revWalk.markStart(ancestor);
+        revWalk.markUninteresting(descendant);
+        return revWalk.next() == null;
+    }
+
     @Override
     @NotNull
     public String getCurrentRevision(@NotNull final File sourceDirectory) throws RepositoryException
@@ -405,74 +585,25 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
     @NotNull
     public String obtainLatestRevision() throws RepositoryException
     {
-        try
+        final RemoteRefsCache.Snapshot remoteRefs = getRemoteRefs(null);
+        final String headRef = resolveRefSpec(accessData.branch, remoteRefs);
+        if (headRef == null)
         {
-            return withFetchConnection(new FileRepository(""), accessData, new WithFetchConnectionCallback<RepositoryException, String>()
-            {
-                @Override
-                public String doWithFetchConnection(@NotNull Transport transport, @NotNull FetchConnection connection) throws RepositoryException
-                {
-                    Ref headRef = resolveRefSpec(accessData.branch, connection);
-                    if (headRef == null)
-                    {
-                        throw new InvalidRepositoryException(i18nResolver.getText("repository.git.messages.cannotDetermineHead", accessData.repositoryUrl, accessData.branch));
-                    }
-                    else
-                    {
-                        return headRef.getObjectId().getName();
-                    }
-                }
-            });
-        }
-        catch (NotSupportedException e)
-        {
-            throw new RepositoryException(buildLogger.addErrorLogEntry(i18nResolver.getText("repository.git.messages.protocolUnsupported", accessData.repositoryUrl)), e);
-        }
-        catch (TransportException e)
-        {
-            throw new RepositoryException(buildLogger.addErrorLogEntry(e.getMessage()), e);
-        }
-        catch (IOException e)
-        {
-            throw new RepositoryException(buildLogger.addErrorLogEntry(i18nResolver.getText("repository.git.messages.failedToCreateFileRepository")), e);
+            throw new InvalidRepositoryException(i18nResolver.getText("repository.git.messages.cannotDetermineHead", accessData.repositoryUrl, accessData.branch));
         }
+        return remoteRefs.getRevision(headRef);
     }
 
     @Override
     @NotNull
     public List<VcsBranch> getOpenBranches(@NotNull final GitRepository.GitRepositoryAccessData repositoryData, final File workingDir) throws RepositoryException
     {
-        try
+        List<VcsBranch> openBranches = Lists.newArrayList();
+        for (String branchName : getRemoteRefs(null).getBranchNames())
         {
-            return withFetchConnection(new FileRepository(""), accessData, new WithFetchConnectionCallback<RepositoryException, List<VcsBranch>>()
-            {
-                @Override
-                public List<VcsBranch> doWithFetchConnection(@NotNull Transport transport, @NotNull FetchConnection connection) throws RepositoryException
-                {
-                    List<VcsBranch> openBranches = Lists.newArrayList();
-                    for (Ref ref : connection.getRefs())
-                    {
-                        if (ref.getName().startsWith(Constants.R_HEADS))
-                        {
-                            openBranches.add(new VcsBranchImpl(ref.getName().substring(Constants.R_HEADS.length())));
-                        }
-                    }
-                    return openBranches;
-                }
-            });
-        }
-        catch (NotSupportedException e)
-        {
-            throw new RepositoryException(i18nResolver.getText("repository.git.messages.protocolUnsupported", repositoryData.repositoryUrl), e);
-        }
-        catch (TransportException e)
-        {
-            throw new RepositoryException(e.getMessage(), e);
-        }
-        catch (IOException e)
-        {
-            throw new RepositoryException(i18nResolver.getText("repository.git.messages.failedToCreateFileRepository"), e);
+            openBranches.add(new VcsBranchImpl(branchName));
         }
+        return openBranches;
     }
 
     /**
@@ -500,30 +631,26 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
 
     // -------------------------------------------------------------------------------------- Basic Accessors / Mutators
     @NotNull
-    private String getRefSpecForName(@NotNull Transport transport, @Nullable final String name) throws Exception
+    private String getRefSpecForName(@Nullable Transport transport, @Nullable final String name) throws RepositoryException
     {
-        final String resolvedBranch;
         if (StringUtils.startsWithAny(name, FQREF_PREFIXES))
         {
-            resolvedBranch = name;
+            return name;
         }
-        else
+
+        final String resolvedBranch = resolveRefSpec(name, getRemoteRefs(transport));
+        if (resolvedBranch == null)
         {
-            resolvedBranch = withFetchConnection(transport, new WithFetchConnectionCallback<Exception, String>()
-            {
-                @Override
-                public String doWithFetchConnection(@NotNull Transport transport, @NotNull FetchConnection connection) throws Exception
-                {
-                    final Ref ref = resolveRefSpec(name, connection);
-                    return ref.getName();
-                }
-            });
+            throw new InvalidRepositoryException(i18nResolver.getText("repository.git.messages.cannotDetermineHead", accessData.repositoryUrl, name));
         }
         return resolvedBranch;
     }
 
+    /**
+     * @return fully qualified name of the remote ref matching the given branch or tag name, null if there is none
+     */
     @Nullable
-    protected static Ref resolveRefSpec(String name, FetchConnection fetchConnection)
+    protected static String resolveRefSpec(String name, @NotNull RemoteRefsCache.Snapshot remoteRefs)
     {
         final Collection<String> candidates;
         if (StringUtils.isBlank(name))
@@ -539,15 +666,75 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
             candidates = Arrays.asList(name, Constants.R_TAGS + name, Constants.R_HEADS + name);
         }
 
-        for (String candidate : candidates)
+        return remoteRefs.findFirst(candidates);
+    }
+
+    /**
+     * Returns the remote ref advertisement of this helper's session, reusing the plugin-wide snapshot if a fresh one
+     * is available.
+     *
+     * @param transport transport to load the refs with, if null a new one is opened when needed
+     */
+    @NotNull
+    private RemoteRefsCache.Snapshot getRemoteRefs(@Nullable final Transport transport) throws RepositoryException
+    {
+        if (sessionRefs == null)
         {
-            Ref headRef = fetchConnection.getRef(candidate);
-            if (headRef != null)
+            sessionRefs = loadRemoteRefs(transport);
+        }
+        return sessionRefs;
+    }
+
+    @NotNull
+    private RemoteRefsCache.Snapshot loadRemoteRefs(@Nullable final Transport transport) throws RepositoryException
+    {
+        return RemoteRefsCache.getRemoteRefs(accessData, new RemoteRefsCache.Loader()
+        {
+            @NotNull
+            @Override
+            public Map<String, String> load() throws RepositoryException
+            {
+                final WithFetchConnectionCallback<RuntimeException, Map<String, String>> callback = new WithFetchConnectionCallback<RuntimeException, Map<String, String>>()
+                {
+                    @Override
+                    public Map<String, String> doWithFetchConnection(@NotNull Transport transport, @NotNull FetchConnection connection)
+                    {
+                        return getRevisionsByRefName(connection);
+                    }
+                };
+
+                try
+                {
+                    return transport != null ? withFetchConnection(transport, callback) : withFetchConnection(new FileRepository(""), accessData, callback);
+                }
+                catch (NotSupportedException e)
+                {
+                    throw new RepositoryException(buildLogger.addErrorLogEntry(i18nResolver.getText("repository.git.messages.protocolUnsupported", accessData.repositoryUrl)), e);
+                }
+                catch (TransportException e)
+                {
+                    throw new RepositoryException(buildLogger.addErrorLogEntry(e.getMessage()), e);
+                }
+                catch (IOException e)
+                {
+                    throw new RepositoryException(buildLogger.addErrorLogEntry(i18nResolver.getText("repository.git.messages.failedToCreateFileRepository")), e);
+                }
+            }
+        });
+    }
+
+    @NotNull
+    private static Map<String, String> getRevisionsByRefName(@NotNull final FetchConnection connection)
+    {
+        final Map<String, String> revisions = Maps.newHashMap();
+        for (Ref ref : connection.getRefs())
+        {
+            if (ref.getObjectId() != null)
             {
-                return headRef;
+                revisions.put(ref.getName(), ref.getObjectId().getName());
             }
         }
-        return null;
+        return revisions;
     }
 
     protected FileRepository createLocalRepository(File workingDirectory, @Nullable File cacheDirectory)
@@ -588,13 +775,12 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
             }
             final File alternates = new File(new File(localRepository.getObjectsDirectory(), "info"), "alternates");
             FileUtils.writeLines(alternates, alternatePaths, "\n");
+            CacheMaintenance.markBorrowed(cacheDirectory);
         }
 
         if (cacheGitDir != null && cacheGitDir.isDirectory())
         {
-            // copy tags and branches heads from the cache repository
-            FileUtils.copyDirectoryToDirectory(new File(cacheGitDir, Constants.R_TAGS), new File(localRepository.getDirectory(), Constants.R_REFS));
-            FileUtils.copyDirectoryToDirectory(new File(cacheGitDir, Constants.R_HEADS), new File(localRepository.getDirectory(), Constants.R_REFS));
+            WorkspaceRefs.copyFromCache(cacheGitDir, localRepository.getDirectory());
 
             File shallow = new File(cacheGitDir, "shallow");
             if (shallow.exists())
@@ -612,11 +798,13 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
     }
 
     @Override
-    public BuildRepositoryChanges extractCommits(@NotNull final File directory, @Nullable final String previousRevision, @Nullable final String targetRevision)
-            throws RepositoryException
+    public BuildRepositoryChanges extractCommits(@NotNull final File directory, @Nullable final String previousRevision, @Nullable final String targetRevision,
+                                                 @Nullable final ChangesetPathFilter pathFilter) throws RepositoryException
     {
         List<Commit> commits = new ArrayList<Commit>();
+        int walkedCommits = 0;
         int skippedCommits = 0;
+        final CommitFileListBudget fileListBudget = new CommitFileListBudget();
 
         FileRepository localRepository = null;
         RevWalk revWalk = null;
@@ -628,54 +816,86 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
             localRepository = new FileRepository(gitDirectory);
             revWalk = new RevWalk(localRepository);
 
+            RevCommit targetCommit = null;
+            RevCommit previousCommit = null;
             if (targetRevision != null)
             {
-                revWalk.markStart(revWalk.parseCommit(localRepository.resolve(targetRevision)));
+                targetCommit = revWalk.parseCommit(localRepository.resolve(targetRevision));
+                revWalk.markStart(targetCommit);
             }
             if (previousRevision != null)
             {
-                revWalk.markUninteresting(revWalk.parseCommit(localRepository.resolve(previousRevision)));
+                previousCommit = revWalk.parseCommit(localRepository.resolve(previousRevision));
+                revWalk.markUninteresting(previousCommit);
             }
 
             treeWalk = new TreeWalk(localRepository);
             treeWalk.setRecursive(true);
+            // subtrees with the same id in both commits are skipped without being read, so the cost of listing
+            // changed files depends on the size of the change rather than on the size of the tree
+            treeWalk.setFilter(pathFilter != null ? AndTreeFilter.create(TreeFilter.ANY_DIFF, pathFilter.toTreeFilter()) : TreeFilter.ANY_DIFF);
+
+            final Set<ObjectId> shallows = localRepository.getShallows();
 
-            for (final RevCommit jgitCommit : revWalk)
+            RevCommit jgitCommit;
+            while ((jgitCommit = revWalk.next()) != null)
             {
                 if (commits.size() >= CHANGESET_LIMIT)
                 {
-                    skippedCommits++;
-                    continue;
+                    final CommitGraphIndex index = targetCommit != null ? CommitGraphIndex.open(directory) : null;
+                    final int indexedCount = index != null ? index.countCommits(targetCommit, previousCommit) : -1;
+                    skippedCommits = indexedCount >= 0 ? indexedCount - walkedCommits : countSkippedCommits(revWalk, SKIPPED_COMMITS_COUNT_LIMIT);
+                    break;
                 }
+                walkedCommits++;
 
                 CommitImpl commit = new CommitImpl();
                 commit.setComment(jgitCommit.getFullMessage());
                 commit.setAuthor(getAuthor(jgitCommit));
                 commit.setDate(jgitCommit.getAuthorIdent().getWhen());
                 commit.setChangeSetId(jgitCommit.getName());
-                commits.add(commit);
                 if (jgitCommit.getParentCount() >= 2) //merge commit
                 {
+                    commits.add(commit);
                     continue;
                 }
 
-                if (localRepository.getShallows().contains(jgitCommit.getId()))
+                if (shallows.contains(jgitCommit.getId()))
                 {
+                    commits.add(commit);
                     continue;
                 }
 
                 treeWalk.reset();
-                int treePosition = jgitCommit.getParentCount() > 0 ? treeWalk.addTree(jgitCommit.getParent(0).getTree()) : treeWalk.addTree(new EmptyTreeIterator());
+                if (jgitCommit.getParentCount() > 0)
+                {
+                    treeWalk.addTree(jgitCommit.getParent(0).getTree());
+                }
+                else
+                {
+                    treeWalk.addTree(new EmptyTreeIterator());
+                }
                 treeWalk.addTree(jgitCommit.getTree());
 
-                for (final DiffEntry entry : DiffEntry.scan(treeWalk))
+                final CommitFileListBudget.CommitFiles commitFiles = fileListBudget.newCommit(jgitCommit.getName());
+                while (treeWalk.next())
                 {
-                    if (entry.getOldId().equals(entry.getNewId()))
+                    if (treeWalk.idEqual(0, 1))
                     {
-                        continue;
+                        continue; // mode change only
                     }
-                    commit.addFile(new CommitFileImpl(jgitCommit.getId().getName(), entry.getChangeType() == DiffEntry.ChangeType.DELETE ? entry.getOldPath() : entry.getNewPath()));
+                    if (!commitFiles.add(treeWalk.getPathString()))
+                    {
+                        break; // no further files are listed, do not diff the rest of the trees
+                    }
+                }
+                if (pathFilter != null && commitFiles.isEmpty())
+                {
+                    commitFiles.discard();
+                    continue;
                 }
+                commitFiles.addTo(commit);
+                commits.add(commit);
             }
         }
         catch (IOException e)
@@ -698,11 +918,41 @@ public class JGitOperationHelper extends AbstractGitOperationHelper
                 localRepository.close();
             }
         }
+        if (!fileListBudget.getTruncatedCommits().isEmpty())
+        {
+            buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.fileListsTruncated", fileListBudget.getTruncatedCommits().size(),
+                                                              StringUtils.join(fileListBudget.getTruncatedCommits(), ", ")));
+        }
+        if (fileListBudget.getDiscardedCommits() > 0)
+        {
+            buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.commitsFilteredOut", fileListBudget.getDiscardedCommits()));
+            pathFilter.recordFilteredOutCommits(fileListBudget.getDiscardedCommits());
+        }
         BuildRepositoryChanges buildChanges = new BuildRepositoryChangesImpl(targetRevision, commits);
         buildChanges.setSkippedCommitsCount(skippedCommits);
         return buildChanges;
     }
 
+    /**
+     * Counts the commit last returned by the walk and the ones left in it, without keeping their messages in memory.
+     *
+     * @param limit maximum number of commits to count, not positive for no limit
+     */
+    private static int countSkippedCommits(@NotNull final RevWalk revWalk, final int limit) throws IOException
+    {
+        revWalk.setRetainBody(false);
+        int count = 1;
+        while ((limit <= 0 || count < limit) && revWalk.next() != null)
+        {
+            count++;
+        }
+        if (count == limit && revWalk.next() != null)
+        {
+            log.debug("Stopped counting skipped commits at " + limit);
+        }
+        return count;
+    }
+
     private AuthorImpl getAuthor(RevCommit commit)
     {
         PersonIdent gitPerson = commit.getAuthorIdent();
@@ -36,6 +36,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class NativeGitOperationHelper extends AbstractGitOperationHelper implements GitOperationHelper
@@ -47,6 +48,12 @@ public class NativeGitOperationHelper extends AbstractGitOperationHelper impleme
     // ------------------------------------------------------------------------------------------------- Type Properties
     protected SshProxyService sshProxyService;
     GitCommandProcessor gitCommandProcessor;
+
+    /**
+     * Refs advertised by the remote, read with a single ls-remote and shared by revision resolution and fetch.
+     */
+    @Nullable
+    private RemoteRefsCache.Snapshot sessionRefs;
     // ---------------------------------------------------------------------------------------------------- Dependencies
     // ---------------------------------------------------------------------------------------------------- Constructors
 
@@ -80,6 +87,8 @@ public class NativeGitOperationHelper extends AbstractGitOperationHelper impleme
             commandBuilder.verbose(true);
         }
         gitCommandProcessor.runCommand(commandBuilder, sourceDirectory);
+        RemoteRefsCache.invalidate(accessData);
+        sessionRefs = null;
     }
 
     @Override
@@ -220,7 +229,22 @@ public class NativeGitOperationHelper extends AbstractGitOperationHelper impleme
                         .env(identificationVariables(committerName, committerEmail));
 
         String headRevisionBeforeMerge = getCurrentRevision(workspaceDir);
-        gitCommandProcessor.runMergeCommand(commandBuilder, workspaceDir);
+        if (BloblessCache.borrowsFromBlobless(workspaceDir))
+        {
+            final GitRepository.GitRepositoryAccessData proxiedAccessData = adjustRepositoryAccess(accessData);
+            try
+            {
+                gitCommandProcessor.runMergeCommand(commandBuilder.env(BloblessCache.getPromisorEnvironment(proxiedAccessData.repositoryUrl)), workspaceDir);
+            }
+            finally
+            {
+                closeProxy(proxiedAccessData);
+            }
+        }
+        else
+        {
+            gitCommandProcessor.runMergeCommand(commandBuilder, workspaceDir);
+        }
 
         if (containsSomethingToCommit(workspaceDir))
         {
@@ -336,13 +360,12 @@ public class NativeGitOperationHelper extends AbstractGitOperationHelper impleme
             alternatePaths.add(alternateObjectDir.getAbsolutePath());
             final File alternates = new File(new File(new File(gitDirectory, "objects"), "info"), "alternates");
             FileUtils.writeLines(alternates, alternatePaths, "\n");
+            CacheMaintenance.markBorrowed(cacheDirectory);
         }
 
         if (cacheGitDir != null && cacheGitDir.isDirectory())
         {
-            // copy tags and branches heads from the cache repository
-            FileUtils.copyDirectoryToDirectory(new File(cacheGitDir, Constants.R_TAGS), new File(gitDirectory, Constants.R_REFS));
-            FileUtils.copyDirectoryToDirectory(new File(cacheGitDir, Constants.R_HEADS), new File(gitDirectory, Constants.R_REFS));
+            WorkspaceRefs.copyFromCache(cacheGitDir, gitDirectory);
 
             File shallow = new File(cacheGitDir, "shallow");
             if (shallow.exists())
@@ -376,7 +399,23 @@ public class NativeGitOperationHelper extends AbstractGitOperationHelper impleme
             File lck = new File(sourceDirectory, "index.lock");
             FileUtils.deleteQuietly(lck);
 
-            gitCommandProcessor.runCheckoutCommand(sourceDirectory, targetRevision);
+            if (BloblessCache.borrowsFromBlobless(sourceDirectory))
+            {
+                // blobs of the checked out revision missing from the cache are fetched into the source directory
+                final GitRepository.GitRepositoryAccessData proxiedAccessData = adjustRepositoryAccess(accessData);
+                try
+                {
+                    gitCommandProcessor.runCheckoutCommand(sourceDirectory, targetRevision, proxiedAccessData.repositoryUrl);
+                }
+                finally
+                {
+                    closeProxy(proxiedAccessData);
+                }
+            }
+            else
+            {
+                gitCommandProcessor.runCheckoutCommand(sourceDirectory, targetRevision);
+            }
             if (accessData.useSubmodules)
             {
                 gitCommandProcessor.runSubmoduleUpdateCommand(sourceDirectory);
@@ -391,30 +430,106 @@ public class NativeGitOperationHelper extends AbstractGitOperationHelper impleme
 
     @Override
     public void fetch(@NotNull final File sourceDirectory, final boolean useShallow) throws RepositoryException
+    {
+        fetch(sourceDirectory, useShallow, !useShallow, Collections.<String>emptyList());
+    }
+
+    @Override
+    public void fetch(@NotNull final File sourceDirectory, @NotNull final Collection<String> otherBranches) throws RepositoryException
+    {
+        fetch(sourceDirectory, false, true, otherBranches);
+    }
+
+    @Override
+    public void fetchKeepingDepth(@NotNull final File sourceDirectory) throws RepositoryException
+    {
+        fetch(sourceDirectory, false, false, Collections.<String>emptyList());
+    }
+
+    @Override
+    public boolean supportsBlobFilter(@NotNull final File workingDirectory)
+    {
+        return gitCommandProcessor.supportsBlobFilter(workingDirectory);
+    }
+
+    @Override
+    public boolean enableBlobFilter(@NotNull final File cacheDirectory) throws RepositoryException
+    {
+        if (!supportsBlobFilter(cacheDirectory))
+        {
+            return false;
+        }
+        if (!BloblessCache.isBlobless(cacheDirectory))
+        {
+            buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.enablingBlobFilter", cacheDirectory));
+            try
+            {
+                createLocalRepository(cacheDirectory, null);
+            }
+            catch (IOException e)
+            {
+                throw new RepositoryException(e.getMessage(), e);
+            }
+            gitCommandProcessor.runEnableBlobFilterCommand(cacheDirectory);
+        }
+        return true;
+    }
+
+    /**
+     * @param deepen if true, a shallow repository gets the full history of the fetched branches
+     */
+    private void fetch(@NotNull final File sourceDirectory, final boolean useShallow, final boolean deepen, @NotNull final Collection<String> otherBranches) throws RepositoryException
     {
         final String[] branchDescription = {"(unresolved) " + accessData.branch};
         try
         {
+            final File seed = getSeed(sourceDirectory, useShallow);
             createLocalRepository(sourceDirectory, null);
-            final GitRepository.GitRepositoryAccessData proxiedAccessData = adjustRepositoryAccess(accessData);
-
-            try
+            if (seed != null)
             {
-                final String resolvedBranch;
-                if (StringUtils.startsWithAny(accessData.branch, FQREF_PREFIXES))
+                try
                 {
-                    resolvedBranch = accessData.branch;
+                    gitCommandProcessor.runSeedFetchCommand(sourceDirectory, seed);
                 }
-                else
+                catch (RepositoryException e)
                 {
-                    resolvedBranch =  resolveBranch(proxiedAccessData, sourceDirectory, accessData.branch);
+                    reportSeedingFailure(sourceDirectory, seed, e);
                 }
-                branchDescription[0] = resolvedBranch;
+            }
+
+            final String resolvedBranch;
+            if (StringUtils.startsWithAny(accessData.branch, FQREF_PREFIXES))
+            {
+                resolvedBranch = accessData.branch;
+            }
+            else
+            {
+                resolvedBranch =  resolveBranch(getRemoteRefs(sourceDirectory), accessData.branch);
+            }
+            branchDescription[0] = resolvedBranch;
 
+            final Set<String> refSpecs = Sets.newLinkedHashSet(Collections.singleton("+" + resolvedBranch + ":" + resolvedBranch));
+            for (String otherBranch : otherBranches)
+            {
+                // branches removed from the remote repository are skipped
+                final String resolvedOtherBranch = findBranch(getRemoteRefs(sourceDirectory), otherBranch);
+                if (resolvedOtherBranch != null)
+                {
+                    refSpecs.add("+" + resolvedOtherBranch + ":" + resolvedOtherBranch);
+                }
+            }
+
+            final GitRepository.GitRepositoryAccessData proxiedAccessData = adjustRepositoryAccess(accessData);
+            try
+            {
                 buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.fetchingBranch", resolvedBranch, accessData.repositoryUrl)
                                              + (useShallow ? " " + i18nResolver.getText("repository.git.messages.doingShallowFetch") : ""));
 
-                gitCommandProcessor.runFetchCommand(sourceDirectory, proxiedAccessData, "+"+resolvedBranch+":"+resolvedBranch, useShallow);
+                if (refSpecs.size() > 1)
+                {
+                    buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.fetchingOtherBranches", refSpecs.size() - 1));
+                }
+                gitCommandProcessor.runFetchCommand(sourceDirectory, proxiedAccessData, refSpecs, useShallow, deepen);
 
                 //if (resolvedBranch.startsWith(Constants.R_HEADS))
                 //{
@@ -433,9 +548,93 @@ public class NativeGitOperationHelper extends AbstractGitOperationHelper impleme
         }
     }
 
-    private String resolveBranch(GitRepository.GitRepositoryAccessData accessData, final File sourceDirectory, final String branch) throws RepositoryException
+    @Override
+    public void maintainCache(@NotNull final File cacheDirectory) throws RepositoryException
+    {
+        deleteRemovedBranches(cacheDirectory);
+        gitCommandProcessor.runGcCommand(cacheDirectory, CacheMaintenance.isBorrowed(cacheDirectory));
+    }
+
+    @Override
+    public boolean updateRefIfRevisionPresent(@NotNull final File repositoryDirectory, @NotNull final String targetRevision, final boolean requireFullHistory) throws RepositoryException
+    {
+        final File gitDirectory = new File(repositoryDirectory, Constants.DOT_GIT);
+        if (!gitDirectory.isDirectory()
+            || requireFullHistory && new File(gitDirectory, "shallow").exists()
+            || !gitCommandProcessor.hasCommit(repositoryDirectory, targetRevision))
+        {
+            return false;
+        }
+
+        for (String refName : getLocalRefCandidates(accessData.branch))
+        {
+            final String refRevision = gitCommandProcessor.getLocalRefRevision(repositoryDirectory, refName);
+            if (refRevision == null)
+            {
+                continue;
+            }
+            if (!gitCommandProcessor.isAncestor(repositoryDirectory, targetRevision, refRevision))
+            {
+                // tags never move and diverged branches (forced pushes) are left to the fetch
+                if (!refName.startsWith(Constants.R_HEADS) || !gitCommandProcessor.isAncestor(repositoryDirectory, refRevision, targetRevision))
+                {
+                    return false;
+                }
+                gitCommandProcessor.runUpdateRefCommand(repositoryDirectory, refName, targetRevision, refRevision);
+            }
+            buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.revisionAlreadyFetched", targetRevision, refName, repositoryDirectory));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns refs advertised by the remote, running ls-remote only once per helper and only if the plugin-wide cache
+     * has no fresh snapshot.
+     */
+    @NotNull
+    private RemoteRefsCache.Snapshot getRemoteRefs(@NotNull final File workingDirectory) throws RepositoryException
+    {
+        if (sessionRefs == null)
+        {
+            sessionRefs = RemoteRefsCache.getRemoteRefs(accessData, new RemoteRefsCache.Loader()
+            {
+                @NotNull
+                @Override
+                public Map<String, String> load() throws RepositoryException
+                {
+                    final GitRepository.GitRepositoryAccessData proxiedAccessData = adjustRepositoryAccess(accessData);
+                    try
+                    {
+                        return gitCommandProcessor.getRemoteRefs(workingDirectory, proxiedAccessData);
+                    }
+                    finally
+                    {
+                        closeProxy(proxiedAccessData);
+                    }
+                }
+            });
+        }
+        return sessionRefs;
+    }
+
+    @NotNull
+    private String resolveBranch(@NotNull final RemoteRefsCache.Snapshot remoteRefs, final String branch) throws RepositoryException
+    {
+        final String resolvedBranch = findBranch(remoteRefs, branch);
+        if (resolvedBranch == null)
+        {
+            throw new InvalidRepositoryException(i18nResolver.getText("repository.git.messages.cannotDetermineHead", RepositoryUrlObfuscator.obfuscatePasswordInUrl(accessData.repositoryUrl), accessData.branch));
+        }
+        return resolvedBranch;
+    }
+
+    /**
+     * @return fully qualified name of the remote ref matching the given branch or tag name, null if there is none
+     */
+    @Nullable
+    private static String findBranch(@NotNull final RemoteRefsCache.Snapshot remoteRefs, final String branch)
     {
-        Collection<String> remoteRefs = gitCommandProcessor.getRemoteRefs(sourceDirectory, accessData);
         final Collection<String> candidates;
         if (StringUtils.isBlank(branch))
         {
@@ -451,36 +650,43 @@ public class NativeGitOperationHelper extends AbstractGitOperationHelper impleme
         }
         for (String candidate : candidates)
         {
-            if (remoteRefs.contains(candidate))
+            // only fully qualified refs can be used as fetch destinations
+            if (candidate.startsWith(Constants.R_REFS) && remoteRefs.contains(candidate))
             {
                 return candidate;
             }
         }
-        throw new InvalidRepositoryException(i18nResolver.getText("repository.git.messages.cannotDetermineHead", RepositoryUrlObfuscator.obfuscatePasswordInUrl(accessData.repositoryUrl), accessData.branch));
+        return null;
     }
 
     @NotNull
     @Override
     public List<VcsBranch> getOpenBranches(@NotNull final GitRepository.GitRepositoryAccessData repositoryData, final File workingDir) throws RepositoryException
     {
-        final GitRepository.GitRepositoryAccessData proxiedAccessData = adjustRepositoryAccess(repositoryData);
-        try
+        final RemoteRefsCache.Snapshot remoteRefs = RemoteRefsCache.getRemoteRefs(repositoryData, new RemoteRefsCache.Loader()
         {
-            Set<String> refs = gitCommandProcessor.getRemoteRefs(workingDir, proxiedAccessData);
-            List<VcsBranch> openBranches = Lists.newArrayList();
-            for (String ref : refs)
+            @NotNull
+            @Override
+            public Map<String, String> load() throws RepositoryException
             {
-                if (ref.startsWith(Constants.R_HEADS))
+                final GitRepository.GitRepositoryAccessData proxiedAccessData = adjustRepositoryAccess(repositoryData);
+                try
+                {
+                    return gitCommandProcessor.getRemoteRefs(workingDir, proxiedAccessData);
+                }
+                finally
                 {
-                    openBranches.add(new VcsBranchImpl(ref.substring(Constants.R_HEADS.length())));
+                    closeProxy(proxiedAccessData);
                 }
             }
-            return openBranches;
-        }
-        finally
+        });
+
+        List<VcsBranch> openBranches = Lists.newArrayList();
+        for (String branchName : remoteRefs.getBranchNames())
         {
-            closeProxy(proxiedAccessData);
+            openBranches.add(new VcsBranchImpl(branchName));
         }
+        return openBranches;
     }
 
     @NotNull
@@ -507,21 +713,13 @@ public class NativeGitOperationHelper extends AbstractGitOperationHelper impleme
     @Override
     public String obtainLatestRevision() throws RepositoryException
     {
-        final GitRepository.GitRepositoryAccessData proxiedAccessData = adjustRepositoryAccess(accessData);
-        try
+        final RemoteRefsCache.Snapshot remoteRefs = getRemoteRefs(new File("."));
+        String result = remoteRefs.getRevision(resolveBranch(remoteRefs, accessData.branch));
+        if (result == null)
         {
-            File workingDir = new File(".");
-            String result = gitCommandProcessor.getRemoteBranchLatestCommitHash(workingDir, proxiedAccessData, resolveBranch(proxiedAccessData, workingDir, accessData.branch));
-            if (result == null)
-            {
-                throw new InvalidRepositoryException(i18nResolver.getText("repository.git.messages.cannotDetermineHead", RepositoryUrlObfuscator.obfuscatePasswordInUrl(accessData.repositoryUrl), accessData.branch));
-            }
-            return result;
-        }
-        finally
-        {
-            closeProxy(proxiedAccessData);
+            throw new InvalidRepositoryException(i18nResolver.getText("repository.git.messages.cannotDetermineHead", RepositoryUrlObfuscator.obfuscatePasswordInUrl(accessData.repositoryUrl), accessData.branch));
         }
+        return result;
     }
 
     @Override
@@ -537,9 +735,22 @@ public class NativeGitOperationHelper extends AbstractGitOperationHelper impleme
     }
 
     @Override
-    public BuildRepositoryChanges extractCommits(final File cacheDirectory, final String lastVcsRevisionKey, final String targetRevision) throws RepositoryException
+    public BuildRepositoryChanges extractCommits(final File cacheDirectory, final String lastVcsRevisionKey, final String targetRevision,
+                                                 @Nullable final ChangesetPathFilter pathFilter) throws RepositoryException
     {
-        Pair<List<CommitContext>, Integer> result = gitCommandProcessor.runLogCommand(cacheDirectory, lastVcsRevisionKey, targetRevision, getShallows(cacheDirectory), CHANGESET_LIMIT);
+        final CommitFileListBudget fileListBudget = new CommitFileListBudget();
+        Pair<List<CommitContext>, Integer> result = gitCommandProcessor.runLogCommand(cacheDirectory, lastVcsRevisionKey, targetRevision, getShallows(cacheDirectory), CHANGESET_LIMIT,
+                                                                                      fileListBudget, pathFilter);
+        if (!fileListBudget.getTruncatedCommits().isEmpty())
+        {
+            buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.fileListsTruncated", fileListBudget.getTruncatedCommits().size(),
+                                                              StringUtils.join(fileListBudget.getTruncatedCommits(), ", ")));
+        }
+        if (fileListBudget.getDiscardedCommits() > 0)
+        {
+            buildLogger.addBuildLogEntry(i18nResolver.getText("repository.git.messages.commitsFilteredOut", fileListBudget.getDiscardedCommits()));
+            pathFilter.recordFilteredOutCommits(fileListBudget.getDiscardedCommits());
+        }
         BuildRepositoryChanges buildChanges = new BuildRepositoryChangesImpl(targetRevision, result.getFirst());
         buildChanges.setSkippedCommitsCount(result.getSecond());
         return buildChanges;
@@ -0,0 +1,205 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.repository.RepositoryException;
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.Constants;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plugin-wide cache of remote ref advertisements, shared by all plans polling the same repository.
+ *
+ * Snapshots are keyed by repository identity (URL and credentials, same as {@link GitRepository#getCacheId}) and expire
+ * after {@link #REMOTE_REFS_TTL_SECONDS}. A snapshot answers lookups for refs it does not contain as well, so polls of
+ * a removed branch are served from the cache too. The default TTL is short enough for new commits to be noticed by the
+ * next poll, but lets plans polling the same repository at once share one advertisement. Caching is disabled when the
+ * TTL is not positive.
+ */
+public class RemoteRefsCache
+{
+    private static final Logger log = Logger.getLogger(RemoteRefsCache.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final int REMOTE_REFS_TTL_SECONDS = new SystemProperty(false, "atlassian.bamboo.git.remoteRefs.ttl", "GIT_REMOTE_REFS_TTL").getValue(10);
+
+    private static final ConcurrentMap<String, Snapshot> snapshots = Maps.newConcurrentMap();
+    private static final ConcurrentMap<String, Object> loadLocks = Maps.newConcurrentMap();
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    private RemoteRefsCache()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * Returns a fresh snapshot of remote refs for the repository, calling the loader only if there is no valid cached one.
+     * Concurrent callers for the same repository wait for a single load.
+     */
+    @NotNull
+    public static Snapshot getRemoteRefs(@NotNull final GitRepository.GitRepositoryAccessData accessData, @NotNull final Loader loader) throws RepositoryException
+    {
+        if (REMOTE_REFS_TTL_SECONDS <= 0)
+        {
+            return new Snapshot(loader.load());
+        }
+
+        final String key = getKey(accessData);
+        Snapshot snapshot = snapshots.get(key);
+        if (snapshot != null && !snapshot.isExpired())
+        {
+            return snapshot;
+        }
+
+        final Object loadLock = getLoadLock(key);
+        synchronized (loadLock)
+        {
+            try
+            {
+                snapshot = snapshots.get(key);
+                if (snapshot == null || snapshot.isExpired())
+                {
+                    snapshot = new Snapshot(loader.load());
+                    removeExpired();
+                    snapshots.put(key, snapshot);
+                    log.debug("Cached " + snapshot.refs.size() + " remote refs for repository key " + key);
+                }
+                return snapshot;
+            }
+            finally
+            {
+                // callers already waiting keep the lock and find the fresh snapshot, later ones create a new lock
+                loadLocks.remove(key, loadLock);
+            }
+        }
+    }
+
+    /**
+     * Drops any cached snapshot for the repository, e.g. after the remote has been modified.
+     */
+    public static void invalidate(@NotNull final GitRepository.GitRepositoryAccessData accessData)
+    {
+        snapshots.remove(getKey(accessData));
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    @NotNull
+    static String getKey(@NotNull final GitRepository.GitRepositoryAccessData accessData)
+    {
+        return GitCacheDirectory.calculateAggregateSha(accessData.repositoryUrl, accessData.username, accessData.sshKey);
+    }
+
+    @NotNull
+    private static Object getLoadLock(@NotNull final String key)
+    {
+        final Object lock = new Object();
+        final Object existing = loadLocks.putIfAbsent(key, lock);
+        return existing != null ? existing : lock;
+    }
+
+    private static void removeExpired()
+    {
+        for (Map.Entry<String, Snapshot> entry : snapshots.entrySet())
+        {
+            if (entry.getValue().isExpired())
+            {
+                snapshots.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------- Inner classes
+
+    public interface Loader
+    {
+        /**
+         * @return map of advertised ref names to the object ids they point to
+         */
+        @NotNull
+        Map<String, String> load() throws RepositoryException;
+    }
+
+    /**
+     * Immutable view of the refs advertised by a remote at a given moment.
+     */
+    public static class Snapshot
+    {
+        private final Map<String, String> refs;
+        private final long created;
+
+        Snapshot(@NotNull final Map<String, String> refs)
+        {
+            this.refs = ImmutableMap.copyOf(refs);
+            this.created = System.currentTimeMillis();
+        }
+
+        boolean isExpired()
+        {
+            return System.currentTimeMillis() - created >= TimeUnit.SECONDS.toMillis(REMOTE_REFS_TTL_SECONDS);
+        }
+
+        public boolean contains(@NotNull final String refName)
+        {
+            return refs.containsKey(refName);
+        }
+
+        /**
+         * @return object id the ref points to, null if the ref is not advertised
+         */
+        @Nullable
+        public String getRevision(@NotNull final String refName)
+        {
+            return refs.get(refName);
+        }
+
+        @NotNull
+        public Set<String> getRefNames()
+        {
+            return refs.keySet();
+        }
+
+        /**
+         * @return first of the candidate names advertised by the remote, null if none is
+         */
+        @Nullable
+        public String findFirst(@NotNull final Collection<String> candidates)
+        {
+            for (String candidate : candidates)
+            {
+                if (refs.containsKey(candidate))
+                {
+                    return candidate;
+                }
+            }
+            return null;
+        }
+
+        @NotNull
+        public Set<String> getBranchNames()
+        {
+            final Set<String> branches = Sets.newTreeSet();
+            for (String ref : refs.keySet())
+            {
+                if (ref.startsWith(Constants.R_HEADS))
+                {
+                    branches.add(StringUtils.removeStart(ref, Constants.R_HEADS));
+                }
+            }
+            return branches;
+        }
+    }
+}
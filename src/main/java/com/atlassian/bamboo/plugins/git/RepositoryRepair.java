@@ -0,0 +1,289 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Repairs a repository damaged by an interrupted fetch or a crash, so that it does not have to be removed and fetched
+ * again from scratch.
+ *
+ * Truncated or mismatched packs, leftover temporary packs and empty loose objects are moved to a quarantine directory
+ * ({@code .git/quarantine}, replaced on every repair). Malformed refs and refs whose commit or tree is missing are
+ * deleted, so that a following fetch does not claim to have their history and downloads it again. Checks are cheap:
+ * packs are not hashed and history is not walked, damage they miss is still handled by removing the repository.
+ */
+class RepositoryRepair
+{
+    private static final Logger log = Logger.getLogger(RepositoryRepair.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final String QUARANTINE_DIRECTORY = "quarantine";
+
+    private static final byte[] PACK_SIGNATURE = Constants.encodeASCII("PACK");
+    private static final int PACK_HEADER_LENGTH = 12;
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    private RepositoryRepair()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * Must be called with the repository locked.
+     *
+     * @return number of repaired problems, 0 if the repository does not exist or no problem has been found
+     */
+    static int repair(@NotNull final File directory) throws IOException
+    {
+        final File gitDirectory = new File(directory, Constants.DOT_GIT);
+        if (!new File(gitDirectory, "objects").isDirectory())
+        {
+            return 0;
+        }
+        final File quarantine = new File(gitDirectory, QUARANTINE_DIRECTORY);
+        FileUtils.deleteDirectory(quarantine);
+
+        // file level checks first, JGit reads the pack list and refs when the repository is opened
+        int repaired = quarantineBrokenPacks(gitDirectory, quarantine)
+                       + quarantineEmptyLooseObjects(gitDirectory, quarantine)
+                       + quarantineMalformedRefs(gitDirectory, quarantine);
+
+        final List<String> brokenRefs;
+        final FileRepository repository = new FileRepository(gitDirectory);
+        try
+        {
+            brokenRefs = findRefsToMissingObjects(repository);
+        }
+        finally
+        {
+            repository.close();
+        }
+        deleteRefs(gitDirectory, brokenRefs);
+        repaired += brokenRefs.size();
+
+        if (repaired > 0)
+        {
+            log.info("Repaired " + repaired + " problems in " + directory + ", damaged files are in " + quarantine);
+        }
+        return repaired;
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    private static int quarantineBrokenPacks(@NotNull final File gitDirectory, @NotNull final File quarantine) throws IOException
+    {
+        final File packDirectory = new File(new File(gitDirectory, "objects"), "pack");
+        final File[] files = packDirectory.listFiles();
+        if (files == null)
+        {
+            return 0;
+        }
+        int repaired = 0;
+        for (File file : files)
+        {
+            final String name = file.getName();
+            if (name.startsWith("tmp_"))
+            {
+                // left by an interrupted fetch
+                moveToQuarantine(file, quarantine, "temporary pack");
+                repaired++;
+            }
+            else if (name.endsWith(".pack"))
+            {
+                final File index = new File(packDirectory, StringUtils.removeEnd(name, ".pack") + ".idx");
+                if (!isPackIntact(file, index))
+                {
+                    moveToQuarantine(file, quarantine, "damaged pack");
+                    if (index.exists())
+                    {
+                        moveToQuarantine(index, quarantine, "index of damaged pack");
+                    }
+                    FileUtils.deleteQuietly(new File(packDirectory, StringUtils.removeEnd(name, ".pack") + ".keep"));
+                    repaired++;
+                }
+            }
+            else if (name.endsWith(".idx") && !new File(packDirectory, StringUtils.removeEnd(name, ".idx") + ".pack").exists())
+            {
+                moveToQuarantine(file, quarantine, "index without pack");
+                repaired++;
+            }
+        }
+        return repaired;
+    }
+
+    /**
+     * A pack is considered intact if it has a header and its trailing checksum matches the one recorded in its index.
+     */
+    static boolean isPackIntact(@NotNull final File pack, @NotNull final File index) throws IOException
+    {
+        final int checksumLength = Constants.OBJECT_ID_LENGTH;
+        if (!index.isFile() || index.length() < 2 * checksumLength || pack.length() < PACK_HEADER_LENGTH + checksumLength)
+        {
+            return false;
+        }
+        final byte[] signature = new byte[PACK_SIGNATURE.length];
+        final byte[] packChecksum = new byte[checksumLength];
+        final byte[] indexedChecksum = new byte[checksumLength];
+
+        final RandomAccessFile packFile = new RandomAccessFile(pack, "r");
+        try
+        {
+            packFile.readFully(signature);
+            packFile.seek(packFile.length() - checksumLength);
+            packFile.readFully(packChecksum);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(packFile);
+        }
+        final RandomAccessFile indexFile = new RandomAccessFile(index, "r");
+        try
+        {
+            indexFile.seek(indexFile.length() - 2 * checksumLength);
+            indexFile.readFully(indexedChecksum);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(indexFile);
+        }
+        return Arrays.equals(signature, PACK_SIGNATURE) && Arrays.equals(packChecksum, indexedChecksum);
+    }
+
+    private static int quarantineEmptyLooseObjects(@NotNull final File gitDirectory, @NotNull final File quarantine) throws IOException
+    {
+        final File[] fanOutDirectories = new File(gitDirectory, "objects").listFiles();
+        if (fanOutDirectories == null)
+        {
+            return 0;
+        }
+        int repaired = 0;
+        for (File fanOutDirectory : fanOutDirectories)
+        {
+            if (fanOutDirectory.getName().length() != 2)
+            {
+                continue; // pack, info
+            }
+            final File[] objects = fanOutDirectory.listFiles();
+            for (File object : objects != null ? objects : new File[0])
+            {
+                if (object.length() == 0)
+                {
+                    moveToQuarantine(object, quarantine, "empty object");
+                    repaired++;
+                }
+            }
+        }
+        return repaired;
+    }
+
+    private static int quarantineMalformedRefs(@NotNull final File gitDirectory, @NotNull final File quarantine) throws IOException
+    {
+        final File refsDirectory = new File(gitDirectory, Constants.R_REFS);
+        if (!refsDirectory.isDirectory())
+        {
+            return 0;
+        }
+        int repaired = 0;
+        @SuppressWarnings("unchecked")
+        final Collection<File> looseRefs = FileUtils.listFiles(refsDirectory, null, true);
+        for (File looseRef : looseRefs)
+        {
+            final String content = FileUtils.readFileToString(looseRef).trim();
+            if (!ObjectId.isId(content) && !content.startsWith("ref: "))
+            {
+                moveToQuarantine(looseRef, quarantine, "malformed ref");
+                repaired++;
+            }
+        }
+        return repaired;
+    }
+
+    /**
+     * @return refs whose objects are missing, deleted with {@link #deleteRefs} as JGit refuses to delete the current branch
+     */
+    @NotNull
+    private static List<String> findRefsToMissingObjects(@NotNull final FileRepository repository) throws IOException
+    {
+        final List<String> brokenRefs = Lists.newArrayList();
+        final RevWalk revWalk = new RevWalk(repository);
+        try
+        {
+            for (Ref ref : repository.getRefDatabase().getRefs(RefDatabase.ALL).values())
+            {
+                if (!ref.isSymbolic() && ref.getObjectId() != null && !isComplete(repository, revWalk, ref.getObjectId()))
+                {
+                    brokenRefs.add(ref.getName());
+                }
+            }
+        }
+        finally
+        {
+            revWalk.release();
+        }
+        return brokenRefs;
+    }
+
+    private static void deleteRefs(@NotNull final File gitDirectory, @NotNull final List<String> refNames) throws IOException
+    {
+        final File packedRefsFile = new File(gitDirectory, WorkspaceRefs.PACKED_REFS);
+        final Map<String, String> packedRefs = WorkspaceRefs.readPackedRefs(packedRefsFile);
+        for (String refName : refNames)
+        {
+            log.info("Deleting " + refName + " of " + gitDirectory + ", its objects are missing");
+            FileUtils.deleteQuietly(new File(gitDirectory, refName));
+            packedRefs.remove(refName);
+        }
+        if (packedRefsFile.exists())
+        {
+            WorkspaceRefs.writePackedRefs(packedRefsFile, packedRefs);
+        }
+    }
+
+    private static boolean isComplete(@NotNull final FileRepository repository, @NotNull final RevWalk revWalk, @NotNull final ObjectId id)
+    {
+        try
+        {
+            final RevObject object = revWalk.peel(revWalk.parseAny(id));
+            if (object instanceof RevCommit)
+            {
+                return repository.hasObject(((RevCommit) object).getTree());
+            }
+            return repository.hasObject(object);
+        }
+        catch (IOException e)
+        {
+            return false; // missing, corrupt or of unexpected type
+        }
+    }
+
+    private static void moveToQuarantine(@NotNull final File file, @NotNull final File quarantine, @NotNull final String reason) throws IOException
+    {
+        log.info("Quarantining " + reason + " " + file);
+        final File target = new File(quarantine, file.getParentFile().getName() + "-" + file.getName());
+        FileUtils.deleteQuietly(target);
+        FileUtils.moveFile(file, target);
+    }
+}
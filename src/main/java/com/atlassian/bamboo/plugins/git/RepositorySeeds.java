@@ -0,0 +1,177 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.utils.SystemProperty;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.filefilter.RegexFileFilter;
+import org.apache.commons.io.filefilter.SuffixFileFilter;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.transport.BundleWriter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Local copies of remote repositories, used to seed new cache and source directories so that only commits missing from
+ * the seed are fetched from the remote repository.
+ *
+ * Seeds live in the {@link #SEED_DIRECTORY} configured by the administrator, named after the canonical repository URL
+ * (see {@link #getSeedName}): either a git bundle {@code <name>.bundle} or a mirror repository {@code <name>}. Bundles
+ * can be exported from existing caches with {@link #exportBundle}, e.g. to pre-bake agent images.
+ */
+public class RepositorySeeds
+{
+    private static final Logger log = Logger.getLogger(RepositorySeeds.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final String SEED_DIRECTORY = new SystemProperty(false, "atlassian.bamboo.git.seedDirectory", "GIT_SEED_DIRECTORY").getValue("");
+
+    static final String BUNDLE_EXTENSION = ".bundle";
+    private static final String[] SEEDED_REFS = {Constants.R_HEADS, Constants.R_TAGS};
+    private static final String LOOSE_OBJECT_DIRECTORY_PATTERN = "[0-9a-f]{2}";
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    private RepositorySeeds()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * @return name of seeds for the repository, the same for all URLs of the repository
+     */
+    @NotNull
+    public static String getSeedName(@NotNull final String repositoryUrl)
+    {
+        return GitCacheDirectory.calculateAggregateSha(UriUtils.getCanonicalUrl(repositoryUrl));
+    }
+
+    /**
+     * @return bundle or mirror repository to seed a new repository from, null if none is configured
+     */
+    @Nullable
+    public static File findSeed(@NotNull final String repositoryUrl)
+    {
+        return findSeed(SEED_DIRECTORY, repositoryUrl);
+    }
+
+    @Nullable
+    static File findSeed(@Nullable final String seedDirectory, @NotNull final String repositoryUrl)
+    {
+        if (StringUtils.isBlank(seedDirectory))
+        {
+            return null;
+        }
+        final String name = getSeedName(repositoryUrl);
+        final File bundle = new File(seedDirectory, name + BUNDLE_EXTENSION);
+        if (bundle.isFile())
+        {
+            return bundle;
+        }
+        final File mirror = new File(seedDirectory, name);
+        if (new File(mirror, Constants.DOT_GIT).isDirectory() || new File(mirror, Constants.HEAD).isFile())
+        {
+            return mirror;
+        }
+        log.debug("No seed for " + repositoryUrl + " in " + seedDirectory + ", expected " + bundle.getName() + " or " + mirror.getName());
+        return null;
+    }
+
+    /**
+     * A repository may exist before its first fetch, e.g. a new blobless cache only holds the configuration enabling
+     * the blob filter, so the directory is checked for objects rather than for a repository.
+     *
+     * @return true if the directory has no repository or its repository neither holds nor borrows any objects
+     */
+    static boolean hasNoObjects(@NotNull final File directory)
+    {
+        final File objectsDirectory = new File(new File(directory, Constants.DOT_GIT), "objects");
+        if (new File(objectsDirectory, "info/alternates").isFile())
+        {
+            return false;
+        }
+        final File[] packs = new File(objectsDirectory, "pack").listFiles((FileFilter) new SuffixFileFilter(".pack"));
+        if (packs != null && packs.length > 0)
+        {
+            return false;
+        }
+        final File[] looseObjectDirectories = objectsDirectory.listFiles((FileFilter) new RegexFileFilter(LOOSE_OBJECT_DIRECTORY_PATTERN));
+        return looseObjectDirectories == null || looseObjectDirectories.length == 0;
+    }
+
+    /**
+     * Writes the branches and tags of the cache to a bundle in the seed directory, or next to the cache if no seed
+     * directory is configured. Must be called with the cache lock held.
+     *
+     * @return the bundle
+     */
+    @NotNull
+    public static File exportBundle(@NotNull final File cacheDirectory, @NotNull final String repositoryUrl) throws IOException
+    {
+        final File gitDirectory = new File(cacheDirectory, Constants.DOT_GIT);
+        if (new File(gitDirectory, "shallow").exists())
+        {
+            throw new IOException(cacheDirectory + " is a shallow clone and cannot be exported");
+        }
+        if (BloblessCache.isBlobless(cacheDirectory))
+        {
+            throw new IOException(cacheDirectory + " is a blobless cache and cannot be exported");
+        }
+        final File targetDirectory = StringUtils.isNotBlank(SEED_DIRECTORY) ? new File(SEED_DIRECTORY) : cacheDirectory.getParentFile();
+        final File bundle = new File(targetDirectory, getSeedName(repositoryUrl) + BUNDLE_EXTENSION);
+        final File temporaryBundle = new File(targetDirectory, bundle.getName() + ".tmp");
+
+        final FileRepository repository = new FileRepository(gitDirectory);
+        try
+        {
+            final BundleWriter bundleWriter = new BundleWriter(repository);
+            int refCount = 0;
+            for (String prefix : SEEDED_REFS)
+            {
+                for (Ref ref : repository.getRefDatabase().getRefs(prefix).values())
+                {
+                    if (!ref.isSymbolic() && ref.getObjectId() != null)
+                    {
+                        bundleWriter.include(ref.getName(), ref.getObjectId());
+                        refCount++;
+                    }
+                }
+            }
+            if (refCount == 0)
+            {
+                throw new IOException(cacheDirectory + " contains no branches or tags to export");
+            }
+
+            final OutputStream outputStream = new BufferedOutputStream(FileUtils.openOutputStream(temporaryBundle));
+            try
+            {
+                bundleWriter.writeBundle(NullProgressMonitor.INSTANCE, outputStream);
+            }
+            finally
+            {
+                IOUtils.closeQuietly(outputStream);
+            }
+            FileUtils.deleteQuietly(bundle);
+            FileUtils.moveFile(temporaryBundle, bundle);
+            log.info("Exported " + refCount + " refs of " + cacheDirectory + " to " + bundle + " (" + FileUtils.byteCountToDisplaySize(bundle.length()) + ")");
+            return bundle;
+        }
+        finally
+        {
+            repository.close();
+            FileUtils.deleteQuietly(temporaryBundle);
+        }
+    }
+}
@@ -1,17 +1,24 @@
 package com.atlassian.bamboo.plugins.git;
 
+import com.google.common.collect.ImmutableMap;
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.transport.URIish;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Locale;
+import java.util.Map;
 
 public class UriUtils
 {
     static final String SSH_SCHEME = "ssh";
     static final String SCHEME_DELIMITER = "://";
 
+    private static final Map<String, Integer> DEFAULT_PORTS = ImmutableMap.of(SSH_SCHEME, 22, "git", 9418, "http", 80, "https", 443);
+
     private UriUtils()
     {
     }
@@ -30,6 +37,71 @@ public class UriUtils
     }
 
 
+    /**
+     * @return lower case host and path of the URL, without scheme, credentials, surrounding slashes and ".git" suffix,
+     *         with the port if it is not the default port of the URL's protocol (SCP-like URLs use the ssh port), as it
+     *         may denote a different server. This is the identity of the remote repository, shared by all URLs and
+     *         credentials used to access it
+     */
+    @NotNull
+    public static String getCanonicalUrl(@NotNull final String repositoryUrl)
+    {
+        String host = null;
+        int port = -1;
+        String path;
+        try
+        {
+            final URIish uri = new URIish(repositoryUrl.trim());
+            host = uri.getHost();
+            path = uri.getPath();
+            if (uri.getPort() > 0 && !Integer.valueOf(uri.getPort()).equals(DEFAULT_PORTS.get(StringUtils.defaultString(uri.getScheme(), SSH_SCHEME))))
+            {
+                port = uri.getPort();
+            }
+        }
+        catch (URISyntaxException e)
+        {
+            path = repositoryUrl.trim();
+        }
+        path = StringUtils.removeEnd(StringUtils.strip(StringUtils.defaultString(path), "/"), Constants.DOT_GIT_EXT);
+        if (host == null)
+        {
+            return path;
+        }
+        return host.toLowerCase(Locale.ENGLISH) + (port > 0 ? ":" + port : "") + "/" + path;
+    }
+
+    /**
+     * Paths relative to the home directory of the user logging in denote different repositories for different users,
+     * even though their canonical URLs are equal. Paths starting with {@code ~/} always are. Relative SCP-like paths
+     * ({@code user@host:repo.git}) are only on plain SSH servers, forges resolve them like absolute paths.
+     *
+     * @param username user name configured next to the URL, used if the URL does not contain one
+     * @param relativeScpPaths if true, relative SCP-like paths are treated as relative to the home directory
+     * @return user whose home directory the path of the URL is relative to ("" if unknown), null if the path is not
+     *         relative to the home directory
+     */
+    @Nullable
+    public static String getHomeDirectoryUser(@NotNull final String repositoryUrl, @Nullable final String username, final boolean relativeScpPaths)
+    {
+        try
+        {
+            final URIish uri = new URIish(repositoryUrl.trim());
+            final String path = StringUtils.defaultString(uri.getPath());
+            final String pathWithoutSlash = StringUtils.removeStart(path, "/");
+            final boolean relativeScpPath = relativeScpPaths && hasScpSyntax(repositoryUrl.trim()) && uri.getHost() != null && !path.startsWith("/");
+            if (!relativeScpPath && !pathWithoutSlash.equals("~") && !pathWithoutSlash.startsWith("~/"))
+            {
+                return null;
+            }
+            return StringUtils.defaultString(uri.getUser() != null ? uri.getUser() : username);
+        }
+        catch (URISyntaxException e)
+        {
+            return null;
+        }
+    }
+
     public static boolean isSsh(@NotNull ScpAwareUri repositoryUri)
     {
         return repositoryUri.getScheme().equals(SSH_SCHEME);
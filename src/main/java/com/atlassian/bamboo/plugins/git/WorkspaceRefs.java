@@ -0,0 +1,179 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.google.common.collect.Maps;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Propagates branches and tags of a cache repository to workspaces borrowing its objects.
+ *
+ * Refs are written to the workspace's {@code packed-refs} file in one go instead of copying one file per ref, and the
+ * file is only rewritten if a ref differs from the cache. Loose refs of the workspace shadowing a cache ref are deleted,
+ * so the cache wins like it did when its ref directories were copied. Refs removed from the cache are kept.
+ */
+final class WorkspaceRefs
+{
+    private static final Logger log = Logger.getLogger(WorkspaceRefs.class);
+
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final String PACKED_REFS = "packed-refs";
+    private static final String[] PROPAGATED_PREFIXES = {Constants.R_HEADS, Constants.R_TAGS};
+
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    private WorkspaceRefs()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * @return number of refs written, 0 if the workspace was up to date
+     */
+    static int copyFromCache(@NotNull final File cacheGitDirectory, @NotNull final File workspaceGitDirectory) throws IOException
+    {
+        final Map<String, String> cacheRefs = readRefs(cacheGitDirectory);
+        final File packedRefsFile = new File(workspaceGitDirectory, PACKED_REFS);
+        final Map<String, String> packedRefs = readPackedRefs(packedRefsFile);
+
+        int changed = 0;
+        for (Map.Entry<String, String> cacheRef : cacheRefs.entrySet())
+        {
+            if (!cacheRef.getValue().equals(packedRefs.put(cacheRef.getKey(), cacheRef.getValue())))
+            {
+                changed++;
+            }
+        }
+        if (changed > 0)
+        {
+            writePackedRefs(packedRefsFile, packedRefs);
+        }
+        final int shadowing = deleteShadowingLooseRefs(workspaceGitDirectory, cacheRefs);
+        log.debug("Propagated " + cacheRefs.size() + " refs from " + cacheGitDirectory + " to " + workspaceGitDirectory + ": "
+                  + changed + " written, " + shadowing + " loose refs deleted");
+        return changed;
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    @NotNull
+    private static Map<String, String> readRefs(@NotNull final File gitDirectory) throws IOException
+    {
+        final Map<String, String> refs = Maps.newTreeMap();
+        final FileRepository repository = new FileRepository(gitDirectory);
+        try
+        {
+            for (String prefix : PROPAGATED_PREFIXES)
+            {
+                for (Ref ref : repository.getRefDatabase().getRefs(prefix).values())
+                {
+                    if (!ref.isSymbolic() && ref.getObjectId() != null)
+                    {
+                        refs.put(ref.getName(), ref.getObjectId().name());
+                    }
+                }
+            }
+        }
+        finally
+        {
+            repository.close();
+        }
+        return refs;
+    }
+
+    /**
+     * @return refs by name, peeled values are dropped
+     */
+    @NotNull
+    static Map<String, String> readPackedRefs(@NotNull final File packedRefsFile) throws IOException
+    {
+        final Map<String, String> refs = Maps.newTreeMap();
+        if (!packedRefsFile.isFile())
+        {
+            return refs;
+        }
+        for (String line : FileUtils.readLines(packedRefsFile, "UTF-8"))
+        {
+            if (line.startsWith("#") || line.startsWith("^"))
+            {
+                continue;
+            }
+            final String id = StringUtils.substringBefore(line, " ");
+            final String name = StringUtils.substringAfter(line, " ").trim();
+            if (ObjectId.isId(id) && StringUtils.isNotEmpty(name))
+            {
+                refs.put(name, id);
+            }
+        }
+        return refs;
+    }
+
+    private static int deleteShadowingLooseRefs(@NotNull final File gitDirectory, @NotNull final Map<String, String> cacheRefs) throws IOException
+    {
+        int deleted = 0;
+        for (String prefix : PROPAGATED_PREFIXES)
+        {
+            final File directory = new File(gitDirectory, prefix);
+            if (!directory.isDirectory())
+            {
+                continue;
+            }
+            @SuppressWarnings("unchecked")
+            final Collection<File> looseRefs = FileUtils.listFiles(directory, null, true);
+            for (File looseRef : looseRefs)
+            {
+                final String name = prefix + directory.toURI().relativize(looseRef.toURI()).getPath();
+                final String cacheId = cacheRefs.get(name);
+                if (cacheId != null && !cacheId.equals(FileUtils.readFileToString(looseRef).trim()) && looseRef.delete())
+                {
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Written next to the target and renamed like git does, so that readers never see a partial file.
+     */
+    static void writePackedRefs(@NotNull final File packedRefsFile, @NotNull final Map<String, String> refs) throws IOException
+    {
+        final File lockFile = new File(packedRefsFile.getPath() + ".lock");
+        final Writer writer = new OutputStreamWriter(FileUtils.openOutputStream(lockFile), "UTF-8");
+        try
+        {
+            for (Map.Entry<String, String> ref : refs.entrySet())
+            {
+                writer.write(ref.getValue() + " " + ref.getKey() + "\n");
+            }
+        }
+        finally
+        {
+            IOUtils.closeQuietly(writer);
+        }
+        if (!lockFile.renameTo(packedRefsFile))
+        {
+            FileUtils.deleteQuietly(packedRefsFile);
+            if (!lockFile.renameTo(packedRefsFile))
+            {
+                FileUtils.deleteQuietly(lockFile);
+                throw new IOException("Unable to replace " + packedRefsFile);
+            }
+        }
+    }
+}
@@ -29,6 +29,21 @@ public class RestConstants
     public static final String NAME  = "name";
 
     public static final String RESPONSE  = "response";
+
+    public static final String PUSH    = "push";
+    public static final String PAYLOAD = "payload";
+    public static final String URL     = "url";
+    public static final String REF     = "ref";
+    public static final String SHA     = "sha";
+
+    public static final String SIGNATURE_HEADER     = "X-Hub-Signature";
+    public static final String SIGNATURE_256_HEADER = "X-Hub-Signature-256";
+
+    public static final String CACHE  = "cache";
+    public static final String CACHES = "caches";
+    public static final String PLAN   = "plan";
+    public static final String PLANS  = "plans";
+    public static final String URLS   = "urls";
     // ------------------------------------------------------------------------------------------------- Type Properties
     // ---------------------------------------------------------------------------------------------------- Dependencies
     // ---------------------------------------------------------------------------------------------------- Constructors
@@ -0,0 +1,108 @@
+package com.atlassian.bamboo.plugins.git.rest.entity;
+
+import com.atlassian.bamboo.plugins.git.CacheInventory;
+import com.atlassian.bamboo.plugins.git.rest.commons.RestConstants;
+import com.google.common.collect.Lists;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlElementWrapper;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.List;
+
+import static javax.xml.bind.annotation.XmlAccessType.FIELD;
+
+/**
+ * Cache directory as listed by {@link CacheInventory}. Times are in milliseconds, 0 if unknown.
+ */
+@XmlRootElement(name = RestConstants.CACHE)
+@XmlAccessorType(FIELD)
+public class CacheEntity
+{
+    @SuppressWarnings("UnusedDeclaration")
+    private static final Logger log = Logger.getLogger(CacheEntity.class);
+    // ------------------------------------------------------------------------------------------------------- Constants
+    // ------------------------------------------------------------------------------------------------- Type Properties
+    @XmlElement
+    private String directory;
+
+    @XmlElementWrapper(name = RestConstants.URLS)
+    @XmlElement(name = RestConstants.URL)
+    private List<String> urls;
+
+    @XmlElementWrapper(name = RestConstants.PLANS)
+    @XmlElement(name = RestConstants.PLAN)
+    private List<String> plans;
+
+    @XmlElement
+    private boolean shallow;
+
+    @XmlElement
+    private long size;
+
+    @XmlElement
+    private int packCount;
+
+    @XmlElement
+    private int looseObjectCount;
+
+    @XmlElement
+    private int refCount;
+
+    @XmlElement
+    private long lastAccess;
+
+    @XmlElement
+    private long lastFetch;
+
+    @XmlElement
+    private long lastFetchDuration;
+
+    @XmlElement
+    private long fetchCount;
+
+    @XmlElement
+    private long failedFetchCount;
+
+    @XmlElement
+    private long lockCount;
+
+    @XmlElement
+    private long totalLockWait;
+
+    @XmlElement
+    private long maxLockWait;
+    // ---------------------------------------------------------------------------------------------------- Dependencies
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    @SuppressWarnings("UnusedDeclaration")
+    public CacheEntity()
+    {
+    }
+
+    public CacheEntity(@NotNull final CacheInventory.Entry entry)
+    {
+        directory = entry.getDirectory().getAbsolutePath();
+        urls = Lists.newArrayList(entry.getUrls());
+        plans = Lists.newArrayList(entry.getPlanKeys());
+        shallow = entry.isShallow();
+        size = entry.getSize();
+        packCount = entry.getPackCount();
+        looseObjectCount = entry.getLooseObjectCount();
+        refCount = entry.getRefCount();
+        lastAccess = entry.getLastAccess();
+        lastFetch = entry.getLastFetch();
+        lastFetchDuration = entry.getLastFetchDuration();
+        fetchCount = entry.getFetchCount();
+        failedFetchCount = entry.getFailedFetchCount();
+        lockCount = entry.getLockCount();
+        totalLockWait = entry.getTotalLockWait();
+        maxLockWait = entry.getMaxLockWait();
+    }
+    // ----------------------------------------------------------------------------------------------- Interface Methods
+    // -------------------------------------------------------------------------------------------------- Action Methods
+    // -------------------------------------------------------------------------------------------------- Public Methods
+    // -------------------------------------------------------------------------------------- Basic Accessors / Mutators
+}
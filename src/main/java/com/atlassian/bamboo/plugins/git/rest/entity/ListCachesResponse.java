@@ -0,0 +1,37 @@
+package com.atlassian.bamboo.plugins.git.rest.entity;
+
+import com.atlassian.bamboo.plugins.git.rest.commons.RestConstants;
+import com.atlassian.bamboo.rest.entity.RestResponse;
+import org.apache.log4j.Logger;
+
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlElementWrapper;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.List;
+
+import static javax.xml.bind.annotation.XmlAccessType.FIELD;
+
+@XmlRootElement(name = RestConstants.RESPONSE)
+@XmlAccessorType(FIELD)
+public class ListCachesResponse extends RestResponse
+{
+    @SuppressWarnings("UnusedDeclaration")
+    private static final Logger log = Logger.getLogger(ListCachesResponse.class);
+    // ------------------------------------------------------------------------------------------------------- Constants
+    // ------------------------------------------------------------------------------------------------- Type Properties
+    @XmlElementWrapper(name = RestConstants.CACHES)
+    @XmlElement(name = RestConstants.CACHE)
+    private List<CacheEntity> caches;
+    // ---------------------------------------------------------------------------------------------------- Dependencies
+    // ---------------------------------------------------------------------------------------------------- Constructors
+    // ----------------------------------------------------------------------------------------------- Interface Methods
+    // -------------------------------------------------------------------------------------------------- Action Methods
+    // -------------------------------------------------------------------------------------------------- Public Methods
+    // -------------------------------------------------------------------------------------- Basic Accessors / Mutators
+
+    public void setCaches(List<CacheEntity> caches)
+    {
+        this.caches = caches;
+    }
+}
@@ -0,0 +1,42 @@
+package com.atlassian.bamboo.plugins.git.rest.entity;
+
+import com.atlassian.bamboo.plugins.git.rest.commons.RestConstants;
+import com.atlassian.bamboo.rest.entity.RestResponse;
+import org.apache.log4j.Logger;
+
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import static javax.xml.bind.annotation.XmlAccessType.FIELD;
+
+@XmlRootElement(name = RestConstants.RESPONSE)
+@XmlAccessorType(FIELD)
+public class PushNotificationResponse extends RestResponse
+{
+    @SuppressWarnings("UnusedDeclaration")
+    private static final Logger log = Logger.getLogger(PushNotificationResponse.class);
+    // ------------------------------------------------------------------------------------------------------- Constants
+    // ------------------------------------------------------------------------------------------------- Type Properties
+    @XmlElement
+    private int matchedRepositories;
+
+    @XmlElement
+    private int scheduledFetches;
+    // ---------------------------------------------------------------------------------------------------- Dependencies
+    // ---------------------------------------------------------------------------------------------------- Constructors
+    // ----------------------------------------------------------------------------------------------- Interface Methods
+    // -------------------------------------------------------------------------------------------------- Action Methods
+    // -------------------------------------------------------------------------------------------------- Public Methods
+    // -------------------------------------------------------------------------------------- Basic Accessors / Mutators
+
+    public void setMatchedRepositories(int matchedRepositories)
+    {
+        this.matchedRepositories = matchedRepositories;
+    }
+
+    public void setScheduledFetches(int scheduledFetches)
+    {
+        this.scheduledFetches = scheduledFetches;
+    }
+}
@@ -0,0 +1,97 @@
+package com.atlassian.bamboo.plugins.git.rest.resource;
+
+import com.atlassian.bamboo.chains.Chain;
+import com.atlassian.bamboo.plan.PlanHelper;
+import com.atlassian.bamboo.plan.PlanManager;
+import com.atlassian.bamboo.plugins.git.CacheInventory;
+import com.atlassian.bamboo.plugins.git.GitRepository;
+import com.atlassian.bamboo.plugins.git.rest.commons.RestConstants;
+import com.atlassian.bamboo.plugins.git.rest.entity.CacheEntity;
+import com.atlassian.bamboo.plugins.git.rest.entity.ListCachesResponse;
+import com.atlassian.bamboo.repository.RepositoryDefinitionManager;
+import com.atlassian.bamboo.rest.entity.RestResponse;
+import com.atlassian.bamboo.utils.Pair;
+import com.atlassian.sal.api.message.I18nResolver;
+import com.atlassian.sal.api.user.UserManager;
+import com.google.common.collect.Lists;
+import com.sun.jersey.spi.resource.Singleton;
+import org.apache.log4j.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.List;
+
+/**
+ * Lists the cache directories of this server with the repositories and plans using them, their disk usage and fetch
+ * and lock statistics (see {@link CacheInventory}). Measuring reads every cache directory, so the resource is
+ * restricted to system administrators.
+ */
+@Path(RestConstants.CACHES)
+@Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON})
+@Singleton
+public class CacheInventoryResource
+{
+    @SuppressWarnings("unused")
+    private static final Logger log = Logger.getLogger(CacheInventoryResource.class);
+    // ------------------------------------------------------------------------------------------------------- Constants
+    // ------------------------------------------------------------------------------------------------- Type Properties
+    // ---------------------------------------------------------------------------------------------------- Dependencies
+    private final I18nResolver i18nResolver;
+    private final PlanManager planManager;
+    private final RepositoryDefinitionManager repositoryDefinitionManager;
+    private final UserManager userManager;
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    public CacheInventoryResource(I18nResolver i18nResolver, PlanManager planManager, RepositoryDefinitionManager repositoryDefinitionManager, UserManager userManager)
+    {
+        this.i18nResolver = i18nResolver;
+        this.planManager = planManager;
+        this.repositoryDefinitionManager = repositoryDefinitionManager;
+        this.userManager = userManager;
+    }
+
+    // ----------------------------------------------------------------------------------------------- Interface Methods
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    @GET
+    public Response getCaches(@Context HttpServletRequest request)
+    {
+        final String username = userManager.getRemoteUsername(request);
+        if (username == null || !userManager.isSystemAdmin(username))
+        {
+            final RestResponse.Builder builder = RestResponse.builder();
+            builder.error(i18nResolver.getText("repository.git.messages.cache.inventoryForbidden"));
+            return Response.status(Response.Status.FORBIDDEN).entity(builder.build(RestResponse.class)).build();
+        }
+
+        // plans survive restarts, unlike the plans seen using caches, and repository definitions not used by any plan
+        // still point at their caches
+        final List<Pair<GitRepository, String>> gitRepositories = Lists.newArrayList();
+        for (Chain plan : planManager.getAllPlans(Chain.class))
+        {
+            for (GitRepository gitRepository : GitRepositories.getGitRepositories(PlanHelper.getRepositoryDefinitions(plan)))
+            {
+                gitRepositories.add(new Pair<GitRepository, String>(gitRepository, plan.getKey()));
+            }
+        }
+        for (GitRepository gitRepository : GitRepositories.getGitRepositories(repositoryDefinitionManager.getAllRepositoryDefinitions()))
+        {
+            gitRepositories.add(new Pair<GitRepository, String>(gitRepository, null));
+        }
+
+        final List<CacheEntity> caches = Lists.newArrayList();
+        for (CacheInventory.Entry entry : CacheInventory.list(gitRepositories))
+        {
+            caches.add(new CacheEntity(entry));
+        }
+        final ListCachesResponse response = RestResponse.builder().build(ListCachesResponse.class);
+        response.setCaches(caches);
+        return Response.ok(response).build();
+    }
+
+}
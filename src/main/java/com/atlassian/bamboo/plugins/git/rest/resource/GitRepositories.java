@@ -0,0 +1,48 @@
+package com.atlassian.bamboo.plugins.git.rest.resource;
+
+import com.atlassian.bamboo.plugins.git.GitHubRepository;
+import com.atlassian.bamboo.plugins.git.GitRepository;
+import com.atlassian.bamboo.repository.Repository;
+import com.atlassian.bamboo.repository.RepositoryDefinition;
+import com.atlassian.bamboo.util.Narrow;
+import com.google.common.collect.Lists;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Finds the git repositories behind repository definitions, including the ones wrapped by GitHub repositories.
+ */
+final class GitRepositories
+{
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    private GitRepositories()
+    {
+    }
+
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    @NotNull
+    static List<GitRepository> getGitRepositories(@NotNull final Iterable<? extends RepositoryDefinition> repositoryDefinitions)
+    {
+        final List<GitRepository> gitRepositories = Lists.newArrayList();
+        for (RepositoryDefinition repositoryDefinition : repositoryDefinitions)
+        {
+            final GitRepository gitRepository = getGitRepository(repositoryDefinition.getRepository());
+            if (gitRepository != null)
+            {
+                gitRepositories.add(gitRepository);
+            }
+        }
+        return gitRepositories;
+    }
+
+    @Nullable
+    static GitRepository getGitRepository(@Nullable final Repository repository)
+    {
+        final GitHubRepository gitHubRepository = Narrow.to(repository, GitHubRepository.class);
+        return gitHubRepository != null ? gitHubRepository.getGitRepository() : Narrow.to(repository, GitRepository.class);
+    }
+}
@@ -0,0 +1,303 @@
+package com.atlassian.bamboo.plugins.git.rest.resource;
+
+import com.atlassian.bamboo.plugins.git.CachePrefetcher;
+import com.atlassian.bamboo.plugins.git.GitRepository;
+import com.atlassian.bamboo.plugins.git.rest.commons.RestConstants;
+import com.atlassian.bamboo.plugins.git.rest.entity.PushNotificationResponse;
+import com.atlassian.bamboo.repository.RepositoryDefinitionManager;
+import com.atlassian.bamboo.rest.entity.RestResponse;
+import com.atlassian.bamboo.utils.Pair;
+import com.atlassian.bamboo.utils.SystemProperty;
+import com.atlassian.plugins.rest.common.security.AnonymousAllowed;
+import com.atlassian.sal.api.message.I18nResolver;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.opensymphony.webwork.dispatcher.json.JSONException;
+import com.opensymphony.webwork.dispatcher.json.JSONObject;
+import com.sun.jersey.spi.resource.Singleton;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.ObjectId;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Receives push notifications, so that plans do not have to wait for the next poll to find new commits locally.
+ *
+ * Accepts GitHub push hook payloads (as JSON or as the {@code payload} form field) and a generic form with {@code url},
+ * {@code ref} and {@code sha}. Cached ref advertisements of all repositories using the pushed remote are dropped and
+ * their change detection caches are fetched in the background by {@link CachePrefetcher}.
+ *
+ * Hook senders do not log in, so requests are authenticated by an HMAC of the request body keyed with the secret
+ * configured in {@value #SECRET_PROPERTY}, sent the way GitHub does in the {@value RestConstants#SIGNATURE_256_HEADER}
+ * ({@code sha256=<hex>}) or {@value RestConstants#SIGNATURE_HEADER} ({@code sha1=<hex>}) header. Notifications are
+ * refused while no secret is configured.
+ */
+@Path(RestConstants.PUSH)
+@Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON})
+@AnonymousAllowed
+@Singleton
+public class PushNotificationResource
+{
+    private static final Logger log = Logger.getLogger(PushNotificationResource.class);
+    // ------------------------------------------------------------------------------------------------------- Constants
+
+    static final String SECRET_PROPERTY = "atlassian.bamboo.git.push.secret";
+
+    private static final String SHA256_PREFIX = "sha256=";
+    private static final String SHA1_PREFIX = "sha1=";
+    private static final String UTF_8 = "UTF-8";
+
+    // ------------------------------------------------------------------------------------------------- Type Properties
+    private final String secret;
+    // ---------------------------------------------------------------------------------------------------- Dependencies
+    private final I18nResolver i18nResolver;
+    private final RepositoryDefinitionManager repositoryDefinitionManager;
+    // ---------------------------------------------------------------------------------------------------- Constructors
+
+    public PushNotificationResource(I18nResolver i18nResolver, RepositoryDefinitionManager repositoryDefinitionManager)
+    {
+        this(i18nResolver, repositoryDefinitionManager, new SystemProperty(false, SECRET_PROPERTY, "GIT_PUSH_SECRET").getValue(""));
+    }
+
+    PushNotificationResource(I18nResolver i18nResolver, RepositoryDefinitionManager repositoryDefinitionManager, String secret)
+    {
+        this.i18nResolver = i18nResolver;
+        this.repositoryDefinitionManager = repositoryDefinitionManager;
+        this.secret = secret;
+    }
+
+    // ----------------------------------------------------------------------------------------------- Interface Methods
+    // -------------------------------------------------------------------------------------------------- Public Methods
+
+    /**
+     * @param body GitHub push payload or a {@code {"url": ..., "ref": ..., "sha": ...}} object
+     */
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response notifyPush(@HeaderParam(RestConstants.SIGNATURE_256_HEADER) String signature256,
+                               @HeaderParam(RestConstants.SIGNATURE_HEADER) String signature,
+                               byte[] body)
+    {
+        final Response forbidden = checkSignature(body, signature256, signature);
+        if (forbidden != null)
+        {
+            return forbidden;
+        }
+        return handleJsonPayload(toString(body));
+    }
+
+    /**
+     * @param body form with the GitHub push payload in the {@code payload} field, or with {@code url}, {@code ref} and
+     *             {@code sha} fields
+     */
+    @POST
+    @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+    public Response notifyPushForm(@HeaderParam(RestConstants.SIGNATURE_256_HEADER) String signature256,
+                                   @HeaderParam(RestConstants.SIGNATURE_HEADER) String signature,
+                                   byte[] body)
+    {
+        final Response forbidden = checkSignature(body, signature256, signature);
+        if (forbidden != null)
+        {
+            return forbidden;
+        }
+        // the signature covers the raw body, so the form is decoded here rather than by @FormParam
+        final Map<String, String> form = parseForm(toString(body));
+        final String payload = form.get(RestConstants.PAYLOAD);
+        if (StringUtils.isNotBlank(payload))
+        {
+            return handleJsonPayload(payload);
+        }
+        final String url = form.get(RestConstants.URL);
+        if (StringUtils.isBlank(url))
+        {
+            return badRequest(null);
+        }
+        return handlePush(Sets.newHashSet(url), form.get(RestConstants.REF), form.get(RestConstants.SHA));
+    }
+
+    // -------------------------------------------------------------------------------------------------- Helper Methods
+
+    @NotNull
+    private Response handleJsonPayload(@NotNull final String body)
+    {
+        try
+        {
+            return handlePayload(new JSONObject(body));
+        }
+        catch (JSONException e)
+        {
+            return badRequest(e.getMessage());
+        }
+    }
+
+    @NotNull
+    private Response handlePayload(@NotNull final JSONObject json)
+    {
+        final Set<String> urls = Sets.newLinkedHashSet();
+        final JSONObject repository = json.optJSONObject("repository");
+        final String sha;
+        if (repository != null)
+        {
+            for (String urlField : new String[]{"url", "clone_url", "git_url", "ssh_url"})
+            {
+                addIfNotBlank(urls, repository.optString(urlField));
+            }
+            sha = json.optBoolean("deleted") ? null : json.optString("after");
+        }
+        else
+        {
+            addIfNotBlank(urls, json.optString(RestConstants.URL));
+            sha = json.optString(RestConstants.SHA);
+        }
+        if (urls.isEmpty())
+        {
+            return badRequest(null);
+        }
+        return handlePush(urls, json.optString(RestConstants.REF), sha);
+    }
+
+    @NotNull
+    private Response handlePush(@NotNull final Set<String> urls, @Nullable final String ref, @Nullable final String sha)
+    {
+        final List<GitRepository> gitRepositories = GitRepositories.getGitRepositories(repositoryDefinitionManager.getAllRepositoryDefinitions());
+
+        final String revision = sha != null && ObjectId.isId(sha) && !ObjectId.zeroId().name().equals(sha) ? sha : null;
+        final Pair<Integer, Integer> result = CachePrefetcher.onPush(gitRepositories, urls, StringUtils.trimToNull(ref), revision);
+
+        final PushNotificationResponse response = RestResponse.builder().build(PushNotificationResponse.class);
+        response.setMatchedRepositories(result.getFirst());
+        response.setScheduledFetches(result.getSecond());
+        return Response.ok(response).build();
+    }
+
+    /**
+     * @return 403 response if notifications are disabled or the body is not signed with the secret, null otherwise
+     */
+    @Nullable
+    private Response checkSignature(@Nullable final byte[] body, @Nullable final String signature256, @Nullable final String signature)
+    {
+        if (StringUtils.isEmpty(secret))
+        {
+            return forbidden(i18nResolver.getText("repository.git.push.disabled", SECRET_PROPERTY));
+        }
+        final byte[] content = body != null ? body : new byte[0];
+        final boolean valid = signature256 != null
+                ? isValidSignature(content, signature256, SHA256_PREFIX, "HmacSHA256")
+                : signature != null && isValidSignature(content, signature, SHA1_PREFIX, "HmacSHA1");
+        return valid ? null : forbidden(i18nResolver.getText("repository.git.push.invalidSignature"));
+    }
+
+    private boolean isValidSignature(@NotNull final byte[] body, @NotNull final String signature, @NotNull final String prefix, @NotNull final String algorithm)
+    {
+        if (!signature.startsWith(prefix))
+        {
+            return false;
+        }
+        try
+        {
+            final Mac mac = Mac.getInstance(algorithm);
+            mac.init(new SecretKeySpec(secret.getBytes(UTF_8), algorithm));
+            final byte[] expected = mac.doFinal(body);
+            final byte[] actual = Hex.decodeHex(signature.substring(prefix.length()).trim().toCharArray());
+            // constant time comparison, not to reveal how much of the signature matched
+            return MessageDigest.isEqual(expected, actual);
+        }
+        catch (DecoderException e)
+        {
+            return false;
+        }
+        catch (GeneralSecurityException e)
+        {
+            log.warn("Unable to verify push notification signature", e);
+            return false;
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @NotNull
+    private static Map<String, String> parseForm(@NotNull final String body)
+    {
+        final Map<String, String> form = Maps.newHashMap();
+        for (String field : StringUtils.split(body, '&'))
+        {
+            final int separator = field.indexOf('=');
+            final String name = separator >= 0 ? field.substring(0, separator) : field;
+            final String value = separator >= 0 ? field.substring(separator + 1) : "";
+            try
+            {
+                form.put(URLDecoder.decode(name, UTF_8), URLDecoder.decode(value, UTF_8));
+            }
+            catch (UnsupportedEncodingException e)
+            {
+                throw new IllegalStateException(e);
+            }
+            catch (IllegalArgumentException e)
+            {
+                log.debug("Ignoring malformed form field " + field, e);
+            }
+        }
+        return form;
+    }
+
+    @NotNull
+    private static String toString(@Nullable final byte[] body)
+    {
+        try
+        {
+            return body != null ? new String(body, UTF_8) : "";
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void addIfNotBlank(@NotNull final Set<String> urls, @Nullable final String url)
+    {
+        if (StringUtils.isNotBlank(url))
+        {
+            urls.add(url.trim());
+        }
+    }
+
+    @NotNull
+    private Response badRequest(@Nullable final String details)
+    {
+        final String message = i18nResolver.getText("repository.git.push.invalidNotification");
+        final RestResponse.Builder builder = RestResponse.builder();
+        builder.error(details != null ? message + " " + details : message);
+        return Response.status(Response.Status.BAD_REQUEST).entity(builder.build(RestResponse.class)).build();
+    }
+
+    @NotNull
+    private static Response forbidden(@NotNull final String message)
+    {
+        final RestResponse.Builder builder = RestResponse.builder();
+        builder.error(message);
+        return Response.status(Response.Status.FORBIDDEN).entity(builder.build(RestResponse.class)).build();
+    }
+}
@@ -16,4 +16,10 @@
            title="[@ww.text name='repository.git.cacheDirectory.cleanTitle' /]"
            href="[@ww.url action='deleteGitCacheDirectory' namespace='/build/admin' buildKey=plan.key/]">[@ww.text name='global.buttons.delete' /]</a>
     [/@ui.messageBox]
+    [#if !repository.useShallowClones]
+        [@ui.messageBox type='info']
+            [@ww.text name='repository.git.cacheDirectory.exportMessage'/]
+            <a href="[@ww.url action='exportGitCacheBundle' namespace='/build/admin' buildKey=plan.key/]">[@ww.text name='repository.git.cacheDirectory.exportTitle' /]</a>
+        [/@ui.messageBox]
+    [/#if]
 [/#if]
@@ -0,0 +1,98 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.v2.build.BuildRepositoryChanges;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+public class BloblessCacheTest extends GitAbstractTest
+{
+    @Test
+    public void testVersionCheck() throws Exception
+    {
+        Assert.assertFalse(BloblessCache.isSupportedVersion(null));
+        Assert.assertFalse(BloblessCache.isSupportedVersion("git version 1.7.1"));
+        Assert.assertFalse(BloblessCache.isSupportedVersion("git version 2.30.9"));
+        Assert.assertTrue(BloblessCache.isSupportedVersion("git version 2.31.0"));
+        Assert.assertTrue(BloblessCache.isSupportedVersion("git version 2.39.2.windows.1"));
+        Assert.assertTrue(BloblessCache.isSupportedVersion("git version 3.0"));
+    }
+
+    @Test
+    public void testChangesAreDetectedWithoutBlobsWhichAreFetchedOnCheckout() throws Exception
+    {
+        GitTestRepository upstream = new GitTestRepository(createTempDirectory());
+        RevCommit first = upstream.commitFileContents("first");
+        RevCommit second = upstream.commitFileContents("second");
+        StoredConfig config = upstream.srcRepo.getConfig();
+        config.setBoolean("uploadpack", null, "allowFilter", true);
+        config.save();
+        upstream.close();
+
+        NativeGitOperationHelper helper = createNativeGitOperationHelper(createAccessData("file://" + upstream.srcDir.getAbsolutePath(), "master"));
+        File cache = createTempDirectory();
+        if (!helper.enableBlobFilter(cache))
+        {
+            throw new SkipException("git " + BloblessCache.MIN_GIT_VERSION + " or later required");
+        }
+        helper.fetch(cache, false);
+        Assert.assertTrue(BloblessCache.isBlobless(cache));
+
+        FileRepository cacheRepository = register(new FileRepository(new File(cache, Constants.DOT_GIT)));
+        ObjectId blob = TreeWalk.forPath(cacheRepository, upstream.textFile.getName(), second.getTree()).getObjectId(0);
+        Assert.assertTrue(cacheRepository.hasObject(second));
+        Assert.assertFalse(cacheRepository.hasObject(blob));
+
+        BuildRepositoryChanges changes = helper.extractCommits(cache, first.name(), second.name(), null);
+        Assert.assertEquals(changes.getChanges().size(), 1);
+        Assert.assertEquals(changes.getChanges().get(0).getFiles().get(0).getName(), upstream.textFile.getName());
+
+        File sourceDirectory = createTempDirectory();
+        helper.checkout(cache, sourceDirectory, second.name(), null);
+        Assert.assertTrue(BloblessCache.borrowsFromBlobless(sourceDirectory));
+        Assert.assertEquals(FileUtils.readFileToString(new File(sourceDirectory, upstream.textFile.getName())), "second");
+        Assert.assertFalse(cacheRepository.hasObject(blob));
+    }
+
+    @Test
+    public void testBloblessCacheIsNotDroppedByHelpersUnableToUseIt() throws Exception
+    {
+        File cache = GitCacheDirectory.getBloblessCacheDirectory(new File(createTempDirectory(), "cache"));
+        FileUtils.writeStringToFile(new File(cache, ".git/config"), "[remote \"" + BloblessCache.PROMISOR_REMOTE + "\"]\n\tpromisor = true\n");
+        Assert.assertTrue(BloblessCache.isBlobless(cache));
+
+        JGitOperationHelper helper = createJGitOperationHelper(createAccessData("repository.url"));
+        Assert.assertFalse(helper.supportsBlobFilter(cache));
+        GitCacheDirectory.prepareBlobFilter(helper, cache);
+        Assert.assertTrue(BloblessCache.isBlobless(cache));
+    }
+
+    @Test
+    public void testBlobFilterIsOnlyEnabledInBloblessCacheDirectories() throws Exception
+    {
+        NativeGitOperationHelper helper = createNativeGitOperationHelper(createAccessData("repository.url"));
+        File root = createTempDirectory();
+        if (!helper.supportsBlobFilter(root))
+        {
+            throw new SkipException("git " + BloblessCache.MIN_GIT_VERSION + " or later required");
+        }
+
+        File fullCache = new File(root, "cache");
+        GitCacheDirectory.prepareBlobFilter(helper, fullCache);
+        Assert.assertFalse(BloblessCache.isBlobless(fullCache), "Full caches are never converted");
+
+        File bloblessCache = GitCacheDirectory.getBloblessCacheDirectory(fullCache);
+        Assert.assertEquals(bloblessCache.getParentFile(), root);
+        GitCacheDirectory.prepareBlobFilter(helper, bloblessCache);
+        Assert.assertTrue(BloblessCache.isBlobless(bloblessCache));
+    }
+}
@@ -0,0 +1,91 @@
+package com.atlassian.bamboo.plugins.git;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class CacheEvictorTest extends GitAbstractTest
+{
+    @Test
+    public void testLeastRecentlyUsedCachesAreEvicted() throws Exception
+    {
+        File cacheRoot = createTempDirectory();
+        File oldest = createCache(cacheRoot, "oldest", 3);
+        File older = createCache(cacheRoot, "older", 2);
+        File recent = createCache(cacheRoot, "recent", 1);
+
+        Assert.assertEquals(CacheEvictor.evict(cacheRoot, 3000), 3000);
+        Assert.assertTrue(oldest.exists());
+
+        long evictedBefore = CacheEvictor.getStatistics().getEvictedCaches();
+        Assert.assertEquals(CacheEvictor.evict(cacheRoot, 2500), 2000);
+        Assert.assertFalse(oldest.exists());
+        Assert.assertFalse(GitCacheLock.getLockFile(oldest).exists(), "Lock file of the evicted cache should be deleted");
+        Assert.assertTrue(older.exists());
+        Assert.assertTrue(recent.exists());
+        Assert.assertEquals(CacheEvictor.getStatistics().getEvictedCaches(), evictedBefore + 1);
+        Assert.assertEquals(CacheEvictor.getStatistics().getTotalSize(), 2000);
+    }
+
+    @Test(timeOut = 10000)
+    public void testLockedCachesAreNotEvicted() throws Exception
+    {
+        final File cacheRoot = createTempDirectory();
+        final File locked = createCache(cacheRoot, "locked", 3);
+        final File unlocked = createCache(cacheRoot, "unlocked", 2);
+
+        final CountDownLatch lockHeld = new CountDownLatch(1);
+        final CountDownLatch evictionDone = new CountDownLatch(1);
+        Thread user = new Thread("Cache user") {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    GitCacheDirectory.getSharedCacheLock(locked).withLock(new Callable<Void>()
+                    {
+                        public Void call() throws Exception
+                        {
+                            lockHeld.countDown();
+                            evictionDone.await();
+                            return null;
+                        }
+                    });
+                }
+                catch (Exception e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        user.start();
+        Assert.assertTrue(lockHeld.await(1000, TimeUnit.MILLISECONDS));
+
+        try
+        {
+            Assert.assertEquals(CacheEvictor.evict(cacheRoot, 0), 1000);
+        }
+        finally
+        {
+            evictionDone.countDown();
+        }
+        Assert.assertTrue(locked.exists());
+        Assert.assertFalse(unlocked.exists());
+    }
+
+    private static File createCache(File cacheRoot, String name, int hoursSinceLastAccess) throws Exception
+    {
+        File cacheDirectory = new File(cacheRoot, name);
+        FileUtils.writeStringToFile(new File(cacheDirectory, "content"), StringUtils.repeat("x", 1000));
+        File lockFile = GitCacheLock.getLockFile(cacheDirectory);
+        FileUtils.touch(lockFile);
+        Assert.assertTrue(lockFile.setLastModified(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(hoursSinceLastAccess)));
+        return cacheDirectory;
+    }
+}
@@ -0,0 +1,67 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.utils.Pair;
+import com.google.common.collect.Sets;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+public class CacheInventoryTest extends GitAbstractTest
+{
+    @Test
+    public void testCachesAreListedWithTheirUsers() throws Exception
+    {
+        GitTestRepository source = new GitTestRepository(createTempDirectory());
+        source.commitFileContents("content");
+        source.close();
+
+        GitRepository gitRepository = createGitRepository();
+        setRepositoryProperties(gitRepository, source.srcDir);
+        gitRepository.collectChangesSinceLastBuild(PLAN_KEY.getKey(), null);
+
+        File cacheDirectory = gitRepository.getCacheDirectory();
+        File orphan = new File(cacheDirectory.getParentFile(), "orphan");
+        Assert.assertTrue(orphan.mkdir());
+
+        List<CacheInventory.Entry> entries = CacheInventory.list(Collections.singletonList(new Pair<GitRepository, String>(gitRepository, "CONFIGURED-PLAN")));
+        Assert.assertEquals(entries.size(), 2);
+        for (CacheInventory.Entry entry : entries)
+        {
+            if (entry.getDirectory().getName().equals(orphan.getName()))
+            {
+                Assert.assertTrue(entry.getUrls().isEmpty());
+                Assert.assertEquals(entry.getRefCount(), 0);
+                Assert.assertEquals(entry.getFetchCount(), 0);
+                continue;
+            }
+            Assert.assertEquals(entry.getDirectory().getName(), cacheDirectory.getName());
+            Assert.assertEquals(entry.getUrls(), Collections.singleton(source.srcDir.getAbsolutePath()));
+            Assert.assertEquals(entry.getPlanKeys(), Sets.newHashSet(PLAN_KEY.getKey(), "CONFIGURED-PLAN"));
+            Assert.assertEquals(entry.getFetchCount(), 1);
+            Assert.assertEquals(entry.getFailedFetchCount(), 0);
+            Assert.assertTrue(entry.getLockCount() > 0);
+            Assert.assertTrue(entry.getRefCount() > 0);
+            Assert.assertTrue(entry.getPackCount() + entry.getLooseObjectCount() > 0);
+            Assert.assertTrue(entry.getSize() > 0);
+            Assert.assertTrue(entry.getLastFetch() > 0);
+        }
+    }
+
+    @Test
+    public void testLastFetchIsReadFromFetchHeadIfNotRecorded() throws Exception
+    {
+        File cacheDirectory = new File(createTempDirectory(), "cache");
+        new GitTestRepository(cacheDirectory).close();
+        Assert.assertEquals(CacheInventory.createEntry(cacheDirectory, Collections.<String>emptySet(), Collections.<String>emptySet()).getLastFetch(), 0);
+
+        File fetchHead = new File(cacheDirectory, ".git/FETCH_HEAD");
+        Assert.assertTrue(fetchHead.createNewFile());
+        Assert.assertTrue(fetchHead.setLastModified(1300000000000L));
+        CacheInventory.Entry entry = CacheInventory.createEntry(cacheDirectory, Collections.<String>emptySet(), Collections.singleton("PLAN-KEY"));
+        Assert.assertEquals(entry.getLastFetch(), 1300000000000L);
+        Assert.assertEquals(entry.getPlanKeys(), Collections.singleton("PLAN-KEY"));
+    }
+}
@@ -0,0 +1,133 @@
+package com.atlassian.bamboo.plugins.git;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.storage.file.FileBasedConfig;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.util.FS;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+public class CacheMaintenanceTest extends GitAbstractTest
+{
+    @Test
+    public void testRemovedBranchesAreDeletedFromCache() throws Exception
+    {
+        File remoteDirectory = createTempDirectory();
+        GitTestRepository remote = new GitTestRepository(remoteDirectory);
+        remote.commitFileContents("master");
+        remote.git.branchCreate().setName("feature").call();
+
+        File cacheDirectory = createTempDirectory();
+        createJGitOperationHelper(createAccessData(remoteDirectory, "master")).fetch(cacheDirectory, false);
+        createJGitOperationHelper(createAccessData(remoteDirectory, "feature")).fetch(cacheDirectory, false);
+
+        remote.git.branchDelete().setBranchNames("feature").setForce(true).call();
+        remote.close();
+        GitRepository.GitRepositoryAccessData accessData = createAccessData(remoteDirectory, "master");
+        RemoteRefsCache.invalidate(accessData);
+        createJGitOperationHelper(accessData).maintainCache(cacheDirectory);
+
+        FileRepository cache = new FileRepository(new File(cacheDirectory, Constants.DOT_GIT));
+        Assert.assertNotNull(cache.getRef(Constants.R_HEADS + "master"));
+        Assert.assertNull(cache.getRef(Constants.R_HEADS + "feature"));
+        cache.close();
+    }
+
+    @Test
+    public void testAutoGcIsDisabledAndMaintenanceIsDueAfterInterval() throws Exception
+    {
+        File remoteDirectory = createTempDirectory();
+        GitTestRepository remote = new GitTestRepository(remoteDirectory);
+        remote.commitFileContents("master");
+        remote.close();
+
+        File cacheDirectory = createTempDirectory();
+        GitCacheDirectory.fetch(createJGitOperationHelper(createAccessData(remoteDirectory, "master")), cacheDirectory, "master", false);
+
+        FileBasedConfig config = new FileBasedConfig(new File(new File(cacheDirectory, Constants.DOT_GIT), Constants.CONFIG), FS.DETECTED);
+        config.load();
+        Assert.assertEquals(config.getInt("gc", null, "auto", -1), 0);
+
+        long now = System.currentTimeMillis();
+        Assert.assertTrue(CacheMaintenance.isDue(cacheDirectory, now));
+        Assert.assertTrue(CacheMaintenance.getMarkerFile(cacheDirectory).createNewFile());
+        Assert.assertFalse(CacheMaintenance.isDue(cacheDirectory, now));
+        Assert.assertTrue(CacheMaintenance.isDue(cacheDirectory, now + TimeUnit.DAYS.toMillis(CacheMaintenance.INTERVAL_DAYS)));
+    }
+
+    @Test
+    public void testRegistrationsExpireUnlessRenewed() throws Exception
+    {
+        GitRepository repository = createGitRepository();
+        File renewedCache = createTempDirectory();
+        File abandonedCache = createTempDirectory();
+        File evictedCache = createTempDirectory();
+        long now = System.currentTimeMillis();
+        long intervalAgo = now - TimeUnit.DAYS.toMillis(CacheMaintenance.INTERVAL_DAYS);
+
+        CacheMaintenance.register(repository, renewedCache, intervalAgo);
+        CacheMaintenance.register(repository, renewedCache, now - 1);
+        CacheMaintenance.register(repository, abandonedCache, intervalAgo);
+        CacheMaintenance.register(repository, evictedCache, now - 1);
+        FileUtils.deleteDirectory(evictedCache);
+
+        CacheMaintenance.dropStaleRegistrations(now);
+        Assert.assertTrue(CacheMaintenance.isRegistered(renewedCache));
+        Assert.assertFalse(CacheMaintenance.isRegistered(abandonedCache));
+        Assert.assertFalse(CacheMaintenance.isRegistered(evictedCache));
+    }
+
+    @Test
+    public void testUnreachableObjectsOfBorrowedCachesAreNeverPruned() throws Exception
+    {
+        File remoteDirectory = createTempDirectory();
+        GitTestRepository remote = new GitTestRepository(remoteDirectory);
+        remote.commitFileContents("master");
+        remote.git.branchCreate().setName("feature").call();
+        remote.git.checkout().setName("feature").call();
+        RevCommit feature = remote.commitFileContents("feature");
+        remote.git.checkout().setName("master").call();
+        String url = "file://" + remoteDirectory.getAbsolutePath();
+
+        File borrowedCache = createTempDirectory();
+        File otherCache = createTempDirectory();
+        for (File cache : Arrays.asList(borrowedCache, otherCache))
+        {
+            createNativeGitOperationHelper(createAccessData(url, "master")).fetch(cache, false);
+            createNativeGitOperationHelper(createAccessData(url, "feature")).fetch(cache, false);
+        }
+        createNativeGitOperationHelper(createAccessData(url, "feature")).checkout(borrowedCache, createTempDirectory(), feature.name(), null);
+        Assert.assertTrue(CacheMaintenance.isBorrowed(borrowedCache));
+        Assert.assertFalse(CacheMaintenance.isBorrowed(otherCache));
+
+        // the workspace still references the feature commit, which becomes unreachable in the caches
+        remote.git.branchDelete().setBranchNames("feature").setForce(true).call();
+        remote.close();
+        GitRepository.GitRepositoryAccessData accessData = createAccessData(url, "master");
+        RemoteRefsCache.invalidate(accessData);
+        for (File cache : Arrays.asList(borrowedCache, otherCache))
+        {
+            FileUtils.deleteDirectory(new File(cache, ".git/logs"));
+            for (File file : FileUtils.listFiles(new File(cache, ".git/objects"), null, true))
+            {
+                Assert.assertTrue(file.setLastModified(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(30)));
+            }
+            createNativeGitOperationHelper(accessData).maintainCache(cache);
+        }
+
+        Assert.assertTrue(hasObject(borrowedCache, feature));
+        Assert.assertFalse(hasObject(otherCache, feature));
+    }
+
+    private boolean hasObject(File cacheDirectory, RevCommit commit) throws Exception
+    {
+        FileRepository cache = register(new FileRepository(new File(cacheDirectory, Constants.DOT_GIT)));
+        return cache.hasObject(commit);
+    }
+}
@@ -0,0 +1,101 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.plugins.git.GitRepository.GitRepositoryAccessData;
+import com.atlassian.bamboo.utils.Pair;
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class CachePrefetcherTest extends GitAbstractTest
+{
+    private static final String PUSHED_REVISION = "0123456789abcdef0123456789abcdef01234567";
+    private static final long TIMEOUT = 5000;
+
+    @Test
+    public void testPushedRevisionIsOnlyPassedToRepositoriesBuildingTheRef() throws Exception
+    {
+        GitRepository master = mockRepository("ssh://git@example.com/project.git", "master");
+        GitRepository feature = mockRepository("https://example.com/project.git", "feature");
+        GitRepository other = mockRepository("https://example.com/other.git", "master");
+
+        Pair<Integer, Integer> result = CachePrefetcher.onPush(Arrays.asList(master, feature, other), Collections.singleton("https://example.com/project.git"), "refs/heads/master", PUSHED_REVISION);
+        assertEquals(result.getFirst(), Integer.valueOf(2));
+        assertEquals(result.getSecond(), Integer.valueOf(1));
+
+        verify(master, timeout(TIMEOUT)).prefetch(PUSHED_REVISION);
+        verify(feature, never()).prefetch(anyString());
+        verify(other, never()).prefetch(anyString());
+    }
+
+    @Test
+    public void testUnknownRefFetchesAllRepositoriesUsingTheRemoteWithoutRevision() throws Exception
+    {
+        GitRepository master = mockRepository("https://example.com/project.git", "master");
+        GitRepository feature = mockRepository("https://example.com/project.git", "feature");
+
+        Pair<Integer, Integer> result = CachePrefetcher.onPush(Arrays.asList(master, feature), Collections.singleton("https://example.com/project.git"), null, PUSHED_REVISION);
+        assertEquals(result.getSecond(), Integer.valueOf(2));
+
+        verify(master, timeout(TIMEOUT)).prefetch(null);
+        verify(feature, timeout(TIMEOUT)).prefetch(null);
+    }
+
+    @Test
+    public void testPushesToOtherPortsDoNotMatch() throws Exception
+    {
+        GitRepository defaultPort = mockRepository("ssh://git@example.com/project.git", "master");
+        GitRepository otherPort = mockRepository("ssh://git@example.com:7999/project.git", "master");
+
+        Pair<Integer, Integer> result = CachePrefetcher.onPush(Arrays.asList(defaultPort, otherPort), Collections.singleton("https://example.com:7999/project.git"), "refs/heads/master", PUSHED_REVISION);
+        assertEquals(result.getFirst(), Integer.valueOf(1));
+
+        verify(otherPort, timeout(TIMEOUT)).prefetch(PUSHED_REVISION);
+        verify(defaultPort, never()).prefetch(anyString());
+    }
+
+    @Test
+    public void testFetchesOfTheSameBranchAreThrottledAndCoalesced() throws Exception
+    {
+        GitRepository repository = mockRepository("https://example.com/project.git", "master");
+        String key = repository.getCacheDirectory(repository.getSubstitutedAccessData()).getAbsolutePath() + '\0' + "master";
+        assertEquals(CachePrefetcher.getDelayMillis(key, System.currentTimeMillis()), 0);
+
+        assertTrue(CachePrefetcher.schedule(repository, PUSHED_REVISION));
+        verify(repository, timeout(TIMEOUT)).prefetch(PUSHED_REVISION);
+
+        long delay = CachePrefetcher.getDelayMillis(key, System.currentTimeMillis());
+        assertTrue(delay > 0 && delay <= CachePrefetcher.MIN_INTERVAL_MILLIS, "Next fetch is delayed by " + delay);
+        assertEquals(CachePrefetcher.getDelayMillis(key, System.currentTimeMillis() + CachePrefetcher.MIN_INTERVAL_MILLIS), 0);
+
+        assertTrue(CachePrefetcher.schedule(repository, PUSHED_REVISION));
+        assertFalse(CachePrefetcher.schedule(repository, PUSHED_REVISION), "Pushes are served by the queued fetch");
+        Thread.sleep(500);
+        verify(repository, times(1)).prefetch(PUSHED_REVISION);
+    }
+
+    private GitRepository mockRepository(String repositoryUrl, String branch) throws Exception
+    {
+        GitRepositoryAccessData accessData = createAccessData(repositoryUrl, branch);
+        File cacheDirectory = createTempDirectory();
+
+        GitRepository repository = Mockito.mock(GitRepository.class);
+        when(repository.getSubstitutedAccessData()).thenReturn(accessData);
+        when(repository.getCacheDirectory(accessData)).thenReturn(cacheDirectory);
+        when(repository.isSameRemote(anyString())).thenCallRealMethod();
+        when(repository.tracksRef(anyString())).thenCallRealMethod();
+        return repository;
+    }
+}
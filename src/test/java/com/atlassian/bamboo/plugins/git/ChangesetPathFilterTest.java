@@ -0,0 +1,48 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.repository.IncludeExcludeAwareRepository;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class ChangesetPathFilterTest
+{
+    @DataProvider
+    Object[][] literalDirectoryData()
+    {
+        return new Object[][]{
+                {"modules/core/.*", "modules/core"},
+                {"^modules/core/src/.*\\.java", "modules/core/src"},
+                {"modules/core.*", "modules"},
+                {"modules/a?b/.*", "modules"},
+                {"modules/(core|api)/.*", null},
+                {"modules/core/.*|docs/.*", null},
+                {".*/core/.*", null},
+                {"(?i)modules/.*", null},
+                {"pom\\.xml", null},
+        };
+    }
+
+    @Test(dataProvider = "literalDirectoryData")
+    public void testLiteralDirectory(String regex, String expectedDirectory)
+    {
+        Assert.assertEquals(ChangesetPathFilter.getLiteralDirectory(regex), expectedDirectory);
+    }
+
+    @Test
+    public void testIncludeAndExclude()
+    {
+        ChangesetPathFilter include = ChangesetPathFilter.create(IncludeExcludeAwareRepository.FILTER_PATTERN_INCLUDE, ".*included.*");
+        Assert.assertTrue(include.isIncluded("dir/file_included.txt"));
+        Assert.assertFalse(include.isIncluded("dir/file1.txt"));
+
+        ChangesetPathFilter exclude = ChangesetPathFilter.create(IncludeExcludeAwareRepository.FILTER_PATTERN_EXCLUDE, ".*excluded.*");
+        Assert.assertFalse(exclude.isIncluded("dir/file_excluded.txt"));
+        Assert.assertTrue(exclude.isIncluded("dir/file1.txt"));
+        Assert.assertNull(exclude.getDirectory());
+
+        Assert.assertNull(ChangesetPathFilter.create(IncludeExcludeAwareRepository.FILTER_PATTERN_INCLUDE, "("));
+        Assert.assertNull(ChangesetPathFilter.create(IncludeExcludeAwareRepository.FILTER_PATTERN_INCLUDE, " "));
+        Assert.assertNull(ChangesetPathFilter.create("none", ".*"));
+    }
+}
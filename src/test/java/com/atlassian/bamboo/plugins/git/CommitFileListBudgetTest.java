@@ -0,0 +1,78 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.commit.CommitFile;
+import com.atlassian.bamboo.commit.CommitImpl;
+import com.google.common.collect.Lists;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class CommitFileListBudgetTest
+{
+    @Test
+    public void testFileListWithinBudgetIsKept()
+    {
+        CommitFileListBudget budget = new CommitFileListBudget(3, 10);
+        Assert.assertEquals(getFileNames(budget, "sha1", "a/1", "a/2", "b/1"), Arrays.asList("a/1", "a/2", "b/1"));
+        Assert.assertTrue(budget.getTruncatedCommits().isEmpty());
+    }
+
+    @Test
+    public void testLargeCommitListsRealPathsAndIsFlagged()
+    {
+        CommitFileListBudget budget = new CommitFileListBudget(3, 10);
+        Assert.assertEquals(getFileNames(budget, "sha1", "a/b/1", "a/b/2", "a/c/1", "d/1", "d/2"),
+                            Arrays.asList("a/b/1", "a/b/2", "a/c/1"));
+        Assert.assertEquals(getFileNames(budget, "sha2", "a/1", "b/1"), Arrays.asList("a/1", "b/1"));
+        Assert.assertEquals(Lists.newArrayList(budget.getTruncatedCommits()), Arrays.asList("sha1"));
+    }
+
+    @Test
+    public void testTruncationIsShownInComment()
+    {
+        CommitFileListBudget budget = new CommitFileListBudget(2, 10);
+        CommitImpl truncated = new CommitImpl();
+        truncated.setComment("message\n");
+        addFiles(budget.newCommit("sha1"), truncated, "a/1", "a/2", "a/3");
+        Assert.assertEquals(truncated.getComment(), "message\n" + String.format(CommitFileListBudget.TRUNCATED_COMMENT_SUFFIX, 2));
+
+        CommitImpl complete = new CommitImpl();
+        complete.setComment("message\n");
+        addFiles(budget.newCommit("sha2"), complete, "a/1", "a/2");
+        Assert.assertEquals(complete.getComment(), "message\n");
+    }
+
+    @Test
+    public void testResultBudgetIsShared()
+    {
+        CommitFileListBudget budget = new CommitFileListBudget(100, 4);
+        Assert.assertEquals(getFileNames(budget, "sha1", "a/1", "a/2", "b/1"), Arrays.asList("a/1", "a/2", "b/1"));
+        Assert.assertEquals(getFileNames(budget, "sha2", "a/1", "b/1"), Arrays.asList("a/1"));
+        Assert.assertEquals(getFileNames(budget, "sha3", "c/1"), Arrays.asList("c/1"));
+        Assert.assertEquals(Lists.newArrayList(budget.getTruncatedCommits()), Arrays.asList("sha2"));
+    }
+
+    private static List<String> getFileNames(CommitFileListBudget budget, String changeSetId, String... paths)
+    {
+        CommitImpl commit = new CommitImpl();
+        addFiles(budget.newCommit(changeSetId), commit, paths);
+
+        List<String> names = Lists.newArrayList();
+        for (CommitFile file : commit.getFiles())
+        {
+            names.add(file.getName());
+        }
+        return names;
+    }
+
+    private static void addFiles(CommitFileListBudget.CommitFiles commitFiles, CommitImpl commit, String... paths)
+    {
+        for (String path : paths)
+        {
+            commitFiles.add(path);
+        }
+        commitFiles.addTo(commit);
+    }
+}
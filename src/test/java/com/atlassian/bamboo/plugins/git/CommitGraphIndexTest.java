@@ -0,0 +1,128 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.testtools.ZipResourceDirectory;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.SuffixFileFilter;
+import org.eclipse.jgit.lib.ObjectId;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+public class CommitGraphIndexTest extends GitAbstractTest
+{
+    private static final ObjectId MASTER = ObjectId.fromString("a26ff19c3c63e19d6a57a396c764b140f48c530a");
+    private static final ObjectId MASTER_ANCESTOR = ObjectId.fromString("2e20b0733759facbeb0dec6ee345d762dbc8eed8");
+    private static final ObjectId MY_BRANCH = ObjectId.fromString("4367e71d438f091a5e85304618a8f78f9db6738e");
+    private static final ObjectId UNKNOWN = ObjectId.fromString("0123456789012345678901234567890123456789");
+
+    @Test
+    public void testIndexAnswersAncestryAndCounts() throws Exception
+    {
+        File repository = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("basic-repository.zip", repository);
+
+        Assert.assertNull(CommitGraphIndex.open(repository));
+        CommitGraphIndex.update(repository);
+        CommitGraphIndex index = CommitGraphIndex.open(repository);
+        Assert.assertNotNull(index);
+
+        Assert.assertEquals(index.isAncestor(MASTER_ANCESTOR, MASTER), Boolean.TRUE);
+        Assert.assertEquals(index.isAncestor(MASTER, MASTER), Boolean.TRUE);
+        Assert.assertEquals(index.isAncestor(MASTER, MASTER_ANCESTOR), Boolean.FALSE);
+        Assert.assertEquals(index.isAncestor(MY_BRANCH, MASTER), Boolean.FALSE);
+        Assert.assertNull(index.isAncestor(UNKNOWN, MASTER));
+
+        Assert.assertEquals(index.countCommits(MASTER, MASTER_ANCESTOR), 8);
+        Assert.assertEquals(index.countCommits(MASTER, null), 27);
+        Assert.assertEquals(index.countCommits(MY_BRANCH, MASTER), 2);
+        Assert.assertEquals(index.countCommits(MASTER, MASTER), 0);
+        Assert.assertEquals(index.countCommits(MASTER, UNKNOWN), -1);
+    }
+
+    @Test
+    public void testCorruptIndexIsIgnored() throws Exception
+    {
+        File repository = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("basic-repository.zip", repository);
+        CommitGraphIndex.update(repository);
+
+        File indexFile = CommitGraphIndex.getIndexFile(repository);
+        Assert.assertTrue(indexFile.length() > 0);
+        FileUtils.writeStringToFile(indexFile, "garbage");
+        Assert.assertNull(CommitGraphIndex.open(repository));
+
+        CommitGraphIndex.updateQuietly(repository);
+        Assert.assertEquals(CommitGraphIndex.open(repository).countCommits(MASTER, null), 27);
+    }
+
+    @Test
+    public void testShallowRepositoryIsNotIndexed() throws Exception
+    {
+        File repository = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("basic-repository.zip", repository);
+        CommitGraphIndex.update(repository);
+        Assert.assertNotNull(CommitGraphIndex.open(repository));
+
+        File shallow = new File(repository, ".git/shallow");
+        FileUtils.writeStringToFile(shallow, MASTER_ANCESTOR.name() + "\n");
+        Assert.assertNull(CommitGraphIndex.open(repository), "boundary commits have no parents in a shallow repository");
+        CommitGraphIndex.update(repository);
+        Assert.assertFalse(CommitGraphIndex.getIndexFile(repository).exists());
+
+        FileUtils.forceDelete(shallow);
+        CommitGraphIndex.update(repository);
+        Assert.assertEquals(CommitGraphIndex.open(repository).countCommits(MASTER, null), 27);
+    }
+
+    @Test
+    public void testUpdatesAddLayersWhichAreMerged() throws Exception
+    {
+        GitTestRepository repository = new GitTestRepository(createTempDirectory());
+        ObjectId first = repository.commitFileContents("1");
+        CommitGraphIndex.update(repository.srcDir);
+        for (int i = 2; i <= 4; i++)
+        {
+            repository.commitFileContents(Integer.toString(i));
+        }
+        CommitGraphIndex.update(repository.srcDir);
+        Assert.assertEquals(CommitGraphIndex.open(repository.srcDir).getLayerCount(), 1, "3 new commits merged with the single commit layer");
+
+        ObjectId fifth = repository.commitFileContents("5");
+        CommitGraphIndex.update(repository.srcDir);
+        CommitGraphIndex index = CommitGraphIndex.open(repository.srcDir);
+        Assert.assertEquals(index.getLayerCount(), 2);
+        Assert.assertEquals(index.countCommits(fifth, first), 4);
+        Assert.assertEquals(index.isAncestor(first, fifth), Boolean.TRUE);
+
+        ObjectId sixth = repository.commitFileContents("6");
+        CommitGraphIndex.update(repository.srcDir);
+        index = CommitGraphIndex.open(repository.srcDir);
+        Assert.assertEquals(index.getLayerCount(), 2, "2 commits merged into a layer");
+        Assert.assertEquals(index.countCommits(sixth, null), 6);
+        Assert.assertEquals(index.isAncestor(fifth, sixth), Boolean.TRUE);
+        Assert.assertEquals(repository.srcRepo.getDirectory().list(new SuffixFileFilter(".layer")).length, 2, "merged layers are removed");
+        repository.close();
+    }
+
+    @Test
+    public void testOpenedIndexIsReusedUntilWrittenOrDeleted() throws Exception
+    {
+        GitTestRepository repository = new GitTestRepository(createTempDirectory());
+        ObjectId first = repository.commitFileContents("1");
+        CommitGraphIndex.update(repository.srcDir);
+        CommitGraphIndex index = CommitGraphIndex.open(repository.srcDir);
+        Assert.assertSame(CommitGraphIndex.open(repository.srcDir), index);
+        Assert.assertSame(CommitGraphIndex.open(new File(repository.srcDir, ".")), index, "indexes are kept per canonical directory");
+
+        ObjectId second = repository.commitFileContents("2");
+        CommitGraphIndex.update(repository.srcDir);
+        CommitGraphIndex updated = CommitGraphIndex.open(repository.srcDir);
+        Assert.assertNotSame(updated, index);
+        Assert.assertEquals(updated.countCommits(second, first), 1);
+
+        CommitGraphIndex.delete(repository.srcDir);
+        Assert.assertNull(CommitGraphIndex.open(repository.srcDir));
+        repository.close();
+    }
+}
@@ -0,0 +1,119 @@
+package com.atlassian.bamboo.plugins.git;
+
+import com.atlassian.bamboo.commit.CommitContext;
+import com.atlassian.bamboo.commit.CommitFile;
+import com.atlassian.bamboo.repository.IncludeExcludeAwareRepository;
+import com.google.common.collect.Lists;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.List;
+
+public class CommitOutputHandlerTest
+{
+    private static final char NUL = 0;
+    private static final String ROOT = "594b8d4d6513658e1b039baa13c83b20d5389243";
+    private static final String SIDE = "9e0208aef0e83206aaaa90e5a4f5f084b78c39bf";
+    private static final String MULTILINE = "7487de3e3c6fd2533576772963e5773fb0184ffb";
+    private static final String MERGE = "a780a99a1f8605c0edd355267ea3b58a7daaf3b0";
+    private static final String EMPTY = "d07b6874c9a8f3e2b63a3b2a45c5e3e1e7b3a1f0";
+
+    /**
+     * Output of {@code git log -z --name-only} for an empty commit, a merge, a commit with a multi-line message, a
+     * commit on the merged branch and the root commit.
+     */
+    private static final String LOG =
+            commit(EMPTY, MERGE, "empty\n") +
+            commit(MERGE, MULTILINE + " " + SIDE, "merge\n") +
+            commit(MULTILINE, ROOT, "Subject\n\nBody\n", "a/z") +
+            commit(SIDE, ROOT, "side\n", "b/y") +
+            commit(ROOT, "", "root\n", "a/x");
+
+    @Test
+    public void testCommitsAreParsed() throws Exception
+    {
+        CommitOutputHandler handler = process(Integer.MAX_VALUE, new CommitFileListBudget(), null);
+        List<CommitContext> commits = handler.getExtractedCommits();
+        Assert.assertEquals(getIds(commits), Lists.newArrayList(EMPTY, MERGE, MULTILINE, SIDE, ROOT));
+        Assert.assertFalse(handler.isLimitReached());
+        Assert.assertEquals(handler.getProcessedCommits(), 5);
+
+        Assert.assertTrue(commits.get(0).getFiles().isEmpty());
+        Assert.assertTrue(commits.get(1).getFiles().isEmpty(), "merges list no files");
+        Assert.assertEquals(commits.get(2).getComment(), "Subject\n\nBody\n");
+        Assert.assertEquals(getFileNames(commits.get(2)), Collections.singletonList("a/z"));
+        Assert.assertEquals(getFileNames(commits.get(4)), Collections.singletonList("a/x"));
+        Assert.assertEquals(commits.get(4).getComment(), "root\n");
+        Assert.assertEquals(commits.get(4).getAuthor().getName(), "Committer <committer@example.com>");
+        Assert.assertEquals(commits.get(4).getDate().getTime(), 1295440296000L);
+    }
+
+    @Test
+    public void testPathFilterDropsCommitsWithoutIncludedFilesExceptMerges() throws Exception
+    {
+        CommitFileListBudget budget = new CommitFileListBudget();
+        ChangesetPathFilter pathFilter = ChangesetPathFilter.create(IncludeExcludeAwareRepository.FILTER_PATTERN_INCLUDE, "a/.*");
+        CommitOutputHandler handler = process(Integer.MAX_VALUE, budget, pathFilter);
+
+        Assert.assertEquals(getIds(handler.getExtractedCommits()), Lists.newArrayList(MERGE, MULTILINE, ROOT));
+        Assert.assertEquals(handler.getProcessedCommits(), 5);
+        Assert.assertEquals(budget.getDiscardedCommits(), 2);
+    }
+
+    @Test
+    public void testReadingStopsAtLimit() throws Exception
+    {
+        CommitOutputHandler handler = process(2, new CommitFileListBudget(), null);
+        Assert.assertEquals(getIds(handler.getExtractedCommits()), Lists.newArrayList(EMPTY, MERGE));
+        Assert.assertTrue(handler.isLimitReached());
+        Assert.assertEquals(handler.getProcessedCommits(), 2);
+
+        handler = process(5, new CommitFileListBudget(), null);
+        Assert.assertEquals(handler.getExtractedCommits().size(), 5);
+        Assert.assertFalse(handler.isLimitReached(), "no commit beyond the limit");
+    }
+
+    private static CommitOutputHandler process(int maxCommits, CommitFileListBudget budget, ChangesetPathFilter pathFilter) throws Exception
+    {
+        CommitOutputHandler handler = new CommitOutputHandler(Collections.<String>emptySet(), maxCommits, budget, pathFilter);
+        handler.process(new ByteArrayInputStream(LOG.getBytes("UTF-8")));
+        return handler;
+    }
+
+    private static String commit(String id, String parents, String message, String... files)
+    {
+        StringBuilder output = new StringBuilder("[d31bfa5_BAM_hash]").append(id).append(NUL)
+                .append(parents).append(NUL)
+                .append("Committer").append(NUL)
+                .append("committer@example.com").append(NUL)
+                .append("1295440296").append(NUL)
+                .append(message).append(NUL);
+        for (int i = 0; i < files.length; i++)
+        {
+            output.append(i == 0 ? "\n" : "").append(files[i]).append(NUL);
+        }
+        return output.toString();
+    }
+
+    private static List<String> getIds(List<CommitContext> commits)
+    {
+        List<String> ids = Lists.newArrayList();
+        for (CommitContext commit : commits)
+        {
+            ids.add(commit.getChangeSetId());
+        }
+        return ids;
+    }
+
+    private static List<String> getFileNames(CommitContext commit)
+    {
+        List<String> names = Lists.newArrayList();
+        for (CommitFile file : commit.getFiles())
+        {
+            names.add(file.getName());
+        }
+        return names;
+    }
+}
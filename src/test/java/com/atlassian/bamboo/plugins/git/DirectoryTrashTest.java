@@ -0,0 +1,76 @@
+package com.atlassian.bamboo.plugins.git;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+public class DirectoryTrashTest extends GitAbstractTest
+{
+    @Test(timeOut = 10000)
+    public void testDirectoryIsRenamedAndDeletedInBackground() throws Exception
+    {
+        File root = createTempDirectory();
+        File directory = new File(root, "cache");
+        for (int i = 0; i < 100; i++)
+        {
+            FileUtils.writeStringToFile(new File(directory, "objects/" + i), "content");
+        }
+
+        DirectoryTrash.delete(directory);
+        Assert.assertFalse(directory.exists());
+
+        File trash = DirectoryTrash.getTrashDirectory(directory);
+        Assert.assertEquals(trash.getParentFile(), root.getAbsoluteFile());
+        Assert.assertTrue(DirectoryTrash.isTrash(trash));
+        while (trash.list().length > 0)
+        {
+            Thread.sleep(50);
+        }
+
+        // the trash is never taken for a cache
+        FileUtils.writeStringToFile(new File(trash, "leftover/file"), "leftover content");
+        FileUtils.writeStringToFile(new File(root, "other/file"), "content");
+        Assert.assertEquals(CacheEvictor.evict(root, Long.MAX_VALUE), "content".length());
+    }
+
+    @Test(timeOut = 10000)
+    public void testSourceDirectoryIsTrashedInBuildDirectoryRoot() throws Exception
+    {
+        File root = createTempDirectory();
+        File workingDirectory = new File(root, "PLAN-JOB");
+        File sourceDirectory = new File(workingDirectory, "checkout");
+        FileUtils.writeStringToFile(new File(sourceDirectory, "file"), "content");
+
+        DirectoryTrash.delete(sourceDirectory, root);
+        Assert.assertFalse(sourceDirectory.exists());
+        Assert.assertEquals(workingDirectory.list().length, 0, "Nothing is trashed in the working directory");
+
+        File trash = new File(root, DirectoryTrash.TRASH_DIRECTORY_NAME);
+        while (trash.list().length > 0)
+        {
+            Thread.sleep(50);
+        }
+    }
+
+    @Test(timeOut = 10000)
+    public void testLeftoversOfPreviousRunAreEmptiedOnFirstUse() throws Exception
+    {
+        File root = createTempDirectory();
+        File trash = new File(root, DirectoryTrash.TRASH_DIRECTORY_NAME);
+        FileUtils.writeStringToFile(new File(trash, "leftover/file"), "leftover content");
+
+        DirectoryTrash.emptyLeftovers(root);
+        while (trash.list().length > 0)
+        {
+            Thread.sleep(50);
+        }
+
+        // later calls are no-ops, the trash is emptied whenever something is moved to it
+        FileUtils.writeStringToFile(new File(trash, "leftover/file"), "leftover content");
+        DirectoryTrash.emptyLeftovers(root);
+        Thread.sleep(200);
+        Assert.assertEquals(trash.list().length, 1);
+    }
+}
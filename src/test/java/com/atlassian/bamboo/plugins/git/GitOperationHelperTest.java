@@ -4,11 +4,14 @@ import com.atlassian.bamboo.commit.CommitContext;
 import com.atlassian.bamboo.commit.CommitContextImpl;
 import com.atlassian.bamboo.commit.CommitFile;
 import com.atlassian.bamboo.commit.CommitFileImpl;
+import com.atlassian.bamboo.repository.IncludeExcludeAwareRepository;
 import com.atlassian.bamboo.repository.RepositoryException;
 import com.atlassian.bamboo.v2.build.BuildRepositoryChanges;
 import com.atlassian.testtools.ZipResourceDirectory;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.storage.file.FileRepository;
 import org.eclipse.jgit.transport.Transport;
 import org.testng.annotations.DataProvider;
@@ -22,6 +25,7 @@ import java.util.Arrays;
 import java.util.List;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
@@ -332,6 +336,31 @@ public class GitOperationHelperTest extends GitAbstractTest
         }
     }
 
+    @DataProvider
+    Object[][] testExtractCommitsWithPathFilterData()
+    {
+        return new Object[][]{
+                {IncludeExcludeAwareRepository.FILTER_PATTERN_INCLUDE, ".*shodan.*"},
+                {IncludeExcludeAwareRepository.FILTER_PATTERN_EXCLUDE, "sparta\\.txt"},
+        };
+    }
+
+    @Test(dataProvider = "testExtractCommitsWithPathFilterData")
+    public void testExtractCommitsWithPathFilter(String option, String regex) throws Exception
+    {
+        File tmp = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("basic-repository.zip", tmp);
+
+        ChangesetPathFilter pathFilter = ChangesetPathFilter.create(option, regex);
+        List<CommitContext> commits = createJGitOperationHelper(null).extractCommits(tmp, "2e20b0733759facbeb0dec6ee345d762dbc8eed8", "a26ff19c3c63e19d6a57a396c764b140f48c530a", pathFilter).getChanges();
+        assertEquals(commits.size(), 2);
+        for (CommitContext commit : commits)
+        {
+            assertEquals(commit.getFiles().size(), 1);
+            assertEquals(commit.getFiles().get(0).getName(), "shodan.txt");
+        }
+    }
+
     @Test
     public void testChangesetLimit() throws Exception
     {
@@ -347,6 +376,61 @@ public class GitOperationHelperTest extends GitAbstractTest
             assertEquals(buildChanges.getChanges().get(i).getComment(), Integer.toString(150 - i) + "\n");
         }
     }
+
+    @Test
+    public void testChangesetLimitNative() throws Exception
+    {
+        File tmp = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("150changes.zip", tmp);
+
+        // from the initial commit to "150"
+        BuildRepositoryChanges buildChanges = createNativeGitOperationHelper(createAccessData(tmp, "master"))
+                .extractCommits(tmp, "1fea1bc1ff3a0a2a2ad5b15dc088323b906e81d7", "ed28ecbc8f2712fd95a45c8b94ab23842eed57f5");
+        assertEquals(buildChanges.getChanges().size(), 100);
+        assertEquals(buildChanges.getSkippedCommitsCount(), 49);
+
+        for (int i = 0; i < buildChanges.getChanges().size(); i++)
+        {
+            CommitContext commit = buildChanges.getChanges().get(i);
+            assertEquals(commit.getComment(), Integer.toString(150 - i) + "\n");
+            assertEquals(commit.getFiles().size(), 1);
+            assertEquals(commit.getFiles().get(0).getName(), "README.txt");
+        }
+    }
+
+    @Test
+    public void testUpdateRefIfRevisionPresent() throws Exception
+    {
+        File repository = createTempDirectory();
+        ZipResourceDirectory.copyZipResourceToDirectory("basic-repository.zip", repository);
+        File cache = createTempDirectory();
+
+        JGitOperationHelper helper = createJGitOperationHelper(createAccessData(repository, "master"));
+        assertFalse(helper.updateRefIfRevisionPresent(cache, "a26ff19c3c63e19d6a57a396c764b140f48c530a", false));
+        helper.fetch(cache, false);
+
+        FileRepository cacheRepository = new FileRepository(new File(cache, ".git"));
+        try
+        {
+            RefUpdate refUpdate = cacheRepository.updateRef("refs/heads/master");
+            refUpdate.setNewObjectId(ObjectId.fromString("2e20b0733759facbeb0dec6ee345d762dbc8eed8"));
+            refUpdate.forceUpdate();
+
+            assertTrue(helper.updateRefIfRevisionPresent(cache, "fd3f41a4b265f5cf250a731a7fb48c4bb152caf2", true));
+            assertTrue(helper.updateRefIfRevisionPresent(cache, "a26ff19c3c63e19d6a57a396c764b140f48c530a", true));
+            assertEquals(cacheRepository.resolve("refs/heads/master").getName(), "a26ff19c3c63e19d6a57a396c764b140f48c530a");
+
+            // older revision is already there, ref must not move backwards
+            assertTrue(helper.updateRefIfRevisionPresent(cache, "2e20b0733759facbeb0dec6ee345d762dbc8eed8", true));
+            assertEquals(cacheRepository.resolve("refs/heads/master").getName(), "a26ff19c3c63e19d6a57a396c764b140f48c530a");
+
+            assertFalse(helper.updateRefIfRevisionPresent(cache, "0000000000000000000000000000000000000001", true));
+        }
+        finally
+        {
+            cacheRepository.close();
+        }
+    }
     
    @DataProvider
     Object[][] transportMappingData()
@@ -11,6 +11,9 @@ import com.atlassian.bamboo.v2.build.agent.remote.RemoteBuildDirectoryManager;
 import com.atlassian.testtools.ZipResourceDirectory;
 import org.apache.commons.io.FileUtils;
 import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.storage.file.FileRepository;
 import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.DataProvider;
@@ -21,6 +24,7 @@ import java.util.List;
 
 import static com.atlassian.bamboo.spring.SpringTestHelper.mockSpringComponent;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
@@ -327,4 +331,42 @@ public class GitRepositoryTest extends GitAbstractTest
         assertEquals(commit.getComment(), commitMessage);
         assertEquals(commit.getFiles().get(0).getName(), filename);
     }
+
+    @Test
+    public void testTracksRef() throws Exception
+    {
+        GitRepository gitRepository = createGitRepository();
+        setRepositoryProperties(gitRepository, "git://github.com/cixot/test.git", "feature");
+
+        assertTrue(gitRepository.tracksRef("refs/heads/feature"));
+        assertTrue(gitRepository.tracksRef("refs/tags/feature"));
+        assertFalse(gitRepository.tracksRef("refs/heads/master"));
+        assertFalse(gitRepository.tracksRef("feature"));
+
+        setRepositoryProperties(gitRepository, "git://github.com/cixot/test.git", "");
+        assertTrue(gitRepository.tracksRef("refs/heads/master"));
+    }
+
+    @Test
+    public void testPrefetchFetchesPushedRevisionIntoExistingCache() throws Exception
+    {
+        GitTestRepository upstream = new GitTestRepository(createTempDirectory());
+        upstream.commitFileContents("first");
+
+        GitRepository gitRepository = createGitRepository();
+        setRepositoryProperties(gitRepository, upstream.srcDir, "master");
+        File cacheDirectory = gitRepository.getCacheDirectory(gitRepository.getSubstitutedAccessData());
+
+        gitRepository.prefetch(null);
+        assertFalse(cacheDirectory.exists(), "Caches are only created by change detection");
+
+        gitRepository.collectChangesSinceLastBuild(PLAN_KEY.getKey(), null);
+        String pushed = upstream.commitFileContents("second").name();
+        upstream.close();
+
+        gitRepository.prefetch(pushed);
+        FileRepository cacheRepository = register(new FileRepository(new File(cacheDirectory, Constants.DOT_GIT)));
+        assertTrue(cacheRepository.hasObject(ObjectId.fromString(pushed)));
+        assertEquals(cacheRepository.resolve(Constants.R_HEADS + "master").name(), pushed);
+    }
 }
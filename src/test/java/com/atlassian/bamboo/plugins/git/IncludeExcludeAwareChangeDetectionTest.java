@@ -3,6 +3,7 @@ package com.atlassian.bamboo.plugins.git;
 import com.atlassian.bamboo.build.BuildLoggerManager;
 import com.atlassian.bamboo.build.logger.NullBuildLogger;
 import com.atlassian.bamboo.chains.BuildContextFactory;
+import com.atlassian.bamboo.commit.CommitContext;
 import com.atlassian.bamboo.plan.PlanKeys;
 import com.atlassian.bamboo.plan.branch.BranchCommitInformationManager;
 import com.atlassian.bamboo.plan.branch.BranchDetectionService;
@@ -22,6 +23,7 @@ import com.atlassian.bamboo.variable.VariableContextBuilder;
 import com.atlassian.bamboo.variable.VariableDefinitionContext;
 import com.atlassian.bamboo.variable.VariableDefinitionManager;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.opensymphony.xwork.DefaultTextProvider;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.ConcurrentRefUpdateException;
@@ -45,6 +47,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class IncludeExcludeAwareChangeDetectionTest extends GitAbstractTest
 {
@@ -130,6 +133,71 @@ public class IncludeExcludeAwareChangeDetectionTest extends GitAbstractTest
     }
 
 
+    @Test
+    public void testCommitsFilteredOutAreNotReplacedWithUnknownChanges() throws Exception
+    {
+        File localRepository = createTempDirectory();
+        FileRepository repository = new FileRepository(new File(localRepository, Constants.DOT_GIT));
+        repository.create(false);
+        repository.close();
+        String previousVcsRevisionKey = touchFiles(localRepository, Arrays.asList("file1.txt"));
+        touchFiles(localRepository, Arrays.asList("file2.txt"));
+        String newRevision = touchFiles(localRepository, Arrays.asList("file1.txt", "file_excluded.txt"));
+
+        GitRepository gitRepository = createGitRepository();
+        setRepositoryProperties(gitRepository, localRepository);
+        gitRepository.setFilterFilePatternOption(IncludeExcludeAwareRepository.FILTER_PATTERN_INCLUDE);
+        gitRepository.setFilterFilePatternRegex(".*included.*");
+
+        BuildRepositoryChanges changes = gitRepository.collectChangesSinceLastBuild(PLAN_KEY.getKey(), previousVcsRevisionKey);
+        Assert.assertEquals(changes.getVcsRevisionKey(), newRevision);
+        Assert.assertTrue(changes.getChanges().isEmpty(), "Expected no changes, got " + changes.getChanges());
+    }
+
+    @Test
+    public void testNativeAndJGitFilterMergesTheSameWay() throws Exception
+    {
+        File localRepository = createTempDirectory();
+        FileRepository repository = new FileRepository(new File(localRepository, Constants.DOT_GIT));
+        repository.create(false);
+        Git git = new Git(repository);
+        new File(localRepository, "included").mkdir();
+        String previousVcsRevisionKey = touchFiles(localRepository, Arrays.asList("included/file1.txt", "file1.txt"));
+
+        git.checkout().setCreateBranch(true).setName("inside").call();
+        touchFiles(localRepository, Arrays.asList("file2.txt"));
+        String insideRevision = touchFiles(localRepository, Arrays.asList("included/file2.txt"));
+        git.checkout().setName("master").call();
+        touchFiles(localRepository, Arrays.asList("file3.txt"));
+        git.merge().include(repository.resolve("inside")).call();
+
+        git.checkout().setCreateBranch(true).setName("outside").call();
+        touchFiles(localRepository, Arrays.asList("file4.txt"));
+        git.checkout().setName("master").call();
+        touchFiles(localRepository, Arrays.asList("file5.txt"));
+        git.merge().include(repository.resolve("outside")).call();
+        String targetRevision = repository.resolve(Constants.HEAD).name();
+        repository.close();
+
+        ChangesetPathFilter pathFilter = ChangesetPathFilter.create(IncludeExcludeAwareRepository.FILTER_PATTERN_INCLUDE, "included/.*");
+        Set<String> jgitCommits = getChangeSetIds(createJGitOperationHelper(null).extractCommits(localRepository, previousVcsRevisionKey, targetRevision, pathFilter));
+        Set<String> nativeCommits = getChangeSetIds(createNativeGitOperationHelper(createAccessData(localRepository.getAbsolutePath())).extractCommits(localRepository, previousVcsRevisionKey, targetRevision, pathFilter));
+        Assert.assertEquals(nativeCommits, jgitCommits);
+        Assert.assertEquals(jgitCommits.size(), 3, "both merges and the commit inside the directory expected: " + jgitCommits);
+        Assert.assertTrue(jgitCommits.contains(insideRevision));
+    }
+
+    private static Set<String> getChangeSetIds(BuildRepositoryChanges changes)
+    {
+        Set<String> changeSetIds = Sets.newHashSet();
+        for (CommitContext commit : changes.getChanges())
+        {
+            changeSetIds.add(commit.getChangeSetId());
+        }
+        return changeSetIds;
+    }
+
+
     private String touchFiles(File localRepository, List<String> filesToTouch)
             throws IOException, NoFilepatternException, NoHeadException, NoMessageException, ConcurrentRefUpdateException, WrongRepositoryStateException
     {
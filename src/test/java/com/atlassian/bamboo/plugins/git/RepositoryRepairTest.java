@@ -0,0 +1,59 @@
+package com.atlassian.bamboo.plugins.git;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+public class RepositoryRepairTest extends GitAbstractTest
+{
+    @Test
+    public void testIntactRepositoryIsLeftAlone() throws Exception
+    {
+        File directory = createTempDirectory();
+        GitTestRepository repository = new GitTestRepository(directory);
+        repository.commitFileContents("first");
+        repository.close();
+
+        Assert.assertEquals(RepositoryRepair.repair(directory), 0);
+        Assert.assertEquals(RepositoryRepair.repair(createTempDirectory()), 0);
+    }
+
+    @Test
+    public void testInterruptedFetchLeftoversAreRepaired() throws Exception
+    {
+        File directory = createTempDirectory();
+        GitTestRepository repository = new GitTestRepository(directory);
+        RevCommit first = repository.commitFileContents("first");
+        repository.git.branchCreate().setName("stable").call();
+        RevCommit second = repository.commitFileContents("second");
+        repository.close();
+
+        File gitDirectory = new File(directory, Constants.DOT_GIT);
+        File packDirectory = new File(gitDirectory, "objects/pack");
+        FileUtils.writeStringToFile(new File(packDirectory, "tmp_pack_interrupted"), "PACK");
+        FileUtils.writeStringToFile(new File(packDirectory, "pack-0000000000000000000000000000000000000000.pack"), "PACK truncated");
+        FileUtils.writeStringToFile(new File(gitDirectory, Constants.R_HEADS + "malformed"), "");
+        String secondId = second.name();
+        File secondObject = new File(gitDirectory, "objects/" + secondId.substring(0, 2) + "/" + secondId.substring(2));
+        Assert.assertTrue(secondObject.delete());
+        Assert.assertTrue(secondObject.createNewFile());
+
+        // pack without index, temporary pack, empty object, malformed ref and master pointing to the empty object
+        Assert.assertEquals(RepositoryRepair.repair(directory), 5);
+        Assert.assertFalse(new File(packDirectory, "tmp_pack_interrupted").exists());
+        Assert.assertTrue(new File(gitDirectory, RepositoryRepair.QUARANTINE_DIRECTORY).isDirectory());
+
+        FileRepository repaired = new FileRepository(gitDirectory);
+        Assert.assertNull(repaired.getRef(Constants.R_HEADS + Constants.MASTER));
+        Assert.assertNull(repaired.getRef(Constants.R_HEADS + "malformed"));
+        Assert.assertEquals(repaired.resolve(Constants.R_HEADS + "stable"), first.getId());
+        repaired.close();
+
+        Assert.assertEquals(RepositoryRepair.repair(directory), 0);
+    }
+}
@@ -0,0 +1,89 @@
+package com.atlassian.bamboo.plugins.git;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+public class RepositorySeedsTest extends GitAbstractTest
+{
+    @Test
+    public void testSeedsAreFoundByCanonicalUrl() throws Exception
+    {
+        File seedDirectory = createTempDirectory();
+        String seedName = RepositorySeeds.getSeedName("ssh://git@example.com/project.git");
+        Assert.assertEquals(RepositorySeeds.getSeedName("https://example.com/project"), seedName);
+
+        Assert.assertNull(RepositorySeeds.findSeed(seedDirectory.getAbsolutePath(), "ssh://git@example.com/project.git"));
+        Assert.assertNull(RepositorySeeds.findSeed(null, "ssh://git@example.com/project.git"));
+
+        File mirror = new File(seedDirectory, seedName);
+        new GitTestRepository(mirror).close();
+        Assert.assertEquals(RepositorySeeds.findSeed(seedDirectory.getAbsolutePath(), "https://example.com/project"), mirror);
+
+        File bundle = new File(seedDirectory, seedName + RepositorySeeds.BUNDLE_EXTENSION);
+        Assert.assertTrue(bundle.createNewFile());
+        Assert.assertEquals(RepositorySeeds.findSeed(seedDirectory.getAbsolutePath(), "https://example.com/project"), bundle);
+    }
+
+    @Test
+    public void testExportedBundleSeedsRepository() throws Exception
+    {
+        File cacheDirectory = new File(createTempDirectory(), "cache");
+        GitTestRepository cache = new GitTestRepository(cacheDirectory);
+        RevCommit head = cache.commitFileContents("content");
+        cache.git.branchCreate().setName("feature").call();
+        cache.close();
+
+        File bundle = RepositorySeeds.exportBundle(cacheDirectory, "git://example.com/project.git");
+        Assert.assertEquals(bundle.getParentFile(), cacheDirectory.getParentFile());
+        Assert.assertEquals(bundle.getName(), RepositorySeeds.getSeedName("git://example.com/project.git") + RepositorySeeds.BUNDLE_EXTENSION);
+
+        FileRepository seeded = new FileRepository(new File(createTempDirectory(), Constants.DOT_GIT));
+        seeded.create();
+        Transport transport = Transport.open(seeded, new URIish(bundle.getAbsolutePath()));
+        try
+        {
+            transport.fetch(NullProgressMonitor.INSTANCE, Arrays.asList(new RefSpec("+refs/heads/*:refs/heads/*")));
+        }
+        finally
+        {
+            transport.close();
+        }
+        Assert.assertEquals(seeded.resolve(Constants.R_HEADS + "feature"), head.getId());
+        Assert.assertTrue(seeded.hasObject(head.getTree()));
+        seeded.close();
+    }
+
+    @Test
+    public void testRepositoriesWithoutObjectsAreSeeded() throws Exception
+    {
+        File directory = createTempDirectory();
+        Assert.assertTrue(RepositorySeeds.hasNoObjects(directory));
+
+        NativeGitOperationHelper helper = createNativeGitOperationHelper(createAccessData("repository.url"));
+        if (helper.enableBlobFilter(directory))
+        {
+            Assert.assertTrue(BloblessCache.isBlobless(directory));
+            Assert.assertTrue(RepositorySeeds.hasNoObjects(directory), "New blobless caches are seeded");
+        }
+
+        GitTestRepository repository = new GitTestRepository(createTempDirectory());
+        Assert.assertTrue(RepositorySeeds.hasNoObjects(repository.srcDir));
+        repository.commitFileContents("content");
+        repository.close();
+        Assert.assertFalse(RepositorySeeds.hasNoObjects(repository.srcDir));
+
+        File borrowing = createTempDirectory();
+        createJGitOperationHelper(createAccessData("repository.url")).createLocalRepository(borrowing, repository.srcDir).close();
+        Assert.assertFalse(RepositorySeeds.hasNoObjects(borrowing));
+    }
+}
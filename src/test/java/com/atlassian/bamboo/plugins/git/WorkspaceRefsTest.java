@@ -0,0 +1,51 @@
+package com.atlassian.bamboo.plugins.git;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+public class WorkspaceRefsTest extends GitAbstractTest
+{
+    @Test
+    public void testRefsArePackedAndWrittenOnlyWhenChanged() throws Exception
+    {
+        GitTestRepository cache = new GitTestRepository(createTempDirectory());
+        RevCommit first = cache.commitFileContents("first");
+        for (int i = 0; i < 100; i++)
+        {
+            RefUpdate refUpdate = cache.srcRepo.updateRef(Constants.R_TAGS + "tag-" + i);
+            refUpdate.setNewObjectId(first);
+            refUpdate.update();
+        }
+        cache.git.branchCreate().setName("feature").call();
+        File cacheGitDir = cache.srcRepo.getDirectory();
+
+        File workspaceGitDir = new File(createTempDirectory(), Constants.DOT_GIT);
+        new FileRepository(workspaceGitDir).create();
+
+        Assert.assertEquals(WorkspaceRefs.copyFromCache(cacheGitDir, workspaceGitDir), 102);
+        Assert.assertFalse(new File(workspaceGitDir, Constants.R_TAGS + "tag-0").exists());
+        Assert.assertEquals(WorkspaceRefs.readPackedRefs(new File(workspaceGitDir, WorkspaceRefs.PACKED_REFS)).get(Constants.R_TAGS + "tag-99"), first.name());
+        Assert.assertEquals(WorkspaceRefs.copyFromCache(cacheGitDir, workspaceGitDir), 0);
+
+        RevCommit second = cache.commitFileContents("second");
+        Assert.assertEquals(WorkspaceRefs.copyFromCache(cacheGitDir, workspaceGitDir), 1);
+
+        // a stale loose ref in the workspace must not hide the cache's value
+        FileUtils.writeStringToFile(new File(workspaceGitDir, Constants.R_HEADS + "feature"), second.name() + "\n");
+        cache.close();
+        Assert.assertEquals(WorkspaceRefs.copyFromCache(cacheGitDir, workspaceGitDir), 0);
+
+        FileRepository workspace = new FileRepository(workspaceGitDir);
+        Assert.assertEquals(workspace.resolve(Constants.R_HEADS + "master"), second.getId());
+        Assert.assertEquals(workspace.resolve(Constants.R_HEADS + "feature"), first.getId());
+        Assert.assertEquals(workspace.resolve(Constants.R_TAGS + "tag-0"), first.getId());
+        workspace.close();
+    }
+}
@@ -0,0 +1,69 @@
+package com.atlassian.bamboo.plugins.git.rest.resource;
+
+import com.atlassian.bamboo.plugins.git.GitAbstractTest;
+import com.atlassian.bamboo.repository.RepositoryDefinition;
+import com.atlassian.bamboo.repository.RepositoryDefinitionManager;
+import org.apache.commons.codec.binary.Hex;
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.ws.rs.core.Response;
+import java.util.Collections;
+
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+public class PushNotificationResourceTest
+{
+    private static final String SECRET = "s3cr3t";
+    private static final String JSON_BODY = "{\"url\": \"https://example.com/project.git\", \"ref\": \"refs/heads/master\"}";
+    private static final String FORM_BODY = "url=https%3A%2F%2Fexample.com%2Fproject.git&ref=refs%2Fheads%2Fmaster";
+
+    @Test
+    public void testNotificationsAreRefusedWithoutSecret() throws Exception
+    {
+        PushNotificationResource resource = createResource("");
+        Response response = resource.notifyPush(sign("sha256=", "HmacSHA256", SECRET), null, JSON_BODY.getBytes("UTF-8"));
+        assertEquals(response.getStatus(), Response.Status.FORBIDDEN.getStatusCode());
+    }
+
+    @Test
+    public void testUnsignedAndForgedNotificationsAreRefused() throws Exception
+    {
+        PushNotificationResource resource = createResource(SECRET);
+        assertEquals(resource.notifyPush(null, null, JSON_BODY.getBytes("UTF-8")).getStatus(), Response.Status.FORBIDDEN.getStatusCode());
+        assertEquals(resource.notifyPush(sign("sha256=", "HmacSHA256", "other secret"), null, JSON_BODY.getBytes("UTF-8")).getStatus(), Response.Status.FORBIDDEN.getStatusCode());
+        assertEquals(resource.notifyPush("sha256=not-hex", null, JSON_BODY.getBytes("UTF-8")).getStatus(), Response.Status.FORBIDDEN.getStatusCode());
+        assertEquals(resource.notifyPushForm(null, sign("sha1=", "HmacSHA1", SECRET, JSON_BODY), FORM_BODY.getBytes("UTF-8")).getStatus(), Response.Status.FORBIDDEN.getStatusCode());
+    }
+
+    @Test
+    public void testSignedNotificationsAreAccepted() throws Exception
+    {
+        PushNotificationResource resource = createResource(SECRET);
+        assertEquals(resource.notifyPush(sign("sha256=", "HmacSHA256", SECRET), null, JSON_BODY.getBytes("UTF-8")).getStatus(), Response.Status.OK.getStatusCode());
+        assertEquals(resource.notifyPush(null, sign("sha1=", "HmacSHA1", SECRET), JSON_BODY.getBytes("UTF-8")).getStatus(), Response.Status.OK.getStatusCode());
+        assertEquals(resource.notifyPushForm(sign("sha256=", "HmacSHA256", SECRET, FORM_BODY), null, FORM_BODY.getBytes("UTF-8")).getStatus(), Response.Status.OK.getStatusCode());
+    }
+
+    private static PushNotificationResource createResource(String secret)
+    {
+        RepositoryDefinitionManager repositoryDefinitionManager = Mockito.mock(RepositoryDefinitionManager.class);
+        when(repositoryDefinitionManager.getAllRepositoryDefinitions()).thenReturn(Collections.<RepositoryDefinition>emptyList());
+        return new PushNotificationResource(GitAbstractTest.getI18nResolver(), repositoryDefinitionManager, secret);
+    }
+
+    private static String sign(String prefix, String algorithm, String secret) throws Exception
+    {
+        return sign(prefix, algorithm, secret, JSON_BODY);
+    }
+
+    private static String sign(String prefix, String algorithm, String secret, String body) throws Exception
+    {
+        Mac mac = Mac.getInstance(algorithm);
+        mac.init(new SecretKeySpec(secret.getBytes("UTF-8"), algorithm));
+        return prefix + new String(Hex.encodeHex(mac.doFinal(body.getBytes("UTF-8"))));
+    }
+}